@@ -0,0 +1,27 @@
+package acl.config;
+
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.ComponentScan.Filter;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.context.annotation.Import;
+
+/**
+ * Java configuration of the application context, the equivalent of {@code applicationContext.xml} together with
+ * {@code applicationContext-security.xml}. It spares parsing the XML and the security namespace at startup and
+ * creates the ACL infrastructure on first use (see {@link SecurityConfig}). To use it, configure the
+ * {@link org.springframework.web.context.ContextLoaderListener} by the context parameters:
+ *
+ * <pre>
+ * contextClass = org.springframework.web.context.support.AnnotationConfigWebApplicationContext
+ * contextConfigLocation = acl.config.AppConfig
+ * </pre>
+ *
+ * @author Petr Giecek
+ */
+@Configuration
+@ComponentScan(basePackages = "acl", excludeFilters = @Filter(type = FilterType.REGEX, pattern = "acl\\.config\\..*"))
+@Import(SecurityConfig.class)
+public class AppConfig {
+
+}
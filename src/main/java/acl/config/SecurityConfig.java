@@ -0,0 +1,175 @@
+package acl.config;
+
+import java.util.Collections;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.security.access.PermissionEvaluator;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionHandler;
+import org.springframework.security.acls.AclPermissionEvaluator;
+import org.springframework.security.acls.domain.ObjectIdentityRetrievalStrategyImpl;
+import org.springframework.security.acls.model.AclService;
+import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
+import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
+import org.springframework.security.config.annotation.method.configuration.GlobalMethodSecurityConfiguration;
+
+import acl.dao.AccessPolicyCache;
+import acl.dao.AccessPolicyCacheWarmer;
+import acl.dao.AccessPolicyDao;
+import acl.dao.ExpiredAccessPolicySweeper;
+import acl.security.AccessPermissionFactory;
+import acl.security.AuthorizationExpressionParser;
+import acl.security.CachingSidRetrievalStrategy;
+import acl.security.SimpleAclService;
+
+/**
+ * <p>
+ * Java configuration of method security and the ACL infrastructure, the equivalent of
+ * {@code applicationContext-security.xml}. A bean changed here must be changed there too.
+ * </p>
+ * <p>
+ * The method security interceptor and so the permission evaluator are created at startup, but the evaluator refers
+ * to a lazy proxy of the ACL service, so the ACL service is created on the first permission check or once a secured
+ * service is created, whichever comes first.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+@Configuration
+@EnableGlobalMethodSecurity(prePostEnabled = true)
+public class SecurityConfig extends GlobalMethodSecurityConfiguration {
+
+    /** Permission evaluator. */
+    @Autowired
+    private PermissionEvaluator permissionEvaluator;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void configure(AuthenticationManagerBuilder auth) throws Exception {
+        auth.inMemoryAuthentication()
+                .withUser("empl1").password("pass1").authorities("ROLE_USER").and()
+                .withUser("empl2").password("pass2").authorities("ROLE_LOOSER");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected MethodSecurityExpressionHandler createExpressionHandler() {
+        final DefaultMethodSecurityExpressionHandler expressionHandler = new DefaultMethodSecurityExpressionHandler();
+        expressionHandler.setPermissionEvaluator(this.permissionEvaluator);
+        expressionHandler.setExpressionParser(authorizationExpressionParser());
+        return expressionHandler;
+    }
+
+    /**
+     * Returns the ACL service. Concurrent lookups for the same object and SIDs share one datastore query, a lookup
+     * started before a grant on the object is not shared with the readers after it.
+     *
+     * @param accessPolicyDao access policy DAO
+     * @return the ACL service
+     */
+    @Bean
+    @Lazy
+    public SimpleAclService aclService(AccessPolicyDao accessPolicyDao) {
+        final SimpleAclService simpleAclService = new SimpleAclService(objectIdentityRetrievalStrategy(),
+                accessPolicyDao);
+        simpleAclService.setCoalescingMaxWait(2000L);
+        return simpleAclService;
+    }
+
+    /**
+     * Returns the cache of access policies per SID and object: 100000 entries at most, each living for a minute.
+     *
+     * @return the cache of access policies
+     */
+    @Bean
+    public AccessPolicyCache accessPolicyCache() {
+        return new AccessPolicyCache(100000, 60000L);
+    }
+
+    /**
+     * Returns the warmer preloading the policies of hot SIDs into the cache on instance start, within 5 seconds.
+     *
+     * @param accessPolicyDao access policy DAO
+     * @return the cache warmer
+     */
+    @Bean
+    public AccessPolicyCacheWarmer accessPolicyCacheWarmer(AccessPolicyDao accessPolicyDao) {
+        return new AccessPolicyCacheWarmer(accessPolicyDao, Collections.singletonList("ROLE:ROLE_USER"), 5000L);
+    }
+
+    /**
+     * Returns the sweeper deleting expired access policies, swept by the cron job of {@code cron.xml}. A sweep takes
+     * 30 seconds at most, well within the deadline of a cron request.
+     *
+     * @param accessPolicyDao access policy DAO
+     * @return the sweeper
+     */
+    @Bean
+    public ExpiredAccessPolicySweeper expiredAccessPolicySweeper(AccessPolicyDao accessPolicyDao) {
+        final ExpiredAccessPolicySweeper sweeper = new ExpiredAccessPolicySweeper(accessPolicyDao);
+        sweeper.setTimeBudgetMillis(30000L);
+        return sweeper;
+    }
+
+    /**
+     * Returns the object identity retrieval strategy.
+     *
+     * @return the object identity retrieval strategy
+     */
+    @Bean
+    public ObjectIdentityRetrievalStrategyImpl objectIdentityRetrievalStrategy() {
+        return new ObjectIdentityRetrievalStrategyImpl();
+    }
+
+    /**
+     * Returns the parser caching and timing authorization expressions, evaluating the common ones without SpEL.
+     *
+     * @return the authorization expression parser
+     */
+    @Bean
+    public AuthorizationExpressionParser authorizationExpressionParser() {
+        return new AuthorizationExpressionParser();
+    }
+
+    /**
+     * Returns the permission evaluator checking the permissions against the lazily created ACL service.
+     *
+     * @param aclService proxy of the ACL service, resolved on first use
+     * @return the permission evaluator
+     */
+    @Bean
+    public AclPermissionEvaluator aclPermissionEvaluator(@Lazy AclService aclService) {
+        final AclPermissionEvaluator aclPermissionEvaluator = new AclPermissionEvaluator(aclService);
+        aclPermissionEvaluator.setPermissionFactory(accessPermissionFactory());
+        aclPermissionEvaluator.setSidRetrievalStrategy(sidRetrievalStrategy());
+        return aclPermissionEvaluator;
+    }
+
+    /**
+     * Returns the SID retrieval strategy resolving the SIDs of an authentication once, not on every permission check.
+     *
+     * @return the SID retrieval strategy
+     */
+    @Bean
+    public CachingSidRetrievalStrategy sidRetrievalStrategy() {
+        return new CachingSidRetrievalStrategy();
+    }
+
+    /**
+     * Returns the permission factory.
+     *
+     * @return the permission factory
+     */
+    @Bean
+    public AccessPermissionFactory accessPermissionFactory() {
+        return new AccessPermissionFactory();
+    }
+
+}
@@ -0,0 +1,354 @@
+package acl.dao;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import acl.model.AccessPolicy;
+import acl.model.AccessPolicy.SecurityIdentity;
+
+/**
+ * Per-instance cache of access policies keyed by security identity and domain object. Empty results are cached as
+ * well, so objects without any grant for a security identity are not queried again. The cache is bounded and evicts
+ * the least recently used entries. Each entry remembers the version stamp of its security identity, so it can be
+ * revalidated against the stamp in the datastore when the policies may have been changed by another instance. The
+ * shards of a sharded security identity have stamps of their own, so they are cached separately, always under the
+ * shard the policies are parented under.
+ *
+ * @author Petr Giecek
+ */
+public class AccessPolicyCache {
+
+    /**
+     * Cache key.
+     */
+    private static final class EntryKey {
+
+        /** Security identity including the shard, see {@link SecurityIdentity#getSid()}. */
+        private final String sid;
+
+        /** Domain object type. */
+        private final String objectType;
+
+        /** Domain object ID. */
+        private final Long objectId;
+
+        /**
+         * Creates {@link EntryKey} with the specified details.
+         *
+         * @param sid the security identity including the shard
+         * @param objectType the domain object type
+         * @param objectId the domain object ID
+         */
+        EntryKey(String sid, String objectType, Long objectId) {
+            this.sid = sid;
+            this.objectType = objectType;
+            this.objectId = objectId;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final EntryKey that = (EntryKey) o;
+
+            return this.sid.equals(that.sid) && this.objectType.equals(that.objectType)
+                    && this.objectId.equals(that.objectId);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            int result = this.sid.hashCode();
+            result = 31 * result + this.objectType.hashCode();
+            result = 31 * result + this.objectId.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * Cache entry.
+     */
+    public static final class Entry {
+
+        /** The cached access policies. */
+        private final List<AccessPolicy> accessPolicies;
+
+        /** Version stamp of the security identity the policies were loaded at. */
+        private final long version;
+
+        /** Time the entry was loaded in milliseconds. */
+        private final long loadedAt;
+
+        /**
+         * Creates {@link Entry} with the specified details.
+         *
+         * @param accessPolicies the cached access policies
+         * @param version version stamp of the security identity the policies were loaded at
+         * @param loadedAt time the entry was loaded in milliseconds
+         */
+        Entry(List<AccessPolicy> accessPolicies, long version, long loadedAt) {
+            this.accessPolicies = accessPolicies;
+            this.version = version;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * Returns the cached access policies.
+         *
+         * @return the cached access policies, empty list if there are none
+         */
+        public List<AccessPolicy> getAccessPolicies() {
+            return this.accessPolicies;
+        }
+
+        /**
+         * Returns the version stamp of the security identity the policies were loaded at. The policies are up-to-date
+         * as long as the stamp has not changed.
+         *
+         * @return the version stamp
+         */
+        public long getVersion() {
+            return this.version;
+        }
+    }
+
+    /** Maximum number of entries. */
+    private final int maxEntries;
+
+    /** Time to live of an entry in milliseconds. */
+    private final long timeToLiveMillis;
+
+    /** Cache entries in access order. */
+    private final Map<EntryKey, Entry> entries;
+
+    /** Number of evicted entries, guarded by {@link #entries}. */
+    private long evictionCount;
+
+    /**
+     * Security identities, including the shard, whose policies are all cached, so a missing entry means no policy.
+     * Values are entries without policies standing for such missing entries.
+     */
+    private final Map<String, Entry> completeSids = new ConcurrentHashMap<>();
+
+    /**
+     * Version stamps last read per security identity including the shard, so a query can be started before the
+     * current stamp is read and still be cached if the stamp has not changed. Bounded by the maximum number of entries.
+     */
+    private final Map<String, Long> knownVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates {@link AccessPolicyCache} with the specified details.
+     *
+     * @param maxEntries the maximum number of entries
+     * @param timeToLiveMillis the time to live of an entry in milliseconds
+     */
+    public AccessPolicyCache(final int maxEntries, long timeToLiveMillis) {
+        this.maxEntries = maxEntries;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.entries = new LinkedHashMap<EntryKey, Entry>(16, 0.75f, true) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<EntryKey, Entry> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                // a missing entry no longer means no policy
+                AccessPolicyCache.this.completeSids.remove(eldest.getKey().sid);
+                AccessPolicyCache.this.evictionCount++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached access policies of the security identity for the domain object.
+     *
+     * @param securityIdentity the security identity, the shard the policies are parented under if sharded
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the cache entry or {@code null} if not cached
+     */
+    public Entry get(SecurityIdentity securityIdentity, String objectType, Long objectId) {
+        final long now = System.currentTimeMillis();
+        final EntryKey key = new EntryKey(securityIdentity.getSid(), objectType, objectId);
+
+        final Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry != null && now - entry.loadedAt <= this.timeToLiveMillis) {
+            return entry;
+        }
+
+        final Entry missingEntry = this.completeSids.get(securityIdentity.getSid());
+        if (missingEntry != null) {
+            if (now - missingEntry.loadedAt <= this.timeToLiveMillis) {
+                return missingEntry;
+            }
+            this.completeSids.remove(securityIdentity.getSid());
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the cached access policies of the security identity for the domain object, even if the entry outlived
+     * its time to live. Used to serve possibly outdated policies while the datastore is overloaded.
+     *
+     * @param securityIdentity the security identity, the shard the policies are parented under if sharded
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @param maxAgeMillis the maximum age of the entry in milliseconds
+     * @return the cache entry or {@code null} if not cached within the maximum age
+     */
+    public Entry getStale(SecurityIdentity securityIdentity, String objectType, Long objectId, long maxAgeMillis) {
+        final long now = System.currentTimeMillis();
+        final EntryKey key = new EntryKey(securityIdentity.getSid(), objectType, objectId);
+
+        final Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry != null && now - entry.loadedAt <= maxAgeMillis) {
+            return entry;
+        }
+
+        final Entry missingEntry = this.completeSids.get(securityIdentity.getSid());
+        if (missingEntry != null && now - missingEntry.loadedAt <= maxAgeMillis) {
+            return missingEntry;
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches the access policies of the security identity for the domain object.
+     *
+     * @param securityIdentity the security identity, the shard the policies are parented under if sharded
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @param accessPolicies the access policies, empty list if there are none
+     * @param version version stamp of the security identity read before the policies were loaded
+     */
+    public void put(SecurityIdentity securityIdentity, String objectType, Long objectId,
+            List<AccessPolicy> accessPolicies, long version) {
+        final EntryKey key = new EntryKey(securityIdentity.getSid(), objectType, objectId);
+        final Entry entry = new Entry(Collections.unmodifiableList(accessPolicies), version,
+                System.currentTimeMillis());
+        synchronized (this.entries) {
+            this.entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Marks all policies of the security identity as cached. Must be called only after all its policies were
+     * {@link #put(SecurityIdentity, String, Long, List, long) put} and only if no entry was evicted meanwhile (see
+     * {@link #getEvictionCount()}).
+     *
+     * @param securityIdentity the security identity, the shard the policies are parented under if sharded
+     * @param loadedAt time the policies were loaded in milliseconds
+     * @param version version stamp of the security identity read before the policies were loaded
+     */
+    public void markComplete(SecurityIdentity securityIdentity, long loadedAt, long version) {
+        final List<AccessPolicy> noPolicies = Collections.emptyList();
+        this.completeSids.put(securityIdentity.getSid(), new Entry(noPolicies, version, loadedAt));
+    }
+
+    /**
+     * Returns the version stamp of the security identity read last.
+     *
+     * @param securityIdentity the security identity, the shard the policies are parented under if sharded
+     * @return the version stamp or {@code null} if not read yet
+     */
+    public Long getKnownVersion(SecurityIdentity securityIdentity) {
+        return this.knownVersions.get(securityIdentity.getSid());
+    }
+
+    /**
+     * Remembers the version stamp of the security identity just read.
+     *
+     * @param securityIdentity the security identity, the shard the policies are parented under if sharded
+     * @param version the version stamp
+     */
+    public void putKnownVersion(SecurityIdentity securityIdentity, long version) {
+        if (this.knownVersions.size() >= this.maxEntries) {
+            // the stamps are read again on demand
+            this.knownVersions.clear();
+        }
+        this.knownVersions.put(securityIdentity.getSid(), Long.valueOf(version));
+    }
+
+    /**
+     * Invalidates the cached access policies of the security identity for the domain object.
+     *
+     * @param securityIdentity the security identity, the shard the policies are parented under if sharded
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     */
+    public void invalidate(SecurityIdentity securityIdentity, String objectType, Long objectId) {
+        // a missing entry no longer means no policy
+        this.completeSids.remove(securityIdentity.getSid());
+        synchronized (this.entries) {
+            this.entries.remove(new EntryKey(securityIdentity.getSid(), objectType, objectId));
+        }
+    }
+
+    /**
+     * Invalidates all cached access policies.
+     */
+    public void clear() {
+        this.completeSids.clear();
+        this.knownVersions.clear();
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of cached entries.
+     *
+     * @return the number of cached entries
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * Returns the number of entries evicted so far to keep the cache bounded.
+     *
+     * @return the number of evicted entries
+     */
+    public long getEvictionCount() {
+        synchronized (this.entries) {
+            return this.evictionCount;
+        }
+    }
+
+    /**
+     * Returns the maximum number of entries.
+     *
+     * @return the maximum number of entries
+     */
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+}
@@ -0,0 +1,193 @@
+package acl.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import acl.model.AccessPolicy;
+import acl.model.AccessPolicy.SecurityIdentity;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Preloads the access policies of hot security identities (typically roles every user has, e.g. ROLE_USER) into the
+ * {@link AccessPolicyCache} once the application context is started. On App Engine the context is started by the
+ * warmup request, so a new instance gets warm before it serves users. Warm-up stops when its time budget is used up.
+ *
+ * @author Petr Giecek
+ */
+public class AccessPolicyCacheWarmer implements ApplicationListener<ContextRefreshedEvent> {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(AccessPolicyCacheWarmer.class.getName());
+
+    /** Access policy DAO. */
+    private final AccessPolicyDao accessPolicyDao;
+
+    /** Names of the hot security identities in the form of {type}:{identity}. */
+    private final List<String> securityIdentities;
+
+    /** The time budget in milliseconds. */
+    private final long timeBudgetMillis;
+
+    /** Duration of the last warm-up in milliseconds. */
+    private volatile long lastDurationMillis;
+
+    /** Number of access policies loaded by the last warm-up. */
+    private volatile int lastLoadedCount;
+
+    /**
+     * Creates {@link AccessPolicyCacheWarmer} with the specified details.
+     *
+     * @param accessPolicyDao access policy DAO, must have a cache configured
+     * @param securityIdentities names of the hot security identities in the form of {type}:{identity}
+     * @param timeBudgetMillis the time budget in milliseconds
+     */
+    public AccessPolicyCacheWarmer(AccessPolicyDao accessPolicyDao, List<String> securityIdentities,
+            long timeBudgetMillis) {
+        this.accessPolicyDao = accessPolicyDao;
+        this.securityIdentities = securityIdentities;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        // warm up only once for the root context and only where the datastore is accessible
+        if (event.getApplicationContext().getParent() != null || ApiProxy.getCurrentEnvironment() == null) {
+            return;
+        }
+        // the context is started outside of the Objectify filter
+        try {
+            ObjectifySession.run(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return warmUp();
+                }
+            });
+        }
+        catch (Exception e) {
+            // warm-up is an optimization only, the instance works without it
+            LOGGER.log(Level.WARNING, "ACL cache warm-up failed", e);
+        }
+    }
+
+    /**
+     * Preloads the access policies of the hot security identities.
+     *
+     * @return the number of loaded access policies
+     */
+    public int warmUp() {
+        final AccessPolicyCache cache = this.accessPolicyDao.getCache();
+        if (cache == null) {
+            return 0;
+        }
+
+        final long start = System.currentTimeMillis();
+        final long deadline = start + this.timeBudgetMillis;
+
+        int loadedCount = 0;
+        for (String name : this.securityIdentities) {
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            loadedCount += warmUp(cache, SecurityIdentity.valueOf(name), deadline);
+        }
+
+        this.lastDurationMillis = System.currentTimeMillis() - start;
+        this.lastLoadedCount = loadedCount;
+
+        LOGGER.info(String.format(
+                "ACL cache warm-up loaded %1$d access policies for %2$d security identities in %3$d ms",
+                Integer.valueOf(loadedCount), Integer.valueOf(this.securityIdentities.size()),
+                Long.valueOf(this.lastDurationMillis)));
+
+        return loadedCount;
+    }
+
+    /**
+     * Preloads the access policies of a single security identity.
+     *
+     * @param cache the cache to load the policies into
+     * @param securityIdentity the security identity
+     * @param deadline the time the warm-up must stop in milliseconds
+     * @return the number of loaded access policies
+     */
+    private int warmUp(AccessPolicyCache cache, SecurityIdentity securityIdentity, long deadline) {
+        final long loadedAt = System.currentTimeMillis();
+        final long evictionCount = cache.getEvictionCount();
+        final List<SecurityIdentity> parents = this.accessPolicyDao.getParents(securityIdentity);
+        final Map<SecurityIdentity, Long> versions = this.accessPolicyDao.getVersions(parents);
+
+        // group the policies by domain object, all policies of a domain object have the same parent
+        final Map<String, Map<Long, List<AccessPolicy>>> policiesByObject = new HashMap<>();
+        int loadedCount = 0;
+        boolean complete = true;
+
+        for (AccessPolicy accessPolicy : this.accessPolicyDao.getForSecurityIdentity(securityIdentity)) {
+            if (System.currentTimeMillis() >= deadline || loadedCount >= cache.getMaxEntries()) {
+                complete = false;
+                break;
+            }
+
+            Map<Long, List<AccessPolicy>> policiesOfType = policiesByObject.get(accessPolicy.getObjectType());
+            if (policiesOfType == null) {
+                policiesOfType = new HashMap<>();
+                policiesByObject.put(accessPolicy.getObjectType(), policiesOfType);
+            }
+            List<AccessPolicy> policies = policiesOfType.get(accessPolicy.getObjectId());
+            if (policies == null) {
+                policies = new ArrayList<>();
+                policiesOfType.put(accessPolicy.getObjectId(), policies);
+            }
+            policies.add(accessPolicy);
+            loadedCount++;
+        }
+
+        for (Map.Entry<String, Map<Long, List<AccessPolicy>>> policiesOfType : policiesByObject.entrySet()) {
+            for (Map.Entry<Long, List<AccessPolicy>> policies : policiesOfType.getValue().entrySet()) {
+                final SecurityIdentity parent = policies.getValue().get(0).getSecurityIdentity();
+                cache.put(parent, policiesOfType.getKey(), policies.getKey(), policies.getValue(),
+                        versions.get(parent).longValue());
+            }
+        }
+
+        // objects missing in the cache have no policy for the security identity, unless some were skipped or evicted;
+        // each shard is marked with its own version stamp, as a domain object always maps to the same shard
+        if (complete && cache.getEvictionCount() == evictionCount) {
+            for (SecurityIdentity parent : parents) {
+                cache.markComplete(parent, loadedAt, versions.get(parent).longValue());
+            }
+        }
+
+        return loadedCount;
+    }
+
+    /**
+     * Returns the duration of the last warm-up.
+     *
+     * @return the duration of the last warm-up in milliseconds
+     */
+    public long getLastDurationMillis() {
+        return this.lastDurationMillis;
+    }
+
+    /**
+     * Returns the number of access policies loaded by the last warm-up.
+     *
+     * @return the number of access policies loaded by the last warm-up
+     */
+    public int getLastLoadedCount() {
+        return this.lastLoadedCount;
+    }
+
+}
@@ -1,17 +1,37 @@
 package acl.dao;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import acl.model.AccessPolicy;
 import acl.model.AccessPolicy.SecurityIdentity;
+import acl.model.ObjectAcl;
+import acl.model.VisibilityChunk;
+import acl.util.CollectionUtils;
+import acl.util.Hedger;
 
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.util.DatastoreIntrospector;
+import com.googlecode.objectify.util.ResultCache;
 
 /**
  * Access policy DAO that delegates to Objectify.
@@ -21,26 +41,134 @@ import com.googlecode.objectify.Objectify;
 @Repository
 public class AccessPolicyDao {
 
-    /** Objectify instance. */
-    private final Objectify objectify;
-
     /** Type of entities this DAO persists */
     private final Class<AccessPolicy> entityType;
 
+    /** Cache of access policies, {@code null} if every lookup queries the datastore. */
+    private AccessPolicyCache cache;
+
+    /** Sharded layout of access policies, {@code null} if no security identity is sharded. */
+    private SecurityIdentitySharding sharding;
+
+    /** Hedger of the per-SID queries, {@code null} if the queries are not hedged. */
+    private Hedger hedger;
+
+    /** Whether the denormalized {@link ObjectAcl} documents are maintained. */
+    private boolean objectAclsEnabled;
+
     /**
      * Creates {@link AccessPolicyDao}.
-     * 
-     * @param objectify the {@link Objectify} instance
      */
-    @Autowired
-    public AccessPolicyDao(Objectify objectify) {
-        this.objectify = objectify;
+    public AccessPolicyDao() {
         this.entityType = AccessPolicy.class;
     }
 
     /**
-     * Returns the access policies that apply for the passed security identity and domain object. Must return strongly
-     * consistent results.
+     * Returns the {@link Objectify} session bound to the current thread. The session is begun per request by
+     * {@link com.googlecode.objectify.ObjectifyFilter}, or by {@link ObjectifySession} outside of requests, so
+     * entities loaded by key are served from its cache for the rest of the request.
+     *
+     * @return the {@link Objectify} session bound to the current thread
+     */
+    protected Objectify ofy() {
+        return ObjectifyService.ofy();
+    }
+
+    /**
+     * Sets the cache of access policies used by {@link #getForDomainObject(List, String, Long)}.
+     *
+     * @param cache the cache of access policies or {@code null} to query the datastore on every lookup
+     */
+    @Autowired(required = false)
+    public void setCache(AccessPolicyCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the cache of access policies.
+     *
+     * @return the cache of access policies or {@code null} if not configured
+     */
+    public AccessPolicyCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Sets the sharded layout of access policies.
+     *
+     * @param sharding the sharded layout or {@code null} if no security identity is sharded
+     */
+    @Autowired(required = false)
+    public void setSharding(SecurityIdentitySharding sharding) {
+        this.sharding = sharding;
+    }
+
+    /**
+     * Enables hedging of the per-SID queries of {@link #getForDomainObjectAsync(List, String, Long)}, so a single slow
+     * query does not hold up the whole lookup. The queries then run on the worker threads of the hedger.
+     *
+     * @param hedger the hedger or {@code null} if the queries are not hedged
+     */
+    public void setHedger(Hedger hedger) {
+        this.hedger = hedger;
+    }
+
+    /**
+     * Returns the hedger of the per-SID queries.
+     *
+     * @return the hedger or {@code null} if the queries are not hedged
+     */
+    public Hedger getHedger() {
+        return this.hedger;
+    }
+
+    /**
+     * Enables maintaining the denormalized {@link ObjectAcl} documents on every change of the access policies, so the
+     * full ACL of a domain object is a single get (see {@link #getForObject(String, Long)}). Documents of the policies
+     * stored before must be built by {@link ObjectAclReconciler}.
+     *
+     * @param objectAclsEnabled whether the documents are maintained
+     */
+    public void setObjectAclsEnabled(boolean objectAclsEnabled) {
+        this.objectAclsEnabled = objectAclsEnabled;
+    }
+
+    /**
+     * Returns whether the denormalized {@link ObjectAcl} documents are maintained.
+     *
+     * @return {@code true} if the documents are maintained
+     */
+    public boolean isObjectAclsEnabled() {
+        return this.objectAclsEnabled;
+    }
+
+    /**
+     * Returns the parent of the access policies of the security identity for the domain object.
+     *
+     * @param securityIdentity the security identity
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the parent of the access policies
+     */
+    private SecurityIdentity getParent(SecurityIdentity securityIdentity, String objectType, Long objectId) {
+        return this.sharding == null ? securityIdentity
+                : this.sharding.getParent(securityIdentity, objectType, objectId);
+    }
+
+    /**
+     * Returns all parents of the access policies of the security identity.
+     *
+     * @param securityIdentity the security identity
+     * @return all parents of the access policies, the security identity itself unless it is sharded
+     */
+    public List<SecurityIdentity> getParents(SecurityIdentity securityIdentity) {
+        return this.sharding == null ? Collections.singletonList(securityIdentity)
+                : this.sharding.getParents(securityIdentity);
+    }
+
+    /**
+     * Returns the access policies that apply for the passed security identity and domain object. Always queries the
+     * datastore, bypassing the cache. Must return strongly consistent results.
      *
      * @param securityIdentity the security identity
      * @param objectType the object type
@@ -49,11 +177,13 @@ public class AccessPolicyDao {
      *          found
      */
     public List<AccessPolicy> getForDomainObject(SecurityIdentity securityIdentity, String objectType, Long objectId) {
-        return this.objectify.load().type(this.entityType)
-                .ancestor(securityIdentity)
+        final List<AccessPolicy> results = ofy().load().type(this.entityType)
+                .ancestor(getParent(securityIdentity, objectType, objectId))
                 .filter("objectType", objectType)
                 .filter("objectId", objectId)
                 .list();
+        QueryAccounting.recordEntitiesRead(results.size());
+        return results;
     }
 
     /**
@@ -68,48 +198,938 @@ public class AccessPolicyDao {
      */
     public List<AccessPolicy> getForDomainObject(List<SecurityIdentity> securityIdentities, String objectType,
             Long objectId) {
+        return getForDomainObjectAsync(securityIdentities, objectType, objectId).now();
+    }
 
-        final List<QueryResultIterable<AccessPolicy>> asyncResults = new ArrayList<QueryResultIterable<AccessPolicy>>();
+    /**
+     * Returns the cached access policies that apply for the passed security identities and domain object, without
+     * touching the datastore. The policies may be outdated, so this is meant only for serving lookups while the
+     * datastore is overloaded.
+     *
+     * @param securityIdentities the security identities
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @param maxAgeMillis the maximum age of the cached policies in milliseconds
+     * @return the cached access policies or {@code null} if the policies of any security identity are not cached
+     *          within the maximum age
+     */
+    public List<AccessPolicy> getCachedForDomainObject(List<SecurityIdentity> securityIdentities, String objectType,
+            Long objectId, long maxAgeMillis) {
+        if (this.cache == null) {
+            return null;
+        }
+
+        final List<AccessPolicy> cachedResults = new ArrayList<AccessPolicy>();
+        for (SecurityIdentity securityIdentity : securityIdentities) {
+            final AccessPolicyCache.Entry cachedResult = this.cache.getStale(
+                    getParent(securityIdentity, objectType, objectId), objectType, objectId, maxAgeMillis);
+            if (cachedResult == null) {
+                return null;
+            }
+            cachedResults.addAll(cachedResult.getAccessPolicies());
+        }
+        return cachedResults;
+    }
+
+    /**
+     * Returns the access policies of all security identities on the domain object. If the {@link ObjectAcl} documents
+     * are maintained, it is a single strongly consistent get of the document, otherwise a query across the entity
+     * groups of the security identities, which is only eventually consistent.
+     *
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @return the access policies on the domain object or empty list if none found
+     */
+    public List<AccessPolicy> getForObject(String objectType, Long objectId) {
+        if (this.objectAclsEnabled) {
+            // a fresh session, so a document repaired meanwhile is not served from the cache of the current one
+            final ObjectAcl objectAcl = ofy().factory().begin().load().key(ObjectAcl.key(objectType, objectId)).now();
+            if (objectAcl == null) {
+                return new ArrayList<AccessPolicy>();
+            }
+            QueryAccounting.recordEntitiesRead(1);
+            return objectAcl.getAccessPolicies();
+        }
+        final List<AccessPolicy> results = queryForObject(objectType, objectId);
+        QueryAccounting.recordEntitiesRead(results.size());
+        return results;
+    }
+
+    /**
+     * Queries the access policies of all security identities on the domain object. The query spans the entity groups
+     * of the security identities, so it is only eventually consistent.
+     *
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @return the access policies on the domain object or empty list if none found
+     */
+    List<AccessPolicy> queryForObject(String objectType, Long objectId) {
+        return ofy().load().type(this.entityType)
+                .filter("objectType", objectType)
+                .filter("objectId", objectId)
+                .list();
+    }
+
+    /**
+     * Starts loading the access policies that apply for the passed security identities and domain object. The queries
+     * run asynchronously, the returned result blocks only when {@link Result#now()} is called. Must return strongly
+     * consistent results.
+     * <p>
+     * If a cache is configured, the version stamps of the security identities, or of the shards the domain object maps
+     * to, are read asynchronously in a single batch get and resolved along with the queries. A security identity with
+     * a cache entry is queried only if the entry turns out to be outdated, one without an entry is queried right away.
+     * The policies of a query are cached only under a stamp known to be read before the query: the stamp of an
+     * identity never read by this instance is read first, so its query starts once the result is resolved, and the
+     * policies of a query started right away are cached only if the stamp has not changed since it was last read.
+     * </p>
+     *
+     * @param securityIdentities the security identities
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @return the pending access policies that apply for the passed security identities and domain object or empty
+     *          list if none found
+     */
+    public Result<List<AccessPolicy>> getForDomainObjectAsync(List<SecurityIdentity> securityIdentities,
+            final String objectType, final Long objectId) {
 
+        final List<SecurityIdentity> parents = new ArrayList<SecurityIdentity>(securityIdentities.size());
         for (SecurityIdentity securityIdentity : securityIdentities) {
+            parents.add(getParent(securityIdentity, objectType, objectId));
+        }
+
+        if (this.cache == null) {
+            final Result<List<List<AccessPolicy>>> asyncResults = startQuery(parents, objectType, objectId);
+            return new ResultCache<List<AccessPolicy>>() {
+
+                /** Serial version UID. */
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected List<AccessPolicy> nowUncached() {
+                    final List<AccessPolicy> completeResults = new ArrayList<AccessPolicy>();
+                    for (List<AccessPolicy> partialResult : asyncResults.now()) {
+                        completeResults.addAll(partialResult);
+                    }
+                    return completeResults;
+                }
+            };
+        }
+
+        // issued first, so a stamp known before is not older than the queries started right away
+        final Result<Map<SecurityIdentity, Long>> asyncVersions = startReadingVersions(parents);
+
+        final List<AccessPolicyCache.Entry> cachedResults = new ArrayList<AccessPolicyCache.Entry>();
+        final boolean[] queried = new boolean[parents.size()];
+        final List<SecurityIdentity> queriedIdentities = new ArrayList<SecurityIdentity>();
+        final List<Long> knownVersions = new ArrayList<Long>();
+        for (int i = 0; i < parents.size(); i++) {
+            final SecurityIdentity parent = parents.get(i);
+            final AccessPolicyCache.Entry cachedResult = this.cache.get(parent, objectType, objectId);
+            cachedResults.add(cachedResult);
+            final Long knownVersion = this.cache.getKnownVersion(parent);
+            if (cachedResult == null && knownVersion != null) {
+                queried[i] = true;
+                queriedIdentities.add(parent);
+                knownVersions.add(knownVersion);
+            }
+        }
+
+        final Result<List<List<AccessPolicy>>> asyncResults = startQuery(queriedIdentities, objectType, objectId);
+
+        return new ResultCache<List<AccessPolicy>>() {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected List<AccessPolicy> nowUncached() {
+                final AccessPolicyCache cache = AccessPolicyDao.this.cache;
+                final Map<SecurityIdentity, Long> versions = asyncVersions.now();
+                for (Map.Entry<SecurityIdentity, Long> version : versions.entrySet()) {
+                    cache.putKnownVersion(version.getKey(), version.getValue().longValue());
+                }
+
+                final List<AccessPolicy> completeResults = new ArrayList<AccessPolicy>();
+                final List<SecurityIdentity> outdatedIdentities = new ArrayList<SecurityIdentity>();
+                for (int i = 0; i < parents.size(); i++) {
+                    final AccessPolicyCache.Entry cachedResult = cachedResults.get(i);
+                    final SecurityIdentity parent = parents.get(i);
+                    if (cachedResult != null && cachedResult.getVersion() == versions.get(parent).longValue()) {
+                        completeResults.addAll(cachedResult.getAccessPolicies());
+                    }
+                    else if (!queried[i]) {
+                        outdatedIdentities.add(parent);
+                    }
+                }
+
+                final List<List<AccessPolicy>> partialResults = asyncResults.now();
+                for (int i = 0; i < partialResults.size(); i++) {
+                    final SecurityIdentity parent = queriedIdentities.get(i);
+                    final long version = versions.get(parent).longValue();
+                    if (knownVersions.get(i).longValue() == version) {
+                        // unchanged since read before the query, so the query is not older than the stamp
+                        cache.put(parent, objectType, objectId, partialResults.get(i), version);
+                    }
+                    completeResults.addAll(partialResults.get(i));
+                }
+
+                // the stamps are read by now, the policies queried from now on can be cached under them
+                final List<List<AccessPolicy>> outdatedResults = startQuery(outdatedIdentities, objectType,
+                        objectId).now();
+                for (int i = 0; i < outdatedResults.size(); i++) {
+                    final SecurityIdentity parent = outdatedIdentities.get(i);
+                    cache.put(parent, objectType, objectId, outdatedResults.get(i),
+                            versions.get(parent).longValue());
+                    completeResults.addAll(outdatedResults.get(i));
+                }
+                return completeResults;
+            }
+        };
+    }
+
+    /**
+     * Starts queries for the access policies under the passed parents that apply for the domain object, hedged if a
+     * {@link Hedger} is set.
+     *
+     * @param parents the parents of the access policies
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @return the pending access policies per parent
+     */
+    private Result<List<List<AccessPolicy>>> startQuery(List<SecurityIdentity> parents, String objectType,
+            Long objectId) {
+        return this.hedger == null ? query(parents, objectType, objectId)
+                : queryHedged(parents, objectType, objectId);
+    }
+
+    /**
+     * Starts asynchronous queries for the access policies under the passed parents that apply for the domain object.
+     *
+     * @param parents the parents of the access policies
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @return the pending access policies per parent
+     */
+    private Result<List<List<AccessPolicy>>> query(List<SecurityIdentity> parents, String objectType,
+            Long objectId) {
+        final List<QueryResultIterable<AccessPolicy>> asyncResults = new ArrayList<QueryResultIterable<AccessPolicy>>();
+        for (SecurityIdentity parent : parents) {
             // start an asynchronous query
-            final QueryResultIterable<AccessPolicy> asyncResult = this.objectify.load().type(this.entityType)
-                    .ancestor(securityIdentity)
+            asyncResults.add(ofy().load().type(this.entityType)
+                    .ancestor(parent)
                     .filter("objectType", objectType)
                     .filter("objectId", objectId)
-                    .iterable();
+                    .iterable());
+        }
+
+        return new ResultCache<List<List<AccessPolicy>>>() {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
 
-            asyncResults.add(asyncResult);
+            @Override
+            protected List<List<AccessPolicy>> nowUncached() {
+                final List<List<AccessPolicy>> results = new ArrayList<List<AccessPolicy>>(asyncResults.size());
+                int entityCount = 0;
+                for (QueryResultIterable<AccessPolicy> asyncResult : asyncResults) {
+                    final List<AccessPolicy> result = collectAsyncResult(asyncResult);
+                    results.add(result);
+                    entityCount += result.size();
+                }
+                QueryAccounting.recordEntitiesRead(entityCount);
+                return results;
+            }
+        };
+    }
+
+    /**
+     * Starts hedged queries for the access policies under the passed parents that apply for the domain object. Each
+     * query runs on a worker thread of the {@link Hedger}, a query slower than the hedge delay is issued once more.
+     *
+     * @param parents the parents of the access policies
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @return the pending access policies per parent
+     */
+    private Result<List<List<AccessPolicy>>> queryHedged(List<SecurityIdentity> parents, final String objectType,
+            final Long objectId) {
+        final List<Callable<List<AccessPolicy>>> queries = new ArrayList<Callable<List<AccessPolicy>>>();
+        for (final SecurityIdentity parent : parents) {
+            queries.add(new DatastoreCallable<List<AccessPolicy>>(new Callable<List<AccessPolicy>>() {
+                @Override
+                public List<AccessPolicy> call() {
+                    return ofy().load().type(AccessPolicyDao.this.entityType)
+                            .ancestor(parent)
+                            .filter("objectType", objectType)
+                            .filter("objectId", objectId)
+                            .list();
+                }
+            }));
         }
 
-        return collectAsyncResults(asyncResults);
+        final Hedger.Batch<List<AccessPolicy>> batch = this.hedger.start(queries);
+
+        return new ResultCache<List<List<AccessPolicy>>>() {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected List<List<AccessPolicy>> nowUncached() {
+                try {
+                    final List<List<AccessPolicy>> results = batch.get();
+                    int entityCount = 0;
+                    for (List<AccessPolicy> result : results) {
+                        entityCount += result.size();
+                    }
+                    QueryAccounting.recordEntitiesRead(entityCount);
+                    return results;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while reading access policies", e);
+                }
+                catch (RuntimeException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException("Unable to read access policies", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the current version stamps of the passed security identities using a single batch get. The stamps are
+     * always read from the datastore, never from the session cache.
+     *
+     * @param securityIdentities the security identities
+     * @return a map with the security identities as keys and respective version stamps as values
+     */
+    public Map<SecurityIdentity, Long> getVersions(Collection<SecurityIdentity> securityIdentities) {
+        return startReadingVersions(securityIdentities).now();
+    }
+
+    /**
+     * Starts reading the current version stamps of the passed security identities using a single batch get. The get
+     * runs asynchronously, the returned result blocks only when {@link Result#now()} is called. The stamps are always
+     * read from the datastore, never from the session cache.
+     *
+     * @param securityIdentities the security identities
+     * @return the pending map with the security identities as keys and respective version stamps as values
+     */
+    private Result<Map<SecurityIdentity, Long>> startReadingVersions(
+            final Collection<SecurityIdentity> securityIdentities) {
+        final List<Key<SecurityIdentity>> keys = new ArrayList<Key<SecurityIdentity>>(securityIdentities.size());
+        for (SecurityIdentity securityIdentity : securityIdentities) {
+            keys.add(securityIdentity.asKey());
+        }
+
+        // a fresh session, so the stamps are not served from the cache of the current one; the get starts right away
+        final Map<Key<SecurityIdentity>, SecurityIdentity> stored = ofy().factory().begin().load().keys(keys);
+
+        return new ResultCache<Map<SecurityIdentity, Long>>() {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Map<SecurityIdentity, Long> nowUncached() {
+                QueryAccounting.recordEntitiesRead(stored.size());
+                final Map<SecurityIdentity, Long> versions = new HashMap<SecurityIdentity, Long>();
+                for (SecurityIdentity securityIdentity : securityIdentities) {
+                    final SecurityIdentity storedIdentity = stored.get(securityIdentity.asKey());
+                    versions.put(securityIdentity,
+                            Long.valueOf(storedIdentity == null ? 0L : storedIdentity.getVersion()));
+                }
+                return versions;
+            }
+        };
+    }
+
+    /**
+     * Returns all access policies of the passed security identity. The results are fetched in batches as the returned
+     * iterable is consumed, the shards of a sharded security identity are queried in parallel. Returns strongly
+     * consistent results.
+     *
+     * @param securityIdentity the security identity
+     * @return the access policies of the passed security identity
+     */
+    public Iterable<AccessPolicy> getForSecurityIdentity(SecurityIdentity securityIdentity) {
+        final List<Iterable<AccessPolicy>> asyncResults = new ArrayList<Iterable<AccessPolicy>>();
+        for (SecurityIdentity parent : getParents(securityIdentity)) {
+            // start an asynchronous query
+            asyncResults.add(ofy().load().type(this.entityType)
+                    .ancestor(parent)
+                    .chunk(500)
+                    .iterable());
+        }
+        return asyncResults.size() == 1 ? asyncResults.get(0) : CollectionUtils.concat(asyncResults);
     }
 
     /**
-     * Collects results from several asynchronous queries.
+     * Collects results from an asynchronous query.
      * 
-     * @param results the results from several asynchronous queries
-     * @return the collected results in a single list
+     * @param result the result from an asynchronous query
+     * @return the collected results in a list
      */
-    private static List<AccessPolicy> collectAsyncResults(List<QueryResultIterable<AccessPolicy>> results) {
+    private static List<AccessPolicy> collectAsyncResult(QueryResultIterable<AccessPolicy> result) {
         final List<AccessPolicy> completeResults = new ArrayList<AccessPolicy>();
-        for (QueryResultIterable<AccessPolicy> partialResult : results) {
-            for (AccessPolicy accessPolicy : partialResult) {
-                completeResults.add(accessPolicy);
-            }
+        for (AccessPolicy accessPolicy : result) {
+            completeResults.add(accessPolicy);
         }
         return completeResults;
     }
     
     /**
-     * Store AccessPolicy entity
+     * Returns the IDs of the candidate domain objects any of the security identities has been granted any of the
+     * permissions on, using the visibility index. Loads only the index chunks covering the candidates in a single batch
+     * get. Grants expired but not swept yet are left out. Returns strongly consistent results.
+     *
+     * @param securityIdentities the security identities
+     * @param objectType the domain object type
+     * @param permissions the permissions
+     * @param candidateIds the IDs of the candidate domain objects
+     * @return the IDs of the visible candidates in the order of the candidates
+     */
+    public List<Long> getVisibleObjectIds(List<SecurityIdentity> securityIdentities, String objectType,
+            Collection<String> permissions, List<Long> candidateIds) {
+        final Set<Long> chunkNumbers = new LinkedHashSet<Long>();
+        for (Long candidateId : candidateIds) {
+            chunkNumbers.add(Long.valueOf(VisibilityChunk.chunkOf(candidateId.longValue())));
+        }
+
+        final List<Key<VisibilityChunk>> keys = new ArrayList<Key<VisibilityChunk>>();
+        for (SecurityIdentity securityIdentity : securityIdentities) {
+            for (SecurityIdentity parent : getParents(securityIdentity)) {
+                for (String permission : permissions) {
+                    for (Long chunkNumber : chunkNumbers) {
+                        keys.add(VisibilityChunk.key(parent, objectType, permission, chunkNumber.longValue()));
+                    }
+                }
+            }
+        }
+
+        final Collection<VisibilityChunk> chunks = ofy().load().keys(keys).values();
+        QueryAccounting.recordEntitiesRead(chunks.size());
+        final Map<Long, BitSet> bitsByChunk = union(chunks, System.currentTimeMillis());
+
+        final List<Long> visibleIds = new ArrayList<Long>();
+        for (Long candidateId : candidateIds) {
+            final BitSet bits = bitsByChunk.get(Long.valueOf(VisibilityChunk.chunkOf(candidateId.longValue())));
+            if (bits != null && bits.get((int) (candidateId.longValue() % VisibilityChunk.CHUNK_SIZE))) {
+                visibleIds.add(candidateId);
+            }
+        }
+        return visibleIds;
+    }
+
+    /**
+     * Returns the IDs of all domain objects of the type any of the security identities has been granted any of the
+     * permissions on, using the visibility index. Grants expired but not swept yet are left out. Returns strongly
+     * consistent results.
+     *
+     * @param securityIdentities the security identities
+     * @param objectType the domain object type
+     * @param permissions the permissions
+     * @return the IDs of the visible domain objects in ascending order
+     */
+    public List<Long> getVisibleObjectIds(List<SecurityIdentity> securityIdentities, String objectType,
+            Collection<String> permissions) {
+        final List<Iterable<VisibilityChunk>> asyncResults = new ArrayList<Iterable<VisibilityChunk>>();
+        for (SecurityIdentity securityIdentity : securityIdentities) {
+            for (SecurityIdentity parent : getParents(securityIdentity)) {
+                for (String permission : permissions) {
+                    // start an asynchronous query
+                    asyncResults.add(ofy().load().type(VisibilityChunk.class)
+                            .ancestor(parent)
+                            .filter("objectType", objectType)
+                            .filter("permission", permission)
+                            .iterable());
+                }
+            }
+        }
+
+        final Map<Long, BitSet> bitsByChunk = new TreeMap<Long, BitSet>(union(CollectionUtils.concat(asyncResults),
+                System.currentTimeMillis()));
+
+        final List<Long> visibleIds = new ArrayList<Long>();
+        for (Map.Entry<Long, BitSet> bits : bitsByChunk.entrySet()) {
+            final long firstId = bits.getKey().longValue() * VisibilityChunk.CHUNK_SIZE;
+            for (int bit = bits.getValue().nextSetBit(0); bit >= 0; bit = bits.getValue().nextSetBit(bit + 1)) {
+                visibleIds.add(Long.valueOf(firstId + bit));
+            }
+        }
+        return visibleIds;
+    }
+
+    /**
+     * Unions the bitmaps of the unexpired domain object IDs of the visibility index chunks covering the same IDs.
+     *
+     * @param chunks the chunks
+     * @param now the current time in milliseconds since the epoch
+     * @return a map with chunk numbers as keys and the unions as values
+     */
+    private static Map<Long, BitSet> union(Iterable<VisibilityChunk> chunks, long now) {
+        final Map<Long, BitSet> bitsByChunk = new HashMap<Long, BitSet>();
+        for (VisibilityChunk chunk : chunks) {
+            final Long chunkNumber = Long.valueOf(chunk.getChunk());
+            final BitSet bits = bitsByChunk.get(chunkNumber);
+            if (bits == null) {
+                // the bitmap of a loaded chunk is shared with the session cache
+                bitsByChunk.put(chunkNumber, (BitSet) chunk.getBits(now).clone());
+            }
+            else {
+                bits.or(chunk.getBits(now));
+            }
+        }
+        return bitsByChunk;
+    }
+
+    /**
+     * Rebuilds the visibility index of the security identity from its unexpired access policies, e.g. for policies
+     * stored before the index was introduced. Policies of the security identity must not be changed meanwhile.
+     *
+     * @param securityIdentity the security identity
+     * @return the number of indexed access policies
+     */
+    public int rebuildVisibilityIndex(SecurityIdentity securityIdentity) {
+        final Map<Key<VisibilityChunk>, VisibilityChunk> chunks = new HashMap<Key<VisibilityChunk>, VisibilityChunk>();
+        final long now = System.currentTimeMillis();
+        int indexedCount = 0;
+        for (AccessPolicy accessPolicy : getForSecurityIdentity(securityIdentity)) {
+            if (accessPolicy.isExpired(now)) {
+                continue;
+            }
+            final long objectId = accessPolicy.getObjectId().longValue();
+            final Key<VisibilityChunk> key = VisibilityChunk.key(accessPolicy.getSecurityIdentity(),
+                    accessPolicy.getObjectType(), accessPolicy.getPermission(), VisibilityChunk.chunkOf(objectId));
+            VisibilityChunk chunk = chunks.get(key);
+            if (chunk == null) {
+                chunk = new VisibilityChunk(accessPolicy.getSecurityIdentity(), accessPolicy.getObjectType(),
+                        accessPolicy.getPermission(), VisibilityChunk.chunkOf(objectId));
+                chunks.put(key, chunk);
+            }
+            chunk.add(objectId, accessPolicy.getExpiresAt());
+            indexedCount++;
+        }
+        ofy().save().entities(chunks.values()).now();
+        return indexedCount;
+    }
+
+    /**
+     * Store AccessPolicy entity. The version stamp of its security identity is incremented and the visibility index is
+     * updated in the same transaction. So is the {@link ObjectAcl} document, if maintained, where cross-group
+     * transactions are supported, otherwise it is updated right after. The entity is parented under the shard its
+     * domain object maps to if its security identity is sharded.
      * 
      * @param entity entity to save
      * @return the entity key
      */
-    public com.google.appengine.api.datastore.Key save(AccessPolicy entity) {
-        final Key<AccessPolicy> objKey = this.objectify.save().entity(entity).now();
+    public com.google.appengine.api.datastore.Key save(final AccessPolicy entity) {
+        entity.setSecurityIdentity(getParent(entity.getSecurityIdentity(), entity.getObjectType(),
+                entity.getObjectId()));
+
+        final Key<AccessPolicy> objKey = ofy().transact(new Work<Key<AccessPolicy>>() {
+            @Override
+            public Key<AccessPolicy> run() {
+                final SecurityIdentity securityIdentity = getForUpdate(entity.getSecurityIdentity());
+                securityIdentity.incrementVersion();
+
+                final VisibilityChunk chunk = getChunkForUpdate(entity);
+                chunk.add(entity.getObjectId().longValue(), entity.getExpiresAt());
+
+                ofy().save().entities(securityIdentity, entity, chunk).now();
+
+                if (AccessPolicyDao.this.objectAclsEnabled && DatastoreIntrospector.SUPPORTS_XG) {
+                    // a cross-group transaction, the document is updated atomically with the policy
+                    final ObjectAcl objectAcl = getObjectAclForUpdate(entity.getObjectType(), entity.getObjectId());
+                    objectAcl.put(entity);
+                    ofy().save().entity(objectAcl).now();
+                }
+                return Key.create(entity);
+            }
+        });
+        if (this.cache != null) {
+            this.cache.invalidate(entity.getSecurityIdentity(), entity.getObjectType(), entity.getObjectId());
+        }
+        if (!DatastoreIntrospector.SUPPORTS_XG) {
+            updateObjectAcls(Collections.singletonList(entity), true);
+        }
         return objKey.getRaw();
     }
 
+    /**
+     * Saves the access policies in batches, e.g. on a bulk import. The policies are grouped by their parent and each
+     * group is saved in a single transaction, which increments the version stamp of the parent once. Saving a policy
+     * with the ID of a stored one overwrites it, so a batch can be saved again. The {@link ObjectAcl} documents, if
+     * maintained, are updated after the policies, one transaction per domain object, since a batch may span more
+     * domain objects than a transaction can.
+     *
+     * @param entities the access policies
+     */
+    public void saveAll(Collection<AccessPolicy> entities) {
+        final Map<SecurityIdentity, List<AccessPolicy>> entitiesByParent = new LinkedHashMap<>();
+        for (AccessPolicy entity : entities) {
+            final SecurityIdentity parent = getParent(entity.getSecurityIdentity(), entity.getObjectType(),
+                    entity.getObjectId());
+            entity.setSecurityIdentity(parent);
+
+            List<AccessPolicy> parentEntities = entitiesByParent.get(parent);
+            if (parentEntities == null) {
+                parentEntities = new ArrayList<>();
+                entitiesByParent.put(parent, parentEntities);
+            }
+            parentEntities.add(entity);
+        }
+
+        for (final Map.Entry<SecurityIdentity, List<AccessPolicy>> parentEntities : entitiesByParent.entrySet()) {
+            ofy().transact(new Work<Void>() {
+                @Override
+                public Void run() {
+                    final SecurityIdentity securityIdentity = getForUpdate(parentEntities.getKey());
+                    securityIdentity.incrementVersion();
+
+                    // each chunk is loaded once, even if several policies map to it
+                    final Map<Key<VisibilityChunk>, VisibilityChunk> chunks = new LinkedHashMap<>();
+                    for (AccessPolicy entity : parentEntities.getValue()) {
+                        final Key<VisibilityChunk> chunkKey = VisibilityChunk.key(entity.getSecurityIdentity(),
+                                entity.getObjectType(), entity.getPermission(),
+                                VisibilityChunk.chunkOf(entity.getObjectId().longValue()));
+                        VisibilityChunk chunk = chunks.get(chunkKey);
+                        if (chunk == null) {
+                            chunk = getChunkForUpdate(entity);
+                            chunks.put(chunkKey, chunk);
+                        }
+                        chunk.add(entity.getObjectId().longValue(), entity.getExpiresAt());
+                    }
+
+                    final List<Object> toSave = new ArrayList<Object>(parentEntities.getValue());
+                    toSave.add(securityIdentity);
+                    toSave.addAll(chunks.values());
+                    ofy().save().entities(toSave).now();
+                    return null;
+                }
+            });
+        }
+
+        if (this.cache != null) {
+            for (AccessPolicy entity : entities) {
+                this.cache.invalidate(entity.getSecurityIdentity(), entity.getObjectType(), entity.getObjectId());
+            }
+        }
+        updateObjectAcls(entities, true);
+    }
+
+    /**
+     * Returns the keys of access policies expired at the given time, using the index of the expiry times. The query
+     * spans all security identities and so is eventually consistent: a policy deleted just before may still be
+     * returned.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @param limit the maximum number of keys
+     * @return the keys of the expired policies, the earliest expired first
+     */
+    public List<Key<AccessPolicy>> getExpiredKeys(long now, int limit) {
+        return ofy().load().type(this.entityType)
+                .filter("expiresAt <=", Long.valueOf(now))
+                .limit(limit)
+                .keys()
+                .list();
+    }
+
+    /**
+     * Deletes the access policies that are still expired at the given time, e.g. the ones returned by
+     * {@link #getExpiredKeys(long, int)}. The policies are grouped by their parent and each group is deleted in a
+     * single transaction, which increments the version stamp of the parent once and updates the visibility index of the
+     * domain objects: an object stays indexed, with the expiry of the remaining grants, only if another unexpired
+     * policy of the parent grants the same permission on it. The {@link ObjectAcl}
+     * documents, if maintained, are updated afterwards. A policy already deleted, or extended meanwhile, is skipped.
+     *
+     * @param keys the keys of the access policies
+     * @param now the current time in milliseconds since the epoch
+     * @return the number of deleted policies
+     */
+    public int deleteExpired(Collection<Key<AccessPolicy>> keys, final long now) {
+        final Map<Key<SecurityIdentity>, List<Key<AccessPolicy>>> keysByParent = new LinkedHashMap<>();
+        for (Key<AccessPolicy> key : keys) {
+            final Key<SecurityIdentity> parent = key.getParent();
+            List<Key<AccessPolicy>> parentKeys = keysByParent.get(parent);
+            if (parentKeys == null) {
+                parentKeys = new ArrayList<>();
+                keysByParent.put(parent, parentKeys);
+            }
+            parentKeys.add(key);
+        }
+
+        int deletedCount = 0;
+        for (final Map.Entry<Key<SecurityIdentity>, List<Key<AccessPolicy>>> parentKeys : keysByParent.entrySet()) {
+            final List<AccessPolicy> deleted = ofy().transact(new Work<List<AccessPolicy>>() {
+                @Override
+                public List<AccessPolicy> run() {
+                    return deleteExpired(SecurityIdentity.valueOf(parentKeys.getKey().getName()),
+                            parentKeys.getValue(), now);
+                }
+            });
+
+            if (this.cache != null) {
+                for (AccessPolicy entity : deleted) {
+                    this.cache.invalidate(entity.getSecurityIdentity(), entity.getObjectType(), entity.getObjectId());
+                }
+            }
+            updateObjectAcls(deleted, false);
+            deletedCount += deleted.size();
+        }
+        return deletedCount;
+    }
+
+    /**
+     * Deletes the access policies of a single parent that are still expired in the current transaction.
+     *
+     * @param parent the parent of the access policies
+     * @param keys the keys of the access policies
+     * @param now the current time in milliseconds since the epoch
+     * @return the deleted policies
+     */
+    private List<AccessPolicy> deleteExpired(SecurityIdentity parent, List<Key<AccessPolicy>> keys, long now) {
+        final List<AccessPolicy> expired = new ArrayList<>();
+        for (AccessPolicy entity : ofy().load().keys(keys).values()) {
+            if (entity.isExpired(now)) {
+                expired.add(entity);
+            }
+        }
+        if (expired.isEmpty()) {
+            return expired;
+        }
+
+        final SecurityIdentity securityIdentity = getForUpdate(parent);
+        securityIdentity.incrementVersion();
+
+        final Set<Long> expiredIds = new HashSet<>();
+        for (AccessPolicy entity : expired) {
+            expiredIds.add(entity.getId());
+        }
+
+        final Map<Key<VisibilityChunk>, VisibilityChunk> chunks = new LinkedHashMap<>();
+        for (AccessPolicy entity : expired) {
+            final Key<VisibilityChunk> chunkKey = VisibilityChunk.key(entity.getSecurityIdentity(),
+                    entity.getObjectType(), entity.getPermission(),
+                    VisibilityChunk.chunkOf(entity.getObjectId().longValue()));
+            VisibilityChunk chunk = chunks.get(chunkKey);
+            if (chunk == null) {
+                chunk = getChunkForUpdate(entity);
+                chunks.put(chunkKey, chunk);
+            }
+            chunk.remove(entity.getObjectId().longValue());
+            for (AccessPolicy other : getGrantingBesides(entity, expiredIds, now)) {
+                chunk.add(other.getObjectId().longValue(), other.getExpiresAt());
+            }
+        }
+
+        final List<Object> toSave = new ArrayList<Object>(chunks.values());
+        toSave.add(securityIdentity);
+        ofy().save().entities(toSave).now();
+        ofy().delete().entities(expired).now();
+        return expired;
+    }
+
+    /**
+     * Returns the other unexpired access policies of the same parent granting the permission of the access policy on
+     * its domain object, so the visibility index must keep it until they expire. Must be called in a transaction.
+     *
+     * @param accessPolicy the access policy
+     * @param excludedIds the IDs of the access policies not to consider
+     * @param now the current time in milliseconds since the epoch
+     * @return the policies granting the same permission, empty list if none
+     */
+    private List<AccessPolicy> getGrantingBesides(AccessPolicy accessPolicy, Set<Long> excludedIds, long now) {
+        final List<AccessPolicy> granting = new ArrayList<>();
+        for (AccessPolicy other : ofy().load().type(this.entityType)
+                .ancestor(accessPolicy.getSecurityIdentity())
+                .filter("objectType", accessPolicy.getObjectType())
+                .filter("objectId", accessPolicy.getObjectId())) {
+            if (!excludedIds.contains(other.getId()) && !other.isExpired(now)
+                    && other.getPermission().equals(accessPolicy.getPermission())) {
+                granting.add(other);
+            }
+        }
+        return granting;
+    }
+
+    /**
+     * Updates the {@link ObjectAcl} documents of the saved or deleted access policies, one transaction per domain
+     * object. A failure leaves the documents diverged until {@link ObjectAclReconciler} repairs them.
+     *
+     * @param entities the access policies
+     * @param saved {@code true} if the policies were saved, {@code false} if deleted
+     */
+    private void updateObjectAcls(Collection<AccessPolicy> entities, final boolean saved) {
+        if (!this.objectAclsEnabled) {
+            return;
+        }
+
+        final Map<Key<ObjectAcl>, List<AccessPolicy>> entitiesByObject = new LinkedHashMap<>();
+        for (AccessPolicy entity : entities) {
+            final Key<ObjectAcl> key = ObjectAcl.key(entity.getObjectType(), entity.getObjectId());
+            List<AccessPolicy> objectEntities = entitiesByObject.get(key);
+            if (objectEntities == null) {
+                objectEntities = new ArrayList<>();
+                entitiesByObject.put(key, objectEntities);
+            }
+            objectEntities.add(entity);
+        }
+
+        for (final List<AccessPolicy> objectEntities : entitiesByObject.values()) {
+            ofy().transact(new Work<Void>() {
+                @Override
+                public Void run() {
+                    final AccessPolicy first = objectEntities.get(0);
+                    final ObjectAcl objectAcl = getObjectAclForUpdate(first.getObjectType(), first.getObjectId());
+                    for (AccessPolicy entity : objectEntities) {
+                        if (saved) {
+                            objectAcl.put(entity);
+                        }
+                        else {
+                            objectAcl.remove(entity);
+                        }
+                    }
+                    saveObjectAcl(objectAcl);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the stored {@link ObjectAcl} documents of the domain objects of the type in a single batch get, always
+     * read from the datastore, never from the session cache.
+     *
+     * @param objectType the domain object type
+     * @param objectIds the domain object IDs
+     * @return a map with the domain object IDs as keys and the documents as values, without the missing documents
+     */
+    Map<Long, ObjectAcl> getObjectAcls(String objectType, Collection<Long> objectIds) {
+        final List<Key<ObjectAcl>> keys = new ArrayList<>(objectIds.size());
+        for (Long objectId : objectIds) {
+            keys.add(ObjectAcl.key(objectType, objectId));
+        }
+        final Map<Long, ObjectAcl> objectAcls = new HashMap<>();
+        for (ObjectAcl objectAcl : ofy().factory().begin().load().keys(keys).values()) {
+            objectAcls.put(objectAcl.getObjectId(), objectAcl);
+        }
+        return objectAcls;
+    }
+
+    /**
+     * Replaces the {@link ObjectAcl} document of the domain object by copies of the stored access policies in a
+     * transaction, unless it holds exactly those already. The document is replaced only if it has not changed since it
+     * was read along with the policies, otherwise a policy saved meanwhile could be dropped from it.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @param read the policies of the document as read before the stored policies, {@code null} if it was missing
+     * @param accessPolicies the stored access policies of the domain object
+     * @return {@code true} if the document was replaced
+     */
+    boolean replaceObjectAcl(final String objectType, final Long objectId, final List<AccessPolicy> read,
+            final Collection<AccessPolicy> accessPolicies) {
+        return ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                final ObjectAcl stored = ofy().load().key(ObjectAcl.key(objectType, objectId)).now();
+                final boolean changed = stored == null ? read != null : read == null || !stored.isCopyOf(read);
+                if (changed) {
+                    // changed meanwhile, the next reconciliation checks it again
+                    return Boolean.FALSE;
+                }
+                final ObjectAcl objectAcl = stored != null ? stored : new ObjectAcl(objectType, objectId);
+                if (objectAcl.isCopyOf(accessPolicies)) {
+                    return Boolean.FALSE;
+                }
+                objectAcl.replace(accessPolicies);
+                saveObjectAcl(objectAcl);
+                return Boolean.TRUE;
+            }
+        }).booleanValue();
+    }
+
+    /**
+     * Returns the keys of the access policies of all security identities on the domain object. The query spans the
+     * entity groups of the security identities, so it is only eventually consistent.
+     *
+     * @param objectType the object type
+     * @param objectId the object ID
+     * @return the keys of the access policies on the domain object
+     */
+    List<Key<AccessPolicy>> queryKeysForObject(String objectType, Long objectId) {
+        return ofy().load().type(this.entityType)
+                .filter("objectType", objectType)
+                .filter("objectId", objectId)
+                .keys()
+                .list();
+    }
+
+    /**
+     * Returns the stored access policies with the keys in a single batch get, always read from the datastore, never
+     * from the session cache.
+     *
+     * @param keys the keys of the access policies
+     * @return a map with the keys as keys and the stored policies as values, without the missing policies
+     */
+    Map<Key<AccessPolicy>, AccessPolicy> getByKeys(Collection<Key<AccessPolicy>> keys) {
+        // a fresh session, so the policies are not served from the cache of the current one
+        return ofy().factory().begin().load().keys(keys);
+    }
+
+    /**
+     * Loads the {@link ObjectAcl} document of the domain object in the current transaction.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the stored document or a new empty one if not stored yet
+     */
+    private ObjectAcl getObjectAclForUpdate(String objectType, Long objectId) {
+        final ObjectAcl stored = ofy().load().key(ObjectAcl.key(objectType, objectId)).now();
+        return stored != null ? stored : new ObjectAcl(objectType, objectId);
+    }
+
+    /**
+     * Saves the {@link ObjectAcl} document, or deletes it if empty, in the current transaction.
+     *
+     * @param objectAcl the document
+     */
+    private void saveObjectAcl(ObjectAcl objectAcl) {
+        if (objectAcl.isEmpty()) {
+            ofy().delete().entity(objectAcl).now();
+        }
+        else {
+            ofy().save().entity(objectAcl).now();
+        }
+    }
+
+    /**
+     * Loads the stored security identity in the current transaction.
+     * 
+     * @param securityIdentity the security identity
+     * @return the stored security identity or the passed one if not stored yet
+     */
+    private SecurityIdentity getForUpdate(SecurityIdentity securityIdentity) {
+        final SecurityIdentity stored = ofy().load().key(securityIdentity.asKey()).now();
+        return stored != null ? stored : securityIdentity;
+    }
+
+    /**
+     * Loads the visibility index chunk covering the domain object of the access policy in the current transaction.
+     *
+     * @param accessPolicy the access policy
+     * @return the stored chunk or a new empty one if not stored yet
+     */
+    private VisibilityChunk getChunkForUpdate(AccessPolicy accessPolicy) {
+        final long chunk = VisibilityChunk.chunkOf(accessPolicy.getObjectId().longValue());
+        final VisibilityChunk stored = ofy().load().key(VisibilityChunk.key(accessPolicy.getSecurityIdentity(),
+                accessPolicy.getObjectType(), accessPolicy.getPermission(), chunk)).now();
+        return stored != null ? stored : new VisibilityChunk(accessPolicy.getSecurityIdentity(),
+                accessPolicy.getObjectType(), accessPolicy.getPermission(), chunk);
+    }
+
 }
@@ -0,0 +1,539 @@
+package acl.dao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import acl.model.AccessPolicy;
+import acl.model.AccessPolicy.SecurityIdentity;
+
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * <p>
+ * Bulk export and import of access policies, e.g. to migrate or restore the ACL data. The policies are exported as
+ * lines of tab separated fields, {@code id}, {@code securityIdentity}, {@code objectType}, {@code objectId},
+ * {@code permission} and {@code expiresAt} (empty if the grant never expires), after a {@link #HEADER header} line.
+ * Tabs, line breaks and backslashes in the values are escaped by a backslash. Exports of the previous version, without
+ * {@code expiresAt}, can be imported too.
+ * </p>
+ * <p>
+ * The export streams the policies in chunks within a session of its own, clearing the session cache after each page,
+ * so the memory stays constant regardless of the number of policies. The import saves batches of policies in parallel
+ * on the executor and records in a checkpoint file how many lines are imported, counting only the batches whose
+ * predecessors are imported too. An interrupted import resumes after the checkpoint. Since the policies keep their
+ * IDs, the batches in flight on interruption are just overwritten when imported again.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class AccessPolicyTransfer {
+
+    /** Header line of an export. */
+    public static final String HEADER = "#access-policies v2";
+
+    /** Header line of an export of the previous version, without the expiry times. */
+    private static final String HEADER_V1 = "#access-policies v1";
+
+    /** Access policy DAO. */
+    private final AccessPolicyDao accessPolicyDao;
+
+    /** Number of policies fetched per export chunk. */
+    private int pageSize = 1000;
+
+    /** Number of policies saved per import batch. */
+    private int batchSize = 200;
+
+    /** Executor the import batches run on, {@code null} to import sequentially. */
+    private ExecutorService executor;
+
+    /** Maximum number of import batches submitted and not completed yet. */
+    private int maxInFlight = 8;
+
+    /**
+     * Creates {@link AccessPolicyTransfer} with the specified details.
+     *
+     * @param accessPolicyDao access policy DAO
+     */
+    public AccessPolicyTransfer(AccessPolicyDao accessPolicyDao) {
+        this.accessPolicyDao = accessPolicyDao;
+    }
+
+    /**
+     * Sets the number of policies fetched per export chunk.
+     *
+     * @param pageSize the page size
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the number of policies saved per import batch.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the executor the import batches run on.
+     *
+     * @param executor the executor or {@code null} to import sequentially
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the maximum number of import batches submitted and not completed yet, which bounds the memory of the
+     * import.
+     *
+     * @param maxInFlight the maximum number of batches in flight
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Exports all access policies.
+     *
+     * @param out the writer to export to
+     * @return the number of exported policies
+     * @throws IOException if writing fails
+     */
+    public long exportAll(Writer out) throws IOException {
+        out.write(HEADER + "\n");
+        return export(null, null, out);
+    }
+
+    /**
+     * Exports the access policies of the domain object type.
+     *
+     * @param objectType the domain object type
+     * @param out the writer to export to
+     * @return the number of exported policies
+     * @throws IOException if writing fails
+     */
+    public long exportObjectType(String objectType, Writer out) throws IOException {
+        out.write(HEADER + "\n");
+        return export(objectType, null, out);
+    }
+
+    /**
+     * Exports the access policies of the security identity.
+     *
+     * @param securityIdentity the security identity
+     * @param out the writer to export to
+     * @return the number of exported policies
+     * @throws IOException if writing fails
+     */
+    public long exportSecurityIdentity(SecurityIdentity securityIdentity, Writer out) throws IOException {
+        out.write(HEADER + "\n");
+        long count = 0;
+        for (SecurityIdentity parent : this.accessPolicyDao.getParents(securityIdentity)) {
+            count += export(null, parent, out);
+        }
+        return count;
+    }
+
+    /**
+     * Exports the access policies chunk by chunk.
+     *
+     * @param objectType the domain object type of the policies or {@code null} for any
+     * @param parent the parent of the policies or {@code null} for any
+     * @param out the writer to export to
+     * @return the number of exported policies
+     * @throws IOException if writing fails
+     */
+    private long export(String objectType, SecurityIdentity parent, Writer out) throws IOException {
+        long count = 0;
+        // a session of its own, so clearing its cache does not affect the caller
+        try (ObjectifySession session = ObjectifySession.begin()) {
+            Query<AccessPolicy> query = session.ofy().load().type(AccessPolicy.class).chunk(this.pageSize);
+            if (objectType != null) {
+                query = query.filter("objectType", objectType);
+            }
+            if (parent != null) {
+                query = query.ancestor(parent);
+            }
+
+            final QueryResultIterator<AccessPolicy> iterator = query.iterator();
+            while (iterator.hasNext()) {
+                writeLine(iterator.next(), out);
+                if (++count % this.pageSize == 0) {
+                    // drop the loaded policies
+                    session.ofy().clear();
+                }
+            }
+        }
+
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Imports the access policies exported by any of the export methods.
+     *
+     * @param in the reader to import from
+     * @param checkpoint the checkpoint file, created if it does not exist yet
+     * @return the number of policies imported by this call, not counting the ones skipped by the checkpoint
+     * @throws IOException if reading or writing the checkpoint fails or the input is malformed
+     */
+    public long importPolicies(BufferedReader in, File checkpoint) throws IOException {
+        final String header = in.readLine();
+        if (header != null && !HEADER.equals(header) && !HEADER_V1.equals(header)) {
+            throw new IOException("Unsupported header: " + header);
+        }
+        final int fieldCount = HEADER_V1.equals(header) ? 5 : 6;
+
+        final long skipped = readCheckpoint(checkpoint);
+        for (long i = 0; i < skipped; i++) {
+            if (in.readLine() == null) {
+                return 0L;
+            }
+        }
+
+        final BatchTracker tracker = new BatchTracker(checkpoint, skipped);
+        List<AccessPolicy> batch = new ArrayList<>(this.batchSize);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final AccessPolicy accessPolicy = parseLine(line, fieldCount);
+                // a batch holds the policies of a single security identity, see BatchTracker
+                if (batch.size() == this.batchSize || !batch.isEmpty() && !batch.get(0).getSecurityIdentityName()
+                        .equals(accessPolicy.getSecurityIdentityName())) {
+                    tracker.submit(batch);
+                    batch = new ArrayList<>(this.batchSize);
+                }
+                batch.add(accessPolicy);
+            }
+            if (!batch.isEmpty()) {
+                tracker.submit(batch);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // let the checkpoint count the batches in flight
+            tracker.awaitQuietly();
+            throw e;
+        }
+        tracker.awaitAll();
+        return tracker.imported - skipped;
+    }
+
+    /**
+     * Reads the number of imported lines from the checkpoint file.
+     *
+     * @param checkpoint the checkpoint file
+     * @return the number of imported lines, {@code 0} if the file does not exist
+     * @throws IOException if reading fails
+     */
+    private static long readCheckpoint(File checkpoint) throws IOException {
+        if (!checkpoint.exists()) {
+            return 0L;
+        }
+        final String content = new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8).trim();
+        try {
+            return Long.parseLong(content);
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Malformed checkpoint: " + content, e);
+        }
+    }
+
+    /**
+     * Replaces the checkpoint file, so an interruption never leaves it half written.
+     *
+     * @param checkpoint the checkpoint file
+     * @param imported the number of imported lines
+     * @throws IOException if writing fails
+     */
+    private static void writeCheckpoint(File checkpoint, long imported) throws IOException {
+        final File temporary = new File(checkpoint.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+            writer.write(Long.toString(imported));
+        }
+        Files.move(temporary.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the access policy as a line.
+     *
+     * @param accessPolicy the access policy
+     * @param out the writer
+     * @throws IOException if writing fails
+     */
+    private static void writeLine(AccessPolicy accessPolicy, Writer out) throws IOException {
+        out.write(accessPolicy.getId().toString());
+        out.write('\t');
+        out.write(escape(accessPolicy.getSecurityIdentityName()));
+        out.write('\t');
+        out.write(escape(accessPolicy.getObjectType()));
+        out.write('\t');
+        out.write(accessPolicy.getObjectId().toString());
+        out.write('\t');
+        out.write(escape(accessPolicy.getPermission()));
+        out.write('\t');
+        if (accessPolicy.getExpiresAt() != null) {
+            out.write(accessPolicy.getExpiresAt().toString());
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Parses the access policy from a line.
+     *
+     * @param line the line
+     * @param fieldCount the number of fields of the export version
+     * @return the access policy
+     * @throws IOException if the line is malformed
+     */
+    private static AccessPolicy parseLine(String line, int fieldCount) throws IOException {
+        final String[] fields = line.split("\t", -1);
+        if (fields.length != fieldCount) {
+            throw new IOException("Malformed line: " + line);
+        }
+        try {
+            final AccessPolicy accessPolicy = new AccessPolicy(Long.valueOf(fields[0]),
+                    SecurityIdentity.valueOf(unescape(fields[1])), unescape(fields[2]), Long.valueOf(fields[3]),
+                    unescape(fields[4]));
+            if (fieldCount > 5 && !fields[5].isEmpty()) {
+                accessPolicy.setExpiresAt(Long.valueOf(fields[5]));
+            }
+            return accessPolicy;
+        }
+        catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed line: " + line, e);
+        }
+    }
+
+    /**
+     * Escapes tabs, line breaks and backslashes.
+     *
+     * @param value the value
+     * @return the escaped value
+     */
+    private static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('\t') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Reverts {@link #escape(String)}.
+     *
+     * @param value the escaped value
+     * @return the value
+     */
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        final StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                unescaped.append(c);
+                continue;
+            }
+            final char escaped = value.charAt(++i);
+            switch (escaped) {
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                default:
+                    unescaped.append(escaped);
+                    break;
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Submits the import batches and advances the checkpoint as they complete. The batches of a security identity are
+     * saved one after another, as concurrent transactions on its entity group would contend. Since an export lists the
+     * policies grouped by security identity, the batches of distinct security identities still run in parallel.
+     */
+    private final class BatchTracker {
+
+        /** The checkpoint file. */
+        private final File checkpoint;
+
+        /** Completion service of the batches, {@code null} to import sequentially. */
+        private final CompletionService<Integer> completionService;
+
+        /** Sizes of the submitted batches not counted in the checkpoint yet, by batch index. */
+        private final TreeMap<Integer, Integer> pendingSizes = new TreeMap<>();
+
+        /** Indexes of the completed batches not counted in the checkpoint yet. */
+        private final TreeMap<Integer, Boolean> completed = new TreeMap<>();
+
+        /** Security identity names of the batches in flight. */
+        private final Map<Future<Integer>, String> inFlightSids = new HashMap<>();
+
+        /** Number of batches submitted so far. */
+        private int submitted;
+
+        /** Number of imported lines according to the checkpoint. */
+        private long imported;
+
+        /** The first failure of a batch, {@code null} if none. */
+        private Exception failure;
+
+        /**
+         * Creates {@link BatchTracker} with the specified details.
+         *
+         * @param checkpoint the checkpoint file
+         * @param imported number of lines imported before
+         */
+        BatchTracker(File checkpoint, long imported) {
+            this.checkpoint = checkpoint;
+            this.imported = imported;
+            this.completionService = AccessPolicyTransfer.this.executor == null ? null
+                    : new ExecutorCompletionService<Integer>(AccessPolicyTransfer.this.executor);
+        }
+
+        /**
+         * Submits a batch, waiting for a batch to complete if too many are in flight.
+         *
+         * @param batch the access policies of the batch
+         * @throws IOException if a batch failed or the checkpoint cannot be written
+         */
+        void submit(final List<AccessPolicy> batch) throws IOException {
+            if (this.failure != null) {
+                // stop submitting once a batch failed
+                awaitAll();
+            }
+            final int index = this.submitted++;
+            this.pendingSizes.put(Integer.valueOf(index), Integer.valueOf(batch.size()));
+
+            if (this.completionService == null) {
+                AccessPolicyTransfer.this.accessPolicyDao.saveAll(batch);
+                complete(index);
+                return;
+            }
+
+            final String sid = batch.get(0).getSecurityIdentityName();
+            while (this.inFlightSids.size() >= AccessPolicyTransfer.this.maxInFlight
+                    || this.inFlightSids.containsValue(sid)) {
+                awaitOne();
+            }
+            this.inFlightSids.put(this.completionService.submit(new DatastoreCallable<>(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    AccessPolicyTransfer.this.accessPolicyDao.saveAll(batch);
+                    return Integer.valueOf(index);
+                }
+            })), sid);
+        }
+
+        /**
+         * Waits for all batches in flight. A failure of a batch is thrown only then, so the checkpoint counts all
+         * batches completed meanwhile.
+         *
+         * @throws IOException if a batch failed or the checkpoint cannot be written
+         */
+        void awaitAll() throws IOException {
+            while (!this.inFlightSids.isEmpty()) {
+                awaitOne();
+            }
+            if (this.failure != null) {
+                throw new IOException("Unable to import access policies", this.failure);
+            }
+        }
+
+        /**
+         * Waits for all batches in flight, ignoring their failures, when the import fails for another reason.
+         */
+        void awaitQuietly() {
+            try {
+                while (!this.inFlightSids.isEmpty()) {
+                    awaitOne();
+                }
+            }
+            catch (IOException e) {
+                // the original failure is thrown
+            }
+        }
+
+        /**
+         * Waits for a batch to complete.
+         *
+         * @throws IOException if interrupted or the checkpoint cannot be written
+         */
+        private void awaitOne() throws IOException {
+            final Future<Integer> future;
+            try {
+                future = this.completionService.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while importing access policies", e);
+            }
+            this.inFlightSids.remove(future);
+
+            final int index;
+            try {
+                index = future.get().intValue();
+            }
+            catch (InterruptedException | ExecutionException e) {
+                // not reached for InterruptedException as the batch is done
+                if (this.failure == null) {
+                    this.failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                return;
+            }
+            complete(index);
+        }
+
+        /**
+         * Records a completed batch and advances the checkpoint over the completed batches whose predecessors are
+         * completed too.
+         *
+         * @param index the batch index
+         * @throws IOException if the checkpoint cannot be written
+         */
+        private void complete(int index) throws IOException {
+            this.completed.put(Integer.valueOf(index), Boolean.TRUE);
+
+            long advanced = this.imported;
+            while (!this.pendingSizes.isEmpty() && this.completed.containsKey(this.pendingSizes.firstKey())) {
+                final Integer first = this.pendingSizes.firstKey();
+                advanced += this.pendingSizes.remove(first).intValue();
+                this.completed.remove(first);
+            }
+            if (advanced != this.imported) {
+                this.imported = advanced;
+                writeCheckpoint(this.checkpoint, this.imported);
+            }
+        }
+    }
+
+}
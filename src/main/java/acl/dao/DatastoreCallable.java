@@ -0,0 +1,54 @@
+package acl.dao;
+
+import java.util.concurrent.Callable;
+
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Objectify;
+
+/**
+ * Wraps a {@link Callable} accessing the datastore so that it can run on a worker thread. The App Engine API
+ * environment of the creating thread is propagated to the worker thread and a fresh {@link Objectify} session is
+ * used for the call, so no session cache leaks between tasks sharing a pooled thread.
+ *
+ * @param <V> the result type
+ * @author Petr Giecek
+ */
+public class DatastoreCallable<V> implements Callable<V> {
+
+    /** The wrapped callable. */
+    private final Callable<V> delegate;
+
+    /** The API environment of the creating thread. */
+    @SuppressWarnings("rawtypes")
+    private final ApiProxy.Environment environment;
+
+    /**
+     * Creates {@link DatastoreCallable} capturing the API environment of the current thread.
+     *
+     * @param delegate the callable to wrap
+     */
+    public DatastoreCallable(Callable<V> delegate) {
+        this.delegate = delegate;
+        this.environment = ApiProxy.getCurrentEnvironment();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V call() throws Exception {
+        final boolean propagate = ApiProxy.getCurrentEnvironment() == null && this.environment != null;
+        if (propagate) {
+            ApiProxy.setEnvironmentForCurrentThread(this.environment);
+        }
+        try {
+            return ObjectifySession.run(this.delegate);
+        }
+        finally {
+            if (propagate) {
+                ApiProxy.clearEnvironmentForCurrentThread();
+            }
+        }
+    }
+
+}
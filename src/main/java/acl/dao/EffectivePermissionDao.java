@@ -0,0 +1,123 @@
+package acl.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.stereotype.Repository;
+
+import acl.model.AccessPolicy.SecurityIdentity;
+import acl.model.EffectivePermission;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+
+/**
+ * Effective permission DAO that delegates to Objectify.
+ *
+ * @author Petr Giecek
+ */
+@Repository
+public class EffectivePermissionDao {
+
+    /**
+     * Returns the {@link Objectify} session bound to the current thread.
+     *
+     * @return the current {@link Objectify} session
+     */
+    protected Objectify ofy() {
+        return ObjectifyService.ofy();
+    }
+
+    /**
+     * Returns the effective permissions of the user on the domain object. Returns strongly consistent results.
+     *
+     * @param securityIdentity the security identity of the user
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the effective permissions or {@code null} if the user has none
+     */
+    public EffectivePermission get(SecurityIdentity securityIdentity, String objectType, Long objectId) {
+        return ofy().load().key(EffectivePermission.key(securityIdentity, objectType, objectId)).now();
+    }
+
+    /**
+     * Returns all effective permissions of the user. Returns strongly consistent results.
+     *
+     * @param securityIdentity the security identity of the user
+     * @return the effective permissions
+     */
+    public List<EffectivePermission> getAll(SecurityIdentity securityIdentity) {
+        return ofy().load().type(EffectivePermission.class).ancestor(securityIdentity).list();
+    }
+
+    /**
+     * Adds the permission to the effective permissions of the user on the domain object in a transaction. The
+     * permissions expired so far are removed from the row meanwhile.
+     *
+     * @param securityIdentity the security identity of the user
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @param permission the permission
+     * @param expiresAt the time the permission expires in milliseconds since the epoch or {@code null} if never
+     */
+    public void grant(final SecurityIdentity securityIdentity, final String objectType, final Long objectId,
+            final String permission, final Long expiresAt) {
+        ofy().transact(new Work<Void>() {
+            @Override
+            public Void run() {
+                final EffectivePermission stored = get(securityIdentity, objectType, objectId);
+                final EffectivePermission effectivePermission = stored != null ? stored
+                        : new EffectivePermission(securityIdentity, objectType, objectId);
+                final boolean pruned = effectivePermission.removeExpired(System.currentTimeMillis());
+                if (effectivePermission.addPermission(permission, expiresAt) || pruned) {
+                    ofy().save().entity(effectivePermission).now();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Replaces all effective permissions of the user in a transaction on the user's entity group, unless the rows
+     * changed since they were read, e.g. by a concurrent {@link #grant(SecurityIdentity, String, Long, String, Long)
+     * grant}, which the new rows may miss.
+     *
+     * @param securityIdentity the security identity of the user
+     * @param expected the effective permissions read before the new ones were computed
+     * @param effectivePermissions the new effective permissions
+     * @return {@code true} if replaced, {@code false} if the rows changed meanwhile
+     */
+    public boolean replace(final SecurityIdentity securityIdentity, final Collection<EffectivePermission> expected,
+            final Collection<EffectivePermission> effectivePermissions) {
+        return ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                final List<EffectivePermission> stored = getAll(securityIdentity);
+                if (!new HashSet<>(stored).equals(new HashSet<>(expected))) {
+                    return Boolean.FALSE;
+                }
+
+                final Set<Key<EffectivePermission>> keys = new HashSet<>();
+                for (EffectivePermission effectivePermission : effectivePermissions) {
+                    keys.add(Key.create(effectivePermission));
+                }
+                final List<Key<EffectivePermission>> deleted = new ArrayList<>();
+                for (EffectivePermission effectivePermission : stored) {
+                    final Key<EffectivePermission> key = Key.create(effectivePermission);
+                    if (!keys.contains(key)) {
+                        deleted.add(key);
+                    }
+                }
+                ofy().delete().keys(deleted).now();
+                ofy().save().entities(effectivePermissions).now();
+                return Boolean.TRUE;
+            }
+        }).booleanValue();
+    }
+
+}
@@ -0,0 +1,158 @@
+package acl.dao;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import acl.model.AccessPolicy;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * Removes expired access policies. A sweep works through the index of the expiry times in keys-only batches, so it
+ * reads only the keys of expired policies, never the policies still in effect, and deletes each batch with
+ * {@link AccessPolicyDao#deleteExpired(java.util.Collection, long)}. A sweep stops when its time budget is used up and
+ * the next one continues where it stopped, since the earliest expired policies are always swept first.
+ * <p>
+ * The sweeper either runs periodically on a scheduler (see {@link #schedule(ScheduledExecutorService, long)}) or
+ * {@link #sweep()} is called by a cron request where background threads are not available (see
+ * {@link acl.web.ExpiredAccessPolicySweepServlet}).
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class ExpiredAccessPolicySweeper {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(ExpiredAccessPolicySweeper.class.getName());
+
+    /** Access policy DAO. */
+    private final AccessPolicyDao accessPolicyDao;
+
+    /** Number of keys read and deleted per batch. */
+    private int batchSize = 500;
+
+    /** The time budget of a sweep in milliseconds. */
+    private long timeBudgetMillis = 30000L;
+
+    /** Number of access policies deleted by the last sweep. */
+    private volatile int lastSweptCount;
+
+    /** Number of access policies deleted by all sweeps. */
+    private final AtomicLong totalSweptCount = new AtomicLong();
+
+    /**
+     * Creates {@link ExpiredAccessPolicySweeper}.
+     *
+     * @param accessPolicyDao access policy DAO
+     */
+    public ExpiredAccessPolicySweeper(AccessPolicyDao accessPolicyDao) {
+        this.accessPolicyDao = accessPolicyDao;
+    }
+
+    /**
+     * Sets the number of keys read and deleted per batch.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the time budget of a sweep.
+     *
+     * @param timeBudgetMillis the time budget in milliseconds
+     */
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Deletes the access policies expired by now, batch by batch, until none is left or the time budget is used up.
+     *
+     * @return the number of deleted access policies
+     */
+    public int sweep() {
+        final long now = System.currentTimeMillis();
+        final long deadline = now + this.timeBudgetMillis;
+
+        int sweptCount = 0;
+        while (System.currentTimeMillis() < deadline) {
+            final List<Key<AccessPolicy>> keys = this.accessPolicyDao.getExpiredKeys(now, this.batchSize);
+            if (keys.isEmpty()) {
+                break;
+            }
+
+            final int deletedCount = this.accessPolicyDao.deleteExpired(keys, now);
+            sweptCount += deletedCount;
+
+            // a short batch was the last one; a batch of stale index entries only would be returned over and over
+            if (keys.size() < this.batchSize || deletedCount == 0) {
+                break;
+            }
+        }
+
+        this.lastSweptCount = sweptCount;
+        this.totalSweptCount.addAndGet(sweptCount);
+
+        if (sweptCount > 0) {
+            LOGGER.info(String.format("Swept %1$d expired access policies in %2$d ms", Integer.valueOf(sweptCount),
+                    Long.valueOf(System.currentTimeMillis() - now)));
+        }
+        return sweptCount;
+    }
+
+    /**
+     * Schedules periodic sweeps on the scheduler. The App Engine API environment of the current thread is propagated
+     * to the sweeps. A failed sweep is logged and retried in the next period.
+     *
+     * @param scheduler the scheduler
+     * @param periodMillis the delay between the end of a sweep and the start of the next one in milliseconds
+     * @return the future to cancel the sweeps with
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService scheduler, long periodMillis) {
+        final DatastoreCallable<Integer> task = new DatastoreCallable<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Integer.valueOf(sweep());
+            }
+        });
+        return scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.call();
+                }
+                catch (Exception e) {
+                    // expired policies are ignored by reads anyway, they are just not removed yet
+                    LOGGER.log(Level.WARNING, "Sweep of expired access policies failed", e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of access policies deleted by the last sweep.
+     *
+     * @return the number of access policies deleted by the last sweep
+     */
+    public int getLastSweptCount() {
+        return this.lastSweptCount;
+    }
+
+    /**
+     * Returns the number of access policies deleted by all sweeps.
+     *
+     * @return the number of access policies deleted by all sweeps
+     */
+    public long getTotalSweptCount() {
+        return this.totalSweptCount.get();
+    }
+
+}
@@ -0,0 +1,192 @@
+package acl.dao;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.impl.EntityMetadata;
+
+/**
+ * <p>
+ * {@link ObjectifyFactory} registering the entity classes off the startup path. Registration introspects the classes
+ * and builds their translators, which adds up to a noticeable part of the start of a new instance. The registration
+ * either runs on a background thread started by {@link #registerInBackground()}, in parallel with the start of the
+ * application context, or on first use, i.e. once a session is begun or a metadata is looked up. Both wait for the
+ * registration to complete.
+ * </p>
+ * <p>
+ * The App Engine sandbox forbids creating threads directly, so the background thread is a request thread there, which
+ * is stopped at the end of the loading request at the latest. Whatever is not registered by then is registered on
+ * first use.
+ * </p>
+ * <p>
+ * All entity classes are registered at once: Objectify also resolves the keys of entity instances by a static
+ * registry bypassing the factory, which is complete once any session is begun. Keys of entity instances must not be
+ * created before.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class LazyObjectifyFactory extends ObjectifyFactory {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(LazyObjectifyFactory.class.getName());
+
+    /** The entity classes. */
+    private final Class<?>[] entityClasses;
+
+    /** Whether all entity classes are registered. */
+    private volatile boolean registered;
+
+    /** Whether the registration is in progress, guarded by this. */
+    private boolean registering;
+
+    /**
+     * Creates {@link LazyObjectifyFactory}.
+     *
+     * @param entityClasses the entity classes to register
+     */
+    public LazyObjectifyFactory(Class<?>... entityClasses) {
+        this.entityClasses = entityClasses.clone();
+    }
+
+    /**
+     * Starts the registration on a background thread. On a single processor, where the registration would only slow
+     * down the start of the context, or if the thread cannot be created or started, the entity classes are registered
+     * on first use.
+     */
+    public void registerInBackground() {
+        if (Runtime.getRuntime().availableProcessors() < 2) {
+            return;
+        }
+        final Runnable registration = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    registerAll();
+                }
+                catch (RuntimeException e) {
+                    // retried on first use
+                    LOGGER.log(Level.WARNING, "Background registration of entities failed", e);
+                }
+            }
+        };
+        try {
+            final Thread thread = newThread(registration);
+            if (thread == null) {
+                LOGGER.fine("No thread for the background registration, entities are registered on first use");
+                return;
+            }
+            thread.start();
+        }
+        catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Entities are registered on first use", e);
+        }
+    }
+
+    /**
+     * Creates the thread of the background registration: a request thread when running on App Engine, a daemon thread
+     * otherwise.
+     *
+     * @param registration the registration to run
+     * @return the unstarted thread or {@code null} if there is no thread factory of the current request
+     */
+    private static Thread newThread(Runnable registration) {
+        if (ApiProxy.getCurrentEnvironment() != null) {
+            final ThreadFactory threadFactory = ThreadManager.currentRequestThreadFactory();
+            return threadFactory == null ? null : threadFactory.newThread(registration);
+        }
+        final Thread thread = new Thread(registration, "objectify-registration");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Registers all entity classes unless registered yet, waiting for a registration in progress on another thread.
+     */
+    public void registerAll() {
+        if (this.registered) {
+            return;
+        }
+        synchronized (this) {
+            // metadata lookups made by the registration itself
+            if (this.registered || this.registering) {
+                return;
+            }
+            this.registering = true;
+            try {
+                final long start = System.nanoTime();
+                for (Class<?> entityClass : this.entityClasses) {
+                    super.register(entityClass);
+                }
+                this.registered = true;
+                LOGGER.fine(String.format("Registered %1$d entities in %2$d ms",
+                        Integer.valueOf(this.entityClasses.length),
+                        Long.valueOf((System.nanoTime() - start) / 1000000L)));
+            }
+            finally {
+                this.registering = false;
+            }
+        }
+    }
+
+    /**
+     * Returns whether all entity classes are registered.
+     *
+     * @return {@code true} if registered
+     */
+    public boolean isRegistered() {
+        return this.registered;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Objectify begin() {
+        registerAll();
+        return super.begin();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> EntityMetadata<T> getMetadata(Class<T> clazz) {
+        registerAll();
+        return super.getMetadata(clazz);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> EntityMetadata<T> getMetadata(com.google.appengine.api.datastore.Key key) {
+        registerAll();
+        return super.getMetadata(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> EntityMetadata<T> getMetadata(Key<T> key) {
+        registerAll();
+        return super.getMetadata(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> EntityMetadata<T> getMetadata(String kind) {
+        registerAll();
+        return super.getMetadata(kind);
+    }
+
+}
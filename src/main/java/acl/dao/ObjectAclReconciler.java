@@ -0,0 +1,207 @@
+package acl.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import acl.model.AccessPolicy;
+import acl.model.ObjectAcl;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * <p>
+ * Detects and repairs divergence of the {@link ObjectAcl} documents from the access policies, e.g. after a failed
+ * update of a document following a bulk save or a sweep, or to build the documents of the policies stored before they
+ * were maintained.
+ * </p>
+ * <p>
+ * The domain objects are checked in batches. The stored policies of an object are the policies found by the object
+ * query, which is only eventually consistent, together with the policies the document refers to, all read by key, so
+ * a policy missing in the document is found once the query catches up and a policy deleted is never resurrected. A
+ * document changed while its object is checked is left for the next reconciliation.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class ObjectAclReconciler {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(ObjectAclReconciler.class.getName());
+
+    /** Access policy DAO. */
+    private final AccessPolicyDao accessPolicyDao;
+
+    /** Number of domain objects checked per batch. */
+    private int batchSize = 100;
+
+    /** Number of domain objects checked by the last reconciliation. */
+    private volatile long lastCheckedCount;
+
+    /** Number of documents repaired by the last reconciliation. */
+    private volatile long lastRepairedCount;
+
+    /**
+     * Creates {@link ObjectAclReconciler}.
+     *
+     * @param accessPolicyDao access policy DAO
+     */
+    public ObjectAclReconciler(AccessPolicyDao accessPolicyDao) {
+        this.accessPolicyDao = accessPolicyDao;
+    }
+
+    /**
+     * Sets the number of domain objects checked per batch.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Reconciles the documents of all domain objects of the type, i.e. the objects with a document or with an access
+     * policy. The IDs of the checked objects are kept in memory to check every object once.
+     *
+     * @param objectType the domain object type
+     * @return the number of repaired documents
+     */
+    public long reconcile(String objectType) {
+        final Set<Long> checked = new HashSet<>();
+        final List<Long> batch = new ArrayList<>(this.batchSize);
+        long checkedCount = 0;
+        long repairedCount = 0;
+
+        // a session of its own, so clearing its cache does not affect the caller
+        try (ObjectifySession session = ObjectifySession.begin()) {
+            final Query<ObjectAcl> documents = session.ofy().load().type(ObjectAcl.class)
+                    .filter("objectType", objectType)
+                    .chunk(this.batchSize);
+            for (Key<ObjectAcl> key : documents.keys()) {
+                final Long objectId = Long.valueOf(key.getName().substring(objectType.length() + 1));
+                if (checked.add(objectId)) {
+                    batch.add(objectId);
+                }
+                if (batch.size() == this.batchSize) {
+                    repairedCount += reconcileBatch(objectType, batch);
+                    checkedCount += batch.size();
+                    batch.clear();
+                }
+            }
+
+            final Query<AccessPolicy> policies = session.ofy().load().type(AccessPolicy.class)
+                    .filter("objectType", objectType)
+                    .chunk(this.batchSize);
+            for (AccessPolicy accessPolicy : policies) {
+                if (checked.add(accessPolicy.getObjectId())) {
+                    batch.add(accessPolicy.getObjectId());
+                }
+                if (batch.size() == this.batchSize) {
+                    repairedCount += reconcileBatch(objectType, batch);
+                    checkedCount += batch.size();
+                    batch.clear();
+                    // drop the loaded policies
+                    session.ofy().clear();
+                }
+            }
+            repairedCount += reconcileBatch(objectType, batch);
+            checkedCount += batch.size();
+        }
+
+        this.lastCheckedCount = checkedCount;
+        this.lastRepairedCount = repairedCount;
+
+        LOGGER.info(String.format("Reconciled ACL documents of %1$d objects of %2$s, repaired %3$d",
+                Long.valueOf(checkedCount), objectType, Long.valueOf(repairedCount)));
+        return repairedCount;
+    }
+
+    /**
+     * Reconciles the documents of the given domain objects.
+     *
+     * @param objectType the domain object type
+     * @param objectIds the domain object IDs
+     * @return the number of repaired documents
+     */
+    public long reconcile(String objectType, Collection<Long> objectIds) {
+        final List<Long> ids = new ArrayList<>(new LinkedHashSet<>(objectIds));
+        long repairedCount = 0;
+        for (int from = 0; from < ids.size(); from += this.batchSize) {
+            repairedCount += reconcileBatch(objectType, ids.subList(from, Math.min(from + this.batchSize,
+                    ids.size())));
+        }
+        return repairedCount;
+    }
+
+    /**
+     * Reconciles the documents of a batch of domain objects. The documents are read before the policies, so a policy
+     * saved in between is either in the read document or among the read policies.
+     *
+     * @param objectType the domain object type
+     * @param objectIds the domain object IDs
+     * @return the number of repaired documents
+     */
+    private long reconcileBatch(String objectType, List<Long> objectIds) {
+        if (objectIds.isEmpty()) {
+            return 0L;
+        }
+
+        final Map<Long, ObjectAcl> documents = this.accessPolicyDao.getObjectAcls(objectType, objectIds);
+
+        final Set<Key<AccessPolicy>> keys = new LinkedHashSet<>();
+        for (Long objectId : objectIds) {
+            keys.addAll(this.accessPolicyDao.queryKeysForObject(objectType, objectId));
+            final ObjectAcl document = documents.get(objectId);
+            if (document != null) {
+                for (AccessPolicy accessPolicy : document.getAccessPolicies()) {
+                    keys.add(Key.create(accessPolicy));
+                }
+            }
+        }
+        final Map<Key<AccessPolicy>, AccessPolicy> stored = this.accessPolicyDao.getByKeys(keys);
+
+        long repairedCount = 0;
+        for (Long objectId : objectIds) {
+            final List<AccessPolicy> accessPolicies = new ArrayList<>();
+            for (AccessPolicy accessPolicy : stored.values()) {
+                if (objectId.equals(accessPolicy.getObjectId()) && objectType.equals(accessPolicy.getObjectType())) {
+                    accessPolicies.add(accessPolicy);
+                }
+            }
+
+            final ObjectAcl document = documents.get(objectId);
+            final boolean diverged = document == null ? !accessPolicies.isEmpty()
+                    : !document.isCopyOf(accessPolicies);
+            if (diverged && this.accessPolicyDao.replaceObjectAcl(objectType, objectId,
+                    document == null ? null : document.getAccessPolicies(), accessPolicies)) {
+                repairedCount++;
+            }
+        }
+        return repairedCount;
+    }
+
+    /**
+     * Returns the number of domain objects checked by the last reconciliation of a whole type.
+     *
+     * @return the number of checked domain objects
+     */
+    public long getLastCheckedCount() {
+        return this.lastCheckedCount;
+    }
+
+    /**
+     * Returns the number of documents repaired by the last reconciliation of a whole type.
+     *
+     * @return the number of repaired documents
+     */
+    public long getLastRepairedCount() {
+        return this.lastRepairedCount;
+    }
+
+}
@@ -1,41 +1,46 @@
 package acl.dao;
 
-import org.springframework.beans.factory.config.BeanDefinition;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Scope;
-import org.springframework.context.annotation.ScopedProxyMode;
 import org.springframework.stereotype.Component;
 
 import acl.model.AccessPolicy;
+import acl.model.EffectivePermission;
+import acl.model.ObjectAcl;
+import acl.model.VisibilityChunk;
 
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyService;
 
 /**
- * {@link Objectify} configuration.
+ * {@link Objectify} configuration. The {@link Objectify} session is not a bean, DAOs use the session bound to the
+ * current thread (see {@link ObjectifySession}).
+ * <p>
+ * The persistent entities are registered on a background thread in parallel with the start of the application
+ * context (see {@link LazyObjectifyFactory}), unless the system property {@value #EAGER_REGISTRATION_PROPERTY} is
+ * {@code true}.
+ * </p>
  * 
  * @author Petr Giecek
  */
 @Component
 public class ObjectifyConfig {
 
+    /** System property enabling registration of all entities at startup. */
+    public static final String EAGER_REGISTRATION_PROPERTY = "acl.objectify.eagerRegistration";
+
     static {
         
         // register all persistent entities
-        ObjectifyService.register(AccessPolicy.class);
-        ObjectifyService.register(AccessPolicy.SecurityIdentity.class);
+        final LazyObjectifyFactory factory = new LazyObjectifyFactory(AccessPolicy.class,
+                AccessPolicy.SecurityIdentity.class, VisibilityChunk.class, EffectivePermission.class,
+                ObjectAcl.class);
+        if (Boolean.getBoolean(EAGER_REGISTRATION_PROPERTY)) {
+            factory.registerAll();
+        }
+        else {
+            factory.registerInBackground();
+        }
+        ObjectifyService.setFactory(factory);
 
     }
-    
-    /**
-     * Returns the current {@link Objectify} instance.
-     * 
-     * @return the current {@link Objectify} instance
-     */
-    @Bean
-    @Scope(value=BeanDefinition.SCOPE_PROTOTYPE, proxyMode=ScopedProxyMode.INTERFACES)
-    public Objectify objectify() {
-        return ObjectifyService.ofy();
-    }
 
 }
@@ -0,0 +1,84 @@
+package acl.dao;
+
+import java.util.concurrent.Callable;
+
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
+/**
+ * {@link Objectify} session bound to the current thread for callers outside of web requests (e.g. tasks on worker
+ * threads, warm-up or tests), where {@link com.googlecode.objectify.ObjectifyFilter} does not begin and end the
+ * session. Either run a callable in a session of its own by {@link #run(Callable)}, or use the session with
+ * try-with-resources:
+ *
+ * <pre>
+ * try (ObjectifySession session = ObjectifySession.begin()) {
+ *     session.ofy().load()...
+ *     // DAO calls share the session cache
+ * }
+ * </pre>
+ *
+ * @author Petr Giecek
+ */
+public final class ObjectifySession implements AutoCloseable {
+
+    /** The session. */
+    private final Objectify ofy;
+
+    /**
+     * Creates {@link ObjectifySession}.
+     *
+     * @param ofy the session
+     */
+    private ObjectifySession(Objectify ofy) {
+        this.ofy = ofy;
+    }
+
+    /**
+     * Begins a new session and binds it to the current thread, hiding the session bound so far until
+     * {@link #close()} is called.
+     *
+     * @return the new session
+     */
+    public static ObjectifySession begin() {
+        final Objectify ofy = ObjectifyService.factory().begin();
+        ObjectifyService.push(ofy);
+        return new ObjectifySession(ofy);
+    }
+
+    /**
+     * Runs the callable in a new session bound to the current thread for the duration of the call.
+     *
+     * @param callable the callable
+     * @param <V> the result type
+     * @return the result of the callable
+     * @throws Exception if the callable fails
+     */
+    public static <V> V run(Callable<V> callable) throws Exception {
+        final ObjectifySession session = begin();
+        try {
+            return callable.call();
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Returns the session, i.e. the {@link Objectify} bound to the current thread until the session is closed.
+     *
+     * @return the session
+     */
+    public Objectify ofy() {
+        return this.ofy;
+    }
+
+    /**
+     * Ends the session and restores the session bound to the current thread before.
+     */
+    @Override
+    public void close() {
+        ObjectifyService.pop();
+    }
+
+}
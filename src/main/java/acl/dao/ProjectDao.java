@@ -1,40 +1,106 @@
 package acl.dao;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.springframework.stereotype.Repository;
 
 import acl.model.Project;
 
 /**
- * DAO used to persist {@link Project} in memory. Simplified implementation for demo purposes.
+ * DAO used to persist {@link Project} in memory. Simplified implementation for demo purposes, safe for concurrent use.
+ * The projects are searchable by the words of their descriptions through an inverted index maintained on save.
  * 
  * @author Petr Chudanic
  */
 @Repository
 public class ProjectDao {
 
+    /** Pattern of the separators of the words of a description or a search. */
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
     /** Sequence used to generate project identifier */
-    private long sequence;
+    private final AtomicLong sequence = new AtomicLong();
     /** Project instances holder */
-    private Map<Long, Project> projects = new HashMap<Long, Project>();
+    private final Map<Long, Project> projects = new ConcurrentHashMap<Long, Project>();
+    /** Inverted index: IDs of the projects per word of their descriptions */
+    private final Map<String, Set<Long>> projectIdsByWord = new ConcurrentHashMap<String, Set<Long>>();
+    /** Indexed words per project ID, updated under the lock of the DAO */
+    private final Map<Long, Set<String>> wordsByProjectId = new ConcurrentHashMap<Long, Set<String>>();
 
     /**
      * Save project object
-     * 
+     *
      * @param project the project owner
      */
     public void saveProject(Project project) {
         if (project.getId() == 0) {
-            project.setId(++this.sequence);
+            project.setId(this.sequence.incrementAndGet());
         }
         this.projects.put(project.getId(), project);
+        index(project.getId(), project.getDescription());
+    }
+
+    /**
+     * Updates the inverted index with the words of the description of the project.
+     *
+     * @param projectId the project ID
+     * @param description the description
+     */
+    private synchronized void index(Long projectId, String description) {
+        final Set<String> words = words(description);
+        final Set<String> indexedWords = this.wordsByProjectId.get(projectId);
+        if (indexedWords != null) {
+            for (String word : indexedWords) {
+                if (!words.contains(word)) {
+                    final Set<Long> projectIds = this.projectIdsByWord.get(word);
+                    projectIds.remove(projectId);
+                    if (projectIds.isEmpty()) {
+                        this.projectIdsByWord.remove(word);
+                    }
+                }
+            }
+        }
+        for (String word : words) {
+            Set<Long> projectIds = this.projectIdsByWord.get(word);
+            if (projectIds == null) {
+                projectIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+                this.projectIdsByWord.put(word, projectIds);
+            }
+            projectIds.add(projectId);
+        }
+        this.wordsByProjectId.put(projectId, words);
+    }
+
+    /**
+     * Splits the text to lower case words.
+     *
+     * @param text the text or {@code null}
+     * @return the distinct words
+     */
+    private static Set<String> words(String text) {
+        final Set<String> words = new LinkedHashSet<String>();
+        if (text != null) {
+            for (String word : WORD_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+                if (!word.isEmpty()) {
+                    words.add(word);
+                }
+            }
+        }
+        return words;
     }
 
     /**
      * Get project object identified by ID
-     * 
+     *
      * @param projectId the project ID
      * @return the project object
      */
@@ -42,4 +108,67 @@ public class ProjectDao {
         return this.projects.get(projectId);
     }
 
-}
\ No newline at end of file
+    /**
+     * Searches the projects whose descriptions contain all the words of the keywords among the given projects, e.g.
+     * the projects visible to the caller. The given IDs drive the search and the index is only probed, so the search
+     * takes time proportional to the number of given IDs, no matter how many other projects match the keywords. Only
+     * the projects of the requested page are loaded.
+     *
+     * @param keywords the keywords, case insensitive; blank matches all given projects
+     * @param projectIds the IDs of the projects to search among in ascending order
+     * @param offset the number of matching projects to skip
+     * @param limit the maximum number of projects returned
+     * @return the matching projects in the order of the given IDs
+     */
+    public List<Project> searchProjects(String keywords, List<Long> projectIds, int offset, int limit) {
+        final List<Set<Long>> postings = new ArrayList<Set<Long>>();
+        for (String word : words(keywords)) {
+            final Set<Long> posting = this.projectIdsByWord.get(word);
+            if (posting == null) {
+                // no project contains the word
+                return new ArrayList<Project>();
+            }
+            postings.add(posting);
+        }
+
+        final List<Project> page = new ArrayList<Project>(Math.min(limit, projectIds.size()));
+        int skipped = 0;
+        for (Long projectId : projectIds) {
+            if (page.size() >= limit) {
+                break;
+            }
+            if (!containsAll(postings, projectId)) {
+                continue;
+            }
+            final Project project = this.projects.get(projectId);
+            if (project == null) {
+                // the ID is not a project, e.g. a grant on a deleted project
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+            }
+            else {
+                page.add(project);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns whether all the posting sets contain the project ID.
+     *
+     * @param postings the posting sets
+     * @param projectId the project ID
+     * @return {@code true} if the project contains all the words
+     */
+    private static boolean containsAll(List<Set<Long>> postings, Long projectId) {
+        for (Set<Long> posting : postings) {
+            if (!posting.contains(projectId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
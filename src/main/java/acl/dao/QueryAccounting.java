@@ -0,0 +1,509 @@
+package acl.dao;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * <p>
+ * Accounts the datastore calls per logical operation: queries, result batches, batch gets, entities and bytes read.
+ * Once {@link #install() installed}, every datastore call is accounted to the {@link Scope scopes} open for the API
+ * environment of the calling thread. The environment is shared with worker threads by {@link DatastoreCallable}, so the
+ * calls of parallel lookups are accounted to the request as well. Without an open scope a call is only passed on.
+ * </p>
+ * <p>
+ * The calls are told apart by the service and method names only, the requests and responses are not parsed, as their
+ * protocol buffers are internal to the SDK. The entities read are therefore reported by the DAOs through
+ * {@link #recordEntitiesRead(int)}.
+ * </p>
+ * <p>
+ * In tests, a scope is opened by {@link #begin(String)} and checked e.g. by {@link Scope#assertMaxQueries(long)}. In
+ * production, {@link #sample(String)} opens a scope for a fraction of the operations only. A scope whose number of
+ * queries is not lower than its {@link Scope#setResultSize(int) result size}, i.e. which queries once per result item,
+ * is logged as a likely N+1 query loop.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class QueryAccounting {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(QueryAccounting.class.getName());
+
+    /** Package of the datastore API calls. */
+    private static final String DATASTORE_PACKAGE = "datastore_v3";
+
+    /** Minimum result size of a scope to be flagged as N+1. */
+    private static final int MIN_FLAGGED_RESULT_SIZE = 2;
+
+    /**
+     * Datastore calls accounted to a logical operation. Closing the scope stops the accounting.
+     */
+    public final class Scope implements AutoCloseable {
+
+        /** Name of the logical operation. */
+        private final String operation;
+
+        /** API environment the scope is open for, {@code null} if the scope is inactive. */
+        private final ApiProxy.Environment environment;
+
+        /** The enclosing scope, {@code null} if none. */
+        private final Scope parent;
+
+        /** Number of queries. */
+        private final AtomicLong queries = new AtomicLong();
+
+        /** Number of additional result batches of the queries. */
+        private final AtomicLong batches = new AtomicLong();
+
+        /** Number of batch gets. */
+        private final AtomicLong gets = new AtomicLong();
+
+        /** Number of entities read. */
+        private final AtomicLong entitiesRead = new AtomicLong();
+
+        /** Number of bytes read. */
+        private final AtomicLong bytesRead = new AtomicLong();
+
+        /** Number of datastore calls. */
+        private final AtomicLong calls = new AtomicLong();
+
+        /** Size of the result of the logical operation, {@code -1} if unknown. */
+        private volatile int resultSize = -1;
+
+        /**
+         * Creates {@link Scope} with the specified details.
+         *
+         * @param operation name of the logical operation
+         * @param environment API environment the scope is open for, {@code null} for an inactive scope
+         * @param parent the enclosing scope or {@code null}
+         */
+        Scope(String operation, ApiProxy.Environment environment, Scope parent) {
+            this.operation = operation;
+            this.environment = environment;
+            this.parent = parent;
+        }
+
+        /**
+         * Accounts a completed datastore call to the scope and the enclosing scopes.
+         *
+         * @param method the datastore method
+         * @param response the response of the call
+         */
+        void record(String method, byte[] response) {
+            for (Scope scope = this; scope != null; scope = scope.parent) {
+                scope.calls.incrementAndGet();
+                scope.bytesRead.addAndGet(response.length);
+                switch (method) {
+                    case "RunQuery":
+                        scope.queries.incrementAndGet();
+                        break;
+                    case "Next":
+                        scope.batches.incrementAndGet();
+                        break;
+                    case "Get":
+                        scope.gets.incrementAndGet();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Accounts entities read to the scope and the enclosing scopes.
+         *
+         * @param count the number of entities
+         */
+        void recordEntities(int count) {
+            for (Scope scope = this; scope != null; scope = scope.parent) {
+                scope.entitiesRead.addAndGet(count);
+            }
+        }
+
+        /**
+         * Sets the size of the result of the logical operation, e.g. the number of objects whose ACLs were read.
+         *
+         * @param resultSize the result size
+         */
+        public void setResultSize(int resultSize) {
+            this.resultSize = resultSize;
+        }
+
+        /**
+         * Returns whether the datastore calls are accounted to the scope. A sampled-out scope is inactive.
+         *
+         * @return {@code true} if the scope is active
+         */
+        public boolean isActive() {
+            return this.environment != null;
+        }
+
+        /**
+         * Returns whether the scope queried at least once per result item, which suggests an N+1 query loop.
+         *
+         * @return {@code true} if the scope is flagged
+         */
+        public boolean isFlagged() {
+            return this.resultSize >= MIN_FLAGGED_RESULT_SIZE && this.queries.get() >= this.resultSize;
+        }
+
+        /**
+         * Returns the number of queries.
+         *
+         * @return the number of queries
+         */
+        public long getQueries() {
+            return this.queries.get();
+        }
+
+        /**
+         * Returns the number of additional result batches fetched by the queries.
+         *
+         * @return the number of result batches
+         */
+        public long getBatches() {
+            return this.batches.get();
+        }
+
+        /**
+         * Returns the number of batch gets.
+         *
+         * @return the number of batch gets
+         */
+        public long getGets() {
+            return this.gets.get();
+        }
+
+        /**
+         * Returns the number of entities read by the queries and gets, as reported by the DAOs.
+         *
+         * @return the number of entities read
+         */
+        public long getEntitiesRead() {
+            return this.entitiesRead.get();
+        }
+
+        /**
+         * Returns the number of bytes of the datastore responses.
+         *
+         * @return the number of bytes read
+         */
+        public long getBytesRead() {
+            return this.bytesRead.get();
+        }
+
+        /**
+         * Returns the number of datastore calls, including writes and transactions.
+         *
+         * @return the number of datastore calls
+         */
+        public long getCalls() {
+            return this.calls.get();
+        }
+
+        /**
+         * Asserts that the operation did not run more queries than expected.
+         *
+         * @param maxQueries the maximum number of queries
+         * @throws AssertionError if there were more queries
+         */
+        public void assertMaxQueries(long maxQueries) {
+            if (this.queries.get() > maxQueries) {
+                throw new AssertionError(String.format("Expected at most %d queries, but was: %s", maxQueries, this));
+            }
+        }
+
+        /**
+         * Asserts that the operation did not run more batch gets than expected.
+         *
+         * @param maxGets the maximum number of batch gets
+         * @throws AssertionError if there were more batch gets
+         */
+        public void assertMaxGets(long maxGets) {
+            if (this.gets.get() > maxGets) {
+                throw new AssertionError(String.format("Expected at most %d gets, but was: %s", maxGets, this));
+            }
+        }
+
+        /**
+         * Stops the accounting and logs the scope if it is flagged.
+         */
+        @Override
+        public void close() {
+            if (!isActive()) {
+                return;
+            }
+            synchronized (QueryAccounting.this.scopes) {
+                if (this.parent != null) {
+                    QueryAccounting.this.scopes.put(this.environment, this.parent);
+                }
+                else {
+                    QueryAccounting.this.scopes.remove(this.environment);
+                }
+            }
+
+            if (isFlagged()) {
+                QueryAccounting.this.flaggedCount.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Query count grows with result size, possible N+1: {0}", this);
+            }
+            else if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Datastore usage: {0}", this);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return String.format("%s[queries=%d, batches=%d, gets=%d, entities=%d, bytes=%d, calls=%d, results=%d]",
+                    this.operation, this.queries.get(), this.batches.get(), this.gets.get(), this.entitiesRead.get(),
+                    this.bytesRead.get(), this.calls.get(), this.resultSize);
+        }
+    }
+
+    /** Open scopes by API environment, weakly referenced so a request never closing its scope does not leak. */
+    private final Map<ApiProxy.Environment, Scope> scopes = new WeakHashMap<>();
+
+    /** Random numbers of the sampling. */
+    private final Random random = new Random();
+
+    /** Fraction of the operations accounted by {@link #sample(String)}. */
+    private volatile double sampleRate = 0.01;
+
+    /** Number of flagged scopes. */
+    private final AtomicLong flaggedCount = new AtomicLong();
+
+    /** The delegate replaced on installation, {@code null} if not installed. */
+    @SuppressWarnings("rawtypes")
+    private ApiProxy.Delegate installedOver;
+
+    /**
+     * Sets the fraction of the operations accounted by {@link #sample(String)}.
+     *
+     * @param sampleRate the fraction between 0 and 1, defaults to 0.01
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Returns the number of scopes flagged as a likely N+1 query loop so far.
+     *
+     * @return the number of flagged scopes
+     */
+    public long getFlaggedCount() {
+        return this.flaggedCount.get();
+    }
+
+    /**
+     * Starts accounting the datastore calls by wrapping the current API delegate. Must be installed again whenever the
+     * delegate is replaced, e.g. after every set up of the local test services.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public synchronized void install() {
+        if (this.installedOver != null) {
+            return;
+        }
+        this.installedOver = ApiProxy.getDelegate();
+        ApiProxy.setDelegate(new AccountingDelegate(this.installedOver));
+    }
+
+    /**
+     * Stops accounting the datastore calls by restoring the API delegate replaced on installation.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void uninstall() {
+        if (this.installedOver == null) {
+            return;
+        }
+        ApiProxy.setDelegate(this.installedOver);
+        this.installedOver = null;
+    }
+
+    /**
+     * Opens a scope accounting the datastore calls of the current API environment until closed. A scope opened while
+     * another one is open is nested, its calls are accounted to the enclosing scope too.
+     *
+     * @param operation name of the logical operation
+     * @return the open scope, inactive if there is no API environment
+     */
+    public Scope begin(String operation) {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        if (environment == null) {
+            return new Scope(operation, null, null);
+        }
+        synchronized (this.scopes) {
+            final Scope scope = new Scope(operation, environment, this.scopes.get(environment));
+            this.scopes.put(environment, scope);
+            return scope;
+        }
+    }
+
+    /**
+     * Opens a scope for the configured fraction of the operations only.
+     *
+     * @param operation name of the logical operation
+     * @return the open scope, inactive if the operation is not sampled
+     */
+    public Scope sample(String operation) {
+        if (this.random.nextDouble() >= this.sampleRate) {
+            return new Scope(operation, null, null);
+        }
+        return begin(operation);
+    }
+
+    /**
+     * Returns the innermost scope open for the API environment.
+     *
+     * @param environment the API environment
+     * @return the scope or {@code null} if none is open
+     */
+    Scope getScope(ApiProxy.Environment environment) {
+        if (environment == null) {
+            return null;
+        }
+        synchronized (this.scopes) {
+            return this.scopes.isEmpty() ? null : this.scopes.get(environment);
+        }
+    }
+
+    /**
+     * Accounts entities read by the current thread to the scopes open for its API environment, in every installed
+     * {@link QueryAccounting}. Called by the DAOs once the results of their queries and gets are fetched.
+     *
+     * @param count the number of entities read
+     */
+    public static void recordEntitiesRead(int count) {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        if (count == 0 || environment == null) {
+            return;
+        }
+        for (Object delegate = ApiProxy.getDelegate(); delegate instanceof AccountingDelegate;
+                delegate = ((AccountingDelegate) delegate).delegate) {
+            final Scope scope = ((AccountingDelegate) delegate).getAccounting().getScope(environment);
+            if (scope != null) {
+                scope.recordEntities(count);
+            }
+        }
+    }
+
+    /**
+     * API delegate accounting the datastore calls to the open scopes.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private final class AccountingDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+        /** The wrapped delegate. */
+        private final ApiProxy.Delegate delegate;
+
+        /**
+         * Creates {@link AccountingDelegate} wrapping the delegate.
+         *
+         * @param delegate the wrapped delegate
+         */
+        AccountingDelegate(ApiProxy.Delegate delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Returns the accounting the delegate was installed by.
+         *
+         * @return the query accounting
+         */
+        QueryAccounting getAccounting() {
+            return QueryAccounting.this;
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName, String methodName,
+                byte[] request) {
+            final byte[] response = this.delegate.makeSyncCall(environment, packageName, methodName, request);
+            final Scope scope = DATASTORE_PACKAGE.equals(packageName) ? getScope(environment) : null;
+            if (scope != null) {
+                scope.record(methodName, response);
+            }
+            return response;
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                final String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            final Future<byte[]> response = this.delegate.makeAsyncCall(environment, packageName, methodName,
+                    request, apiConfig);
+            final Scope scope = DATASTORE_PACKAGE.equals(packageName) ? getScope(environment) : null;
+            if (scope == null) {
+                return response;
+            }
+            return new Future<byte[]>() {
+
+                /** Whether the response was accounted already. */
+                private final AtomicBoolean recorded = new AtomicBoolean();
+
+                /**
+                 * Accounts the response on the first retrieval.
+                 */
+                private byte[] record(byte[] bytes) {
+                    if (this.recorded.compareAndSet(false, true)) {
+                        scope.record(methodName, bytes);
+                    }
+                    return bytes;
+                }
+
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    return response.cancel(mayInterruptIfRunning);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return response.isCancelled();
+                }
+
+                @Override
+                public boolean isDone() {
+                    return response.isDone();
+                }
+
+                @Override
+                public byte[] get() throws InterruptedException, ExecutionException {
+                    return record(response.get());
+                }
+
+                @Override
+                public byte[] get(long timeout, TimeUnit unit)
+                        throws InterruptedException, ExecutionException, TimeoutException {
+                    return record(response.get(timeout, unit));
+                }
+            };
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            this.delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            this.delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return this.delegate.getRequestThreads(environment);
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package acl.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import acl.model.AccessPolicy.SecurityIdentity;
+
+/**
+ * <p>
+ * Sharded layout of access policies for security identities with many grants (typically roles, e.g. ROLE_USER). All
+ * access policies of a security identity are normally parented under the same key, which makes a single entity group
+ * limited to about one write per second. Policies of a sharded security identity are spread across a fixed number of
+ * shard parents instead, the shard being chosen by hashing the domain object.
+ * </p>
+ * <p>
+ * Since the domain object always maps to the same shard, reading the policies for a domain object remains a single
+ * strongly consistent ancestor query. Only reading all policies of the security identity has to query all shards.
+ * The number of shards of a security identity must not change once it has policies stored.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class SecurityIdentitySharding {
+
+    /** Number of shards by security identity name. */
+    private final Map<String, Integer> shardCounts;
+
+    /**
+     * Creates {@link SecurityIdentitySharding} with the specified details.
+     *
+     * @param shardCounts number of shards by security identity name in the form of {type}:{identity}
+     */
+    public SecurityIdentitySharding(Map<String, Integer> shardCounts) {
+        this.shardCounts = new HashMap<>(shardCounts);
+    }
+
+    /**
+     * Returns the parent of the access policies of the security identity for the domain object.
+     *
+     * @param securityIdentity the security identity
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the shard of the security identity the domain object maps to, or the security identity itself if not
+     *          sharded
+     */
+    public SecurityIdentity getParent(SecurityIdentity securityIdentity, String objectType, Long objectId) {
+        final Integer shardCount = this.shardCounts.get(securityIdentity.getName());
+        if (shardCount == null) {
+            return securityIdentity;
+        }
+
+        final int hash = 31 * objectType.hashCode() + objectId.hashCode();
+        final int shard = ((hash % shardCount.intValue()) + shardCount.intValue()) % shardCount.intValue();
+        return securityIdentity.shard(shard);
+    }
+
+    /**
+     * Returns all parents of the access policies of the security identity.
+     *
+     * @param securityIdentity the security identity
+     * @return all shards of the security identity, or the security identity itself if not sharded
+     */
+    public List<SecurityIdentity> getParents(SecurityIdentity securityIdentity) {
+        final Integer shardCount = this.shardCounts.get(securityIdentity.getName());
+        if (shardCount == null) {
+            return Collections.singletonList(securityIdentity);
+        }
+
+        final List<SecurityIdentity> shards = new ArrayList<>(shardCount.intValue());
+        for (int shard = 0; shard < shardCount.intValue(); shard++) {
+            shards.add(securityIdentity.shard(shard));
+        }
+        return shards;
+    }
+
+}
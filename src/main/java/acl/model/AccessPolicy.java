@@ -5,7 +5,10 @@ import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
 import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.annotation.Unindex;
+import com.googlecode.objectify.condition.IfNotNull;
 
 /**
  * Represents an access policy for a domain object. Since the most up-to-date value for a given security identity is
@@ -24,7 +27,9 @@ public class AccessPolicy {
      * using a security identity are strong consistent meaning they always return most up-to-date results.
      * </p>
      * <p>
-     * Security identity is never stored itself, only as part of a respective access policy.
+     * Security identity is stored itself only to carry a version stamp, which is incremented with every change of its
+     * access policies in the same transaction. Comparing the stamps is a cheap way to find out whether policies read
+     * before are still up-to-date.
      * </p>
      *
      * @author Petr Giecek
@@ -46,14 +51,28 @@ public class AccessPolicy {
             ROLE
         }
 
+        /** Separates the shard number from the security identity name in the key of a shard. */
+        public static final char SHARD_SEPARATOR = '#';
+
+        /** Shard number of a security identity that is not a shard. */
+        public static final int NO_SHARD = -1;
+
         /** Serial version UID. */
         @SuppressWarnings("unused")
         private static final long serialVersionUID = 2L;
 
-        /** Security identity in the form of {type}:{identity}. */
+        /** Security identity in the form of {type}:{identity}, followed by #{shard} in case of a shard. */
         @Id
         private String sid;
 
+        /** Security identity name in the form of {type}:{identity}. */
+        @Ignore
+        private String name;
+
+        /** Shard number or {@link #NO_SHARD}. */
+        @Ignore
+        private int shard;
+
         /** Security identity type. */
         @Ignore
         private Type type;
@@ -62,6 +81,14 @@ public class AccessPolicy {
         @Ignore
         private String identity;
 
+        /** Version stamp, incremented with every change of the access policies. */
+        @Unindex
+        private long version;
+
+        /** The security identity as a {@link Key}, created on first request. */
+        @Ignore
+        private Key<SecurityIdentity> key;
+
         /**
          * Default constructor needed by Objectify.
          */
@@ -75,12 +102,39 @@ public class AccessPolicy {
          * @param key the {@link Key} instance
          */
         private SecurityIdentity(Key<SecurityIdentity> key) {
-            final String sid = key.getName();
-            final String[] split = sid.split(":");
+            this(key.getName());
+        }
+
+        /**
+         * Creates security identity based on provided name in the form of {type}:{identity}.
+         *
+         * @param sid the security identity name
+         */
+        private SecurityIdentity(String sid) {
+            this.sid = sid;
+            parseSid();
+        }
+
+        /**
+         * Sets the name, shard, type and the actual identity from the security identity key name, also when loaded
+         * from persistent storage since they are not stored.
+         */
+        @OnLoad
+        private void parseSid() {
+            final int separator = this.sid.indexOf(SHARD_SEPARATOR);
+            if (separator < 0) {
+                this.name = this.sid;
+                this.shard = NO_SHARD;
+            }
+            else {
+                this.name = this.sid.substring(0, separator);
+                this.shard = Integer.parseInt(this.sid.substring(separator + 1));
+            }
+
+            final String[] split = this.name.split(":");
 
             this.type = Type.valueOf(split[0]);
             this.identity = split[1];
-            this.sid = sid;
         }
 
         /**
@@ -93,6 +147,8 @@ public class AccessPolicy {
             this.type = type;
             this.identity = identity;
             this.sid = type.name() + ":" + identity;
+            this.name = this.sid;
+            this.shard = NO_SHARD;
         }
 
         /**
@@ -105,6 +161,16 @@ public class AccessPolicy {
             return new SecurityIdentity(key);
         }
 
+        /**
+         * Returns a security identity based on provided name in the form of {type}:{identity}.
+         *
+         * @param sid the security identity name
+         * @return a security identity based on provided name
+         */
+        public static SecurityIdentity valueOf(String sid) {
+            return new SecurityIdentity(sid);
+        }
+
         /**
          * Returns a security identity representing the given type and actual identity.
          *
@@ -117,12 +183,75 @@ public class AccessPolicy {
         }
 
         /**
-         * Returns the security identity as respective {@link Key} instance.
+         * Returns the security identity as respective {@link Key} instance. The key is created once per instance, so
+         * security identities resolved once (see {@link acl.security.ResolvedSids}) are not keyed on every lookup.
          *
          * @return the respective {@link Key} instance
          */
-        private Key<SecurityIdentity> asKey() {
-            return Key.create(this);
+        public Key<SecurityIdentity> asKey() {
+            Key<SecurityIdentity> created = this.key;
+            if (created == null) {
+                created = Key.create(this);
+                this.key = created;
+            }
+            return created;
+        }
+
+        /**
+         * Returns the security identity in the form of {type}:{identity}, followed by #{shard} in case of a shard, i.e.
+         * the name of its key. Unlike the {@link #getName() name}, it tells the shards of a security identity apart.
+         *
+         * @return the security identity including the shard
+         */
+        public String getSid() {
+            return this.sid;
+        }
+
+        /**
+         * Returns the security identity name in the form of {type}:{identity}. Shards of a security identity have the
+         * same name.
+         *
+         * @return the security identity name
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Returns a shard of this security identity. Shards are separate entity groups, so access policies parented
+         * under different shards can be written in parallel.
+         *
+         * @param shard the shard number
+         * @return the shard of this security identity
+         */
+        public SecurityIdentity shard(int shard) {
+            return new SecurityIdentity(this.name + SHARD_SEPARATOR + shard);
+        }
+
+        /**
+         * Returns the shard number.
+         *
+         * @return the shard number or {@link #NO_SHARD} if this security identity is not a shard
+         */
+        public int getShard() {
+            return this.shard;
+        }
+
+        /**
+         * Returns the version stamp of the access policies.
+         *
+         * @return the version stamp, {@code 0} if the security identity has never been stored
+         */
+        public long getVersion() {
+            return this.version;
+        }
+
+        /**
+         * Increments the version stamp of the access policies. Must be stored in the same transaction as the changed
+         * access policy.
+         */
+        public void incrementVersion() {
+            this.version++;
         }
 
         /**
@@ -197,6 +326,13 @@ public class AccessPolicy {
     /** Granted permission. */
     private String permission;
 
+    /**
+     * Time the grant expires in milliseconds since the epoch, {@code null} if it never expires. Only expiring policies
+     * are indexed, so the index the sweeper works through holds just them.
+     */
+    @Index(IfNotNull.class)
+    private Long expiresAt;
+
     /**
      * Default constructor,
      */
@@ -261,6 +397,18 @@ public class AccessPolicy {
         return SecurityIdentity.valueOf(this.securityIdentity);
     }
 
+    /**
+     * Returns the security identity name in the form of {type}:{identity}. Unlike {@link #getSecurityIdentity()} it
+     * does not need to parse the stored key. Policies parented under shards of a security identity have the same name.
+     *
+     * @return the security identity name
+     */
+    public String getSecurityIdentityName() {
+        final String name = this.securityIdentity.getName();
+        final int separator = name.indexOf(SecurityIdentity.SHARD_SEPARATOR);
+        return separator < 0 ? name : name.substring(0, separator);
+    }
+
     /**
      * Sets the security identity.
      *
@@ -324,6 +472,34 @@ public class AccessPolicy {
         this.permission = permission;
     }
 
+    /**
+     * Returns the time the grant expires.
+     *
+     * @return the time in milliseconds since the epoch or {@code null} if the grant never expires
+     */
+    public Long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    /**
+     * Sets the time the grant expires.
+     *
+     * @param expiresAt the time in milliseconds since the epoch or {@code null} if the grant never expires
+     */
+    public void setExpiresAt(Long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Returns whether the grant has expired.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return {@code true} if the grant has expired, {@code false} if it is still in effect
+     */
+    public boolean isExpired(long now) {
+        return this.expiresAt != null && this.expiresAt.longValue() <= now;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -370,6 +546,7 @@ public class AccessPolicy {
         sb.append(", objectType='").append(this.objectType).append('\'');
         sb.append(", objectId=").append(this.objectId);
         sb.append(", permission='").append(this.permission).append('\'');
+        sb.append(", expiresAt=").append(this.expiresAt);
         sb.append('}');
         return sb.toString();
     }
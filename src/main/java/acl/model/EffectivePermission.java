@@ -0,0 +1,228 @@
+package acl.model;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import acl.model.AccessPolicy.SecurityIdentity;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.EmbedMap;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * Row of the materialized view of effective permissions: all permissions a user has on a domain object, granted
+ * either to the user or to any of the user's roles. The row is a child of the user's security identity, so the
+ * permissions of a user on a domain object are a single keyed read.
+ *
+ * @author Petr Giecek
+ */
+@Entity
+public class EffectivePermission {
+
+    /** Serial version UID. */
+    @SuppressWarnings("unused")
+    private static final long serialVersionUID = 1L;
+
+    /** Row ID in the form of {objectType}:{objectId}. */
+    @Id
+    private String id;
+
+    /** Security identity of the user. */
+    @Parent
+    private Key<SecurityIdentity> securityIdentity;
+
+    /** Domain object type. */
+    private String objectType;
+
+    /** Domain object ID. */
+    private Long objectId;
+
+    /** Effective permissions. */
+    private Set<String> permissions = new TreeSet<>();
+
+    /** Times the expiring permissions expire in milliseconds since the epoch, keyed by the permission. */
+    @EmbedMap
+    private Map<String, Long> expirations = new HashMap<>();
+
+    /**
+     * Default constructor.
+     */
+    public EffectivePermission() {
+        super();
+    }
+
+    /**
+     * Creates {@link EffectivePermission} without any permission.
+     *
+     * @param securityIdentity the security identity of the user
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     */
+    public EffectivePermission(SecurityIdentity securityIdentity, String objectType, Long objectId) {
+        this.id = rowId(objectType, objectId);
+        this.securityIdentity = securityIdentity.asKey();
+        this.objectType = objectType;
+        this.objectId = objectId;
+    }
+
+    /**
+     * Returns the key of the row.
+     *
+     * @param securityIdentity the security identity of the user
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the row key
+     */
+    public static Key<EffectivePermission> key(SecurityIdentity securityIdentity, String objectType, Long objectId) {
+        return Key.create(securityIdentity.asKey(), EffectivePermission.class, rowId(objectType, objectId));
+    }
+
+    /**
+     * Returns the row ID.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the row ID
+     */
+    private static String rowId(String objectType, Long objectId) {
+        return objectType + ":" + objectId;
+    }
+
+    /**
+     * Returns the security identity of the user.
+     *
+     * @return the security identity of the user
+     */
+    public SecurityIdentity getSecurityIdentity() {
+        return SecurityIdentity.valueOf(this.securityIdentity.getName());
+    }
+
+    /**
+     * Returns the domain object type.
+     *
+     * @return the domain object type
+     */
+    public String getObjectType() {
+        return this.objectType;
+    }
+
+    /**
+     * Returns the domain object ID.
+     *
+     * @return the domain object ID
+     */
+    public Long getObjectId() {
+        return this.objectId;
+    }
+
+    /**
+     * Returns the effective permissions.
+     *
+     * @return the effective permissions
+     */
+    public Set<String> getPermissions() {
+        return this.permissions;
+    }
+
+    /**
+     * Returns the time the permission expires.
+     *
+     * @param permission the permission
+     * @return the time in milliseconds since the epoch or {@code null} if the permission never expires
+     */
+    public Long getExpiresAt(String permission) {
+        return this.expirations.get(permission);
+    }
+
+    /**
+     * Adds the permission.
+     *
+     * @param permission the permission
+     * @return {@code true} if the permission was not effective yet
+     */
+    public boolean addPermission(String permission) {
+        return addPermission(permission, null);
+    }
+
+    /**
+     * Adds the permission expiring at the given time. A permission granted several times expires with the last grant.
+     *
+     * @param permission the permission
+     * @param expiresAt the time the permission expires in milliseconds since the epoch or {@code null} if never
+     * @return {@code true} if the permission was not effective yet or now expires later
+     */
+    public boolean addPermission(String permission, Long expiresAt) {
+        if (this.permissions.add(permission)) {
+            if (expiresAt != null) {
+                this.expirations.put(permission, expiresAt);
+            }
+            return true;
+        }
+
+        final Long current = this.expirations.get(permission);
+        if (current == null) {
+            // never expires already
+            return false;
+        }
+        if (expiresAt == null) {
+            this.expirations.remove(permission);
+            return true;
+        }
+        if (expiresAt.longValue() > current.longValue()) {
+            this.expirations.put(permission, expiresAt);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the expired permissions.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return {@code true} if any permission was removed
+     */
+    public boolean removeExpired(long now) {
+        boolean removed = false;
+        for (Iterator<Map.Entry<String, Long>> it = this.expirations.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<String, Long> expiration = it.next();
+            if (expiration.getValue().longValue() <= now) {
+                this.permissions.remove(expiration.getKey());
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final EffectivePermission that = (EffectivePermission) o;
+
+        return this.id.equals(that.id) && this.securityIdentity.equals(that.securityIdentity)
+                && this.permissions.equals(that.permissions) && this.expirations.equals(that.expirations);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return 31 * this.id.hashCode() + this.permissions.hashCode();
+    }
+
+}
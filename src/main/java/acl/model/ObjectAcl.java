@@ -0,0 +1,258 @@
+package acl.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import acl.model.AccessPolicy.SecurityIdentity;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Embed;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Denormalized ACL of a single domain object: a copy of the access policies of all security identities on the object.
+ * Access policies are parented under their security identities, so reading all policies of an object means a query
+ * across entity groups, which is only eventually consistent. The document is keyed by the domain object instead, so
+ * the full ACL of an object is a single strongly consistent get.
+ *
+ * @author Petr Giecek
+ */
+@Entity
+public class ObjectAcl {
+
+    /**
+     * Copy of a single access policy.
+     *
+     * @author Petr Giecek
+     */
+    @Embed
+    public static class Entry {
+
+        /** Access policy ID. */
+        private Long id;
+
+        /** Name of the parent of the access policy, i.e. the security identity or its shard. */
+        private String parent;
+
+        /** Granted permission. */
+        private String permission;
+
+        /** Time the grant expires in milliseconds since the epoch, {@code null} if it never expires. */
+        private Long expiresAt;
+
+        /**
+         * Default constructor needed by Objectify.
+         */
+        private Entry() {
+            super();
+        }
+
+        /**
+         * Creates {@link Entry} copying the access policy.
+         *
+         * @param accessPolicy the access policy
+         */
+        private Entry(AccessPolicy accessPolicy) {
+            this.id = accessPolicy.getId();
+            this.parent = accessPolicy.getSecurityIdentity().asKey().getName();
+            this.permission = accessPolicy.getPermission();
+            this.expiresAt = accessPolicy.getExpiresAt();
+        }
+
+        /**
+         * Returns whether this entry is a copy of the access policy.
+         *
+         * @param accessPolicy the access policy
+         * @return {@code true} if the entry has the ID and parent of the access policy
+         */
+        private boolean copies(AccessPolicy accessPolicy) {
+            return this.id.equals(accessPolicy.getId())
+                    && this.parent.equals(accessPolicy.getSecurityIdentity().asKey().getName());
+        }
+
+        /**
+         * Returns whether this entry equals a copy of the access policy.
+         *
+         * @param accessPolicy the access policy
+         * @return {@code true} if the entry is an up-to-date copy of the access policy
+         */
+        private boolean isCopyOf(AccessPolicy accessPolicy) {
+            return copies(accessPolicy) && this.permission.equals(accessPolicy.getPermission())
+                    && (this.expiresAt == null ? accessPolicy.getExpiresAt() == null
+                            : this.expiresAt.equals(accessPolicy.getExpiresAt()));
+        }
+    }
+
+    /** Serial version UID. */
+    @SuppressWarnings("unused")
+    private static final long serialVersionUID = 1L;
+
+    /** Document ID in the form of {objectType}:{objectId}. */
+    @Id
+    private String id;
+
+    /** Domain object type. */
+    @Index
+    private String objectType;
+
+    /** Domain object ID. */
+    private Long objectId;
+
+    /** Copies of the access policies of the domain object. */
+    private List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Default constructor needed by Objectify.
+     */
+    private ObjectAcl() {
+        super();
+    }
+
+    /**
+     * Creates {@link ObjectAcl} without any access policy.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     */
+    public ObjectAcl(String objectType, Long objectId) {
+        this.id = documentId(objectType, objectId);
+        this.objectType = objectType;
+        this.objectId = objectId;
+    }
+
+    /**
+     * Returns the key of the document.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the document key
+     */
+    public static Key<ObjectAcl> key(String objectType, Long objectId) {
+        return Key.create(ObjectAcl.class, documentId(objectType, objectId));
+    }
+
+    /**
+     * Returns the document ID.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the document ID
+     */
+    private static String documentId(String objectType, Long objectId) {
+        return objectType + ":" + objectId;
+    }
+
+    /**
+     * Returns the domain object type.
+     *
+     * @return the domain object type
+     */
+    public String getObjectType() {
+        return this.objectType;
+    }
+
+    /**
+     * Returns the domain object ID.
+     *
+     * @return the domain object ID
+     */
+    public Long getObjectId() {
+        return this.objectId;
+    }
+
+    /**
+     * Returns the copies of the access policies.
+     *
+     * @return the access policies of the domain object
+     */
+    public List<AccessPolicy> getAccessPolicies() {
+        final List<AccessPolicy> accessPolicies = new ArrayList<>(this.entries.size());
+        for (Entry entry : this.entries) {
+            final AccessPolicy accessPolicy = new AccessPolicy(entry.id, SecurityIdentity.valueOf(entry.parent),
+                    this.objectType, this.objectId, entry.permission);
+            accessPolicy.setExpiresAt(entry.expiresAt);
+            accessPolicies.add(accessPolicy);
+        }
+        return accessPolicies;
+    }
+
+    /**
+     * Adds a copy of the access policy or replaces the existing copy.
+     *
+     * @param accessPolicy the saved access policy of the domain object
+     */
+    public void put(AccessPolicy accessPolicy) {
+        remove(accessPolicy);
+        this.entries.add(new Entry(accessPolicy));
+    }
+
+    /**
+     * Removes the copy of the access policy.
+     *
+     * @param accessPolicy the deleted access policy of the domain object
+     * @return {@code true} if the document contained a copy
+     */
+    public boolean remove(AccessPolicy accessPolicy) {
+        for (Iterator<Entry> iterator = this.entries.iterator(); iterator.hasNext();) {
+            if (iterator.next().copies(accessPolicy)) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the document holds up-to-date copies of exactly the given access policies.
+     *
+     * @param accessPolicies the stored access policies of the domain object
+     * @return {@code true} if the document is in sync with the policies
+     */
+    public boolean isCopyOf(Collection<AccessPolicy> accessPolicies) {
+        if (this.entries.size() != accessPolicies.size()) {
+            return false;
+        }
+        final Set<Entry> matched = new HashSet<>();
+        for (AccessPolicy accessPolicy : accessPolicies) {
+            boolean found = false;
+            for (Entry entry : this.entries) {
+                if (entry.isCopyOf(accessPolicy) && matched.add(entry)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces all copies by copies of the given access policies.
+     *
+     * @param accessPolicies the stored access policies of the domain object
+     */
+    public void replace(Collection<AccessPolicy> accessPolicies) {
+        this.entries.clear();
+        for (AccessPolicy accessPolicy : accessPolicies) {
+            this.entries.add(new Entry(accessPolicy));
+        }
+    }
+
+    /**
+     * Returns whether the document holds no access policy.
+     *
+     * @return {@code true} if the document is empty
+     */
+    public boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+}
@@ -0,0 +1,285 @@
+package acl.model;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import acl.model.AccessPolicy.SecurityIdentity;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.EmbedMap;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * <p>
+ * A chunk of the visibility index: a bitmap of the IDs of the domain objects of one type the security identity has
+ * been granted a permission on. The ID range is split into chunks of {@link #CHUNK_SIZE} IDs, so a single chunk never
+ * grows beyond a few kilobytes and only the chunks covering the IDs of interest need to be loaded.
+ * </p>
+ * <p>
+ * Like {@link AccessPolicy}, a chunk is a child of the security identity, so it is updated in the same transaction as
+ * the access policies and read with strong consistency.
+ * </p>
+ * <p>
+ * The chunk keeps the expiry of the IDs granted by expiring policies only, so reads leave out the expired IDs before
+ * the expired policies are swept.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+@Entity
+public class VisibilityChunk {
+
+    /** Number of domain object IDs covered by a single chunk. */
+    public static final int CHUNK_SIZE = 1 << 16;
+
+    /** Serial version UID. */
+    @SuppressWarnings("unused")
+    private static final long serialVersionUID = 1L;
+
+    /** Chunk ID in the form of {objectType}:{permission}:{chunk}. */
+    @Id
+    private String id;
+
+    /** Security identity. */
+    @Parent
+    private Key<SecurityIdentity> securityIdentity;
+
+    /** Domain object type. */
+    @Index
+    private String objectType;
+
+    /** Granted permission. */
+    @Index
+    private String permission;
+
+    /** Chunk number. */
+    private long chunk;
+
+    /** The bitmap as stored. */
+    private byte[] bytes;
+
+    /** Bits of the domain object IDs relative to the first ID of the chunk. */
+    @Ignore
+    private BitSet bits = new BitSet();
+
+    /** Times the expiring IDs expire in milliseconds since the epoch, keyed by their bits. */
+    @EmbedMap
+    private Map<String, Long> expirations = new HashMap<>();
+
+    /**
+     * Default constructor.
+     */
+    public VisibilityChunk() {
+        super();
+    }
+
+    /**
+     * Creates an empty {@link VisibilityChunk} with the specified details.
+     *
+     * @param securityIdentity the security identity
+     * @param objectType the domain object type
+     * @param permission the granted permission
+     * @param chunk the chunk number
+     */
+    public VisibilityChunk(SecurityIdentity securityIdentity, String objectType, String permission, long chunk) {
+        this.id = chunkId(objectType, permission, chunk);
+        this.securityIdentity = securityIdentity.asKey();
+        this.objectType = objectType;
+        this.permission = permission;
+        this.chunk = chunk;
+    }
+
+    /**
+     * Returns the key of the chunk.
+     *
+     * @param securityIdentity the security identity
+     * @param objectType the domain object type
+     * @param permission the granted permission
+     * @param chunk the chunk number
+     * @return the chunk key
+     */
+    public static Key<VisibilityChunk> key(SecurityIdentity securityIdentity, String objectType, String permission,
+            long chunk) {
+        return Key.create(securityIdentity.asKey(), VisibilityChunk.class, chunkId(objectType, permission, chunk));
+    }
+
+    /**
+     * Returns the number of the chunk covering the domain object ID.
+     *
+     * @param objectId the domain object ID
+     * @return the chunk number
+     */
+    public static long chunkOf(long objectId) {
+        return objectId / CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the chunk ID.
+     *
+     * @param objectType the domain object type
+     * @param permission the granted permission
+     * @param chunk the chunk number
+     * @return the chunk ID
+     */
+    private static String chunkId(String objectType, String permission, long chunk) {
+        return objectType + ":" + permission + ":" + chunk;
+    }
+
+    /**
+     * Restores the bitmap when loaded from persistent storage.
+     */
+    @OnLoad
+    private void readBits() {
+        this.bits = this.bytes == null ? new BitSet() : BitSet.valueOf(this.bytes);
+    }
+
+    /**
+     * Serializes the bitmap before it is saved to persistent storage.
+     */
+    @OnSave
+    private void writeBits() {
+        this.bytes = this.bits.toByteArray();
+    }
+
+    /**
+     * Returns the security identity.
+     *
+     * @return the security identity
+     */
+    public SecurityIdentity getSecurityIdentity() {
+        return SecurityIdentity.valueOf(this.securityIdentity.getName());
+    }
+
+    /**
+     * Returns the domain object type.
+     *
+     * @return the domain object type
+     */
+    public String getObjectType() {
+        return this.objectType;
+    }
+
+    /**
+     * Returns the granted permission.
+     *
+     * @return the granted permission
+     */
+    public String getPermission() {
+        return this.permission;
+    }
+
+    /**
+     * Returns the chunk number.
+     *
+     * @return the chunk number
+     */
+    public long getChunk() {
+        return this.chunk;
+    }
+
+    /**
+     * Returns the bits of the domain object IDs not expired at the given time relative to the first ID of the chunk.
+     * The returned bitmap may be shared, callers combining chunks must work on a copy.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return the bits of the unexpired domain object IDs
+     */
+    public BitSet getBits(long now) {
+        if (this.expirations.isEmpty()) {
+            return this.bits;
+        }
+        BitSet unexpired = this.bits;
+        for (Map.Entry<String, Long> expiration : this.expirations.entrySet()) {
+            if (expiration.getValue().longValue() <= now) {
+                if (unexpired == this.bits) {
+                    unexpired = (BitSet) this.bits.clone();
+                }
+                unexpired.clear(Integer.parseInt(expiration.getKey()));
+            }
+        }
+        return unexpired;
+    }
+
+    /**
+     * Adds the domain object ID to the chunk.
+     *
+     * @param objectId the domain object ID, must be covered by this chunk
+     */
+    public void add(long objectId) {
+        add(objectId, null);
+    }
+
+    /**
+     * Adds the domain object ID expiring at the given time to the chunk. An ID added several times expires with the
+     * last grant.
+     *
+     * @param objectId the domain object ID, must be covered by this chunk
+     * @param expiresAt the time the ID expires in milliseconds since the epoch or {@code null} if never
+     */
+    public void add(long objectId, Long expiresAt) {
+        final int bit = bitOf(objectId);
+        final String key = String.valueOf(bit);
+        if (!this.bits.get(bit)) {
+            this.bits.set(bit);
+            if (expiresAt != null) {
+                this.expirations.put(key, expiresAt);
+            }
+            return;
+        }
+
+        final Long current = this.expirations.get(key);
+        if (current == null) {
+            // never expires already
+            return;
+        }
+        if (expiresAt == null) {
+            this.expirations.remove(key);
+        }
+        else if (expiresAt.longValue() > current.longValue()) {
+            this.expirations.put(key, expiresAt);
+        }
+    }
+
+    /**
+     * Removes the domain object ID from the chunk.
+     *
+     * @param objectId the domain object ID, must be covered by this chunk
+     */
+    public void remove(long objectId) {
+        final int bit = bitOf(objectId);
+        this.bits.clear(bit);
+        this.expirations.remove(String.valueOf(bit));
+    }
+
+    /**
+     * Returns whether the chunk contains the domain object ID.
+     *
+     * @param objectId the domain object ID
+     * @return {@code true} if the chunk contains the domain object ID
+     */
+    public boolean contains(long objectId) {
+        return chunkOf(objectId) == this.chunk && this.bits.get(bitOf(objectId));
+    }
+
+    /**
+     * Returns the bit of the domain object ID.
+     *
+     * @param objectId the domain object ID
+     * @return the bit relative to the first ID of the chunk
+     */
+    private int bitOf(long objectId) {
+        if (chunkOf(objectId) != this.chunk) {
+            throw new IllegalArgumentException(String.format("Object ID %1$d not covered by chunk %2$s",
+                    Long.valueOf(objectId), this.id));
+        }
+        return (int) (objectId % CHUNK_SIZE);
+    }
+
+}
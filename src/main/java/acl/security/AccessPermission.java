@@ -1,32 +1,64 @@
 package acl.security;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.security.acls.domain.AclFormattingUtils;
 import org.springframework.security.acls.model.Permission;
 
 /**
- * A set of access permissions.
+ * A set of access permissions forming a hierarchy: OWNER implies ADMIN, ADMIN implies EDITOR and EDITOR implies
+ * VIEWER. The implications are precomputed as bit masks, so whether a grant satisfies a permission is a single AND
+ * (see {@link #getImpliedMask()}).
  * 
  * @author Petr Giecek
  */
 public enum AccessPermission implements Permission {
 
     /** An object viewer. */
-    VIEWER(1 << 0, 'V');
+    VIEWER(1 << 0, 'V'),
+
+    /** An object editor. */
+    EDITOR(1 << 2, 'E', VIEWER),
+
+    /** An object administrator. */
+    ADMIN(1 << 3, 'A', EDITOR),
+
+    /** An object owner. */
+    OWNER(1 << 1, 'O', ADMIN);
+
+    /** Permission types by the number of trailing zeros of their masks. */
+    private static final AccessPermission[] BY_BIT = new AccessPermission[Integer.SIZE];
+
+    static {
+        for (AccessPermission accessPermission : values()) {
+            BY_BIT[Integer.numberOfTrailingZeros(accessPermission.mask)] = accessPermission;
+        }
+    }
 
     /** The integer bit mask for the permission. */
     private final int mask;
 
+    /** The bit mask of the permission and all permissions it implies. */
+    private final int impliedMask;
+
     /** The character to print for each active bit in the mask. */
     private final char code;
 
     /**
      * Sets the permission mask and uses the specified character for active bits.
      * 
-     * @param mask the integer bit mask for the permission
+     * @param mask the integer bit mask for the permission, exactly one bit must be set
      * @param code the character to print for each active bit in the mask (see {@link Permission#getPattern()})
+     * @param implied the permissions directly implied by the permission
      */
-    private AccessPermission(int mask, char code) {
+    private AccessPermission(int mask, char code, AccessPermission... implied) {
+        int impliedMask = mask;
+        for (AccessPermission accessPermission : implied) {
+            impliedMask |= accessPermission.impliedMask;
+        }
         this.mask = mask;
+        this.impliedMask = impliedMask;
         this.code = code;
     }
 
@@ -38,6 +70,26 @@ public enum AccessPermission implements Permission {
         return this.mask;
     }
 
+    /**
+     * Returns the bit mask of the permission and all permissions it implies, directly or transitively. A grant of the
+     * permission satisfies a permission {@code p} if {@code (getImpliedMask() & p.getMask()) == p.getMask()}.
+     * 
+     * @return the implied bit mask
+     */
+    public int getImpliedMask() {
+        return this.impliedMask;
+    }
+
+    /**
+     * Returns whether a grant of the permission satisfies the specified permission.
+     * 
+     * @param permission the permission to check
+     * @return {@code true} if the permission is implied
+     */
+    public boolean implies(Permission permission) {
+        return (this.impliedMask & permission.getMask()) == permission.getMask();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -47,19 +99,35 @@ public enum AccessPermission implements Permission {
     }
 
     /**
-     * Returns the permission type with the specified mask.
+     * Returns the permission type with the specified mask. A table lookup, no search.
      * 
      * @param mask the integer bit mask for the permission
      * @return the permission type with the specified mask
      * @throws IllegalArgumentException if there is no permission type with the specified mask
      */
-    public static Permission fromMask(int mask) {
+    public static AccessPermission fromMask(int mask) {
+        final AccessPermission accessPermission = Integer.bitCount(mask) == 1
+                ? BY_BIT[Integer.numberOfTrailingZeros(mask)] : null;
+        if (accessPermission == null) {
+            throw new IllegalArgumentException("Unknown mask: " + mask);
+        }
+        return accessPermission;
+    }
+
+    /**
+     * Returns the permission types implying the specified permission, including the permission itself.
+     * 
+     * @param permission the permission
+     * @return the permission types a grant of which satisfies the permission
+     */
+    public static List<AccessPermission> implying(Permission permission) {
+        final List<AccessPermission> implying = new ArrayList<>();
         for (AccessPermission accessPermission : values()) {
-            if (accessPermission.getMask() == mask) {
-                return accessPermission;
+            if (accessPermission.implies(permission)) {
+                implying.add(accessPermission);
             }
         }
-        throw new IllegalArgumentException("Unknown mask: " + mask);
+        return implying;
     }
 
 }
@@ -0,0 +1,46 @@
+package acl.security;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.security.acls.domain.PermissionFactory;
+import org.springframework.security.acls.model.Permission;
+
+/**
+ * {@link PermissionFactory} for {@link AccessPermission}. Both names and masks are resolved by table lookups, unlike
+ * {@link org.springframework.security.acls.domain.DefaultPermissionFactory} which builds cumulative permissions for
+ * unregistered masks.
+ *
+ * @author Petr Giecek
+ */
+public class AccessPermissionFactory implements PermissionFactory {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Permission buildFromMask(int mask) {
+        return AccessPermission.fromMask(mask);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Permission buildFromName(String name) {
+        return AccessPermission.valueOf(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Permission> buildFromNames(List<String> names) {
+        final List<Permission> permissions = new ArrayList<>(names.size());
+        for (String name : names) {
+            permissions.add(buildFromName(name));
+        }
+        return permissions;
+    }
+
+}
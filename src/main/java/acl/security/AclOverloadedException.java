@@ -0,0 +1,25 @@
+package acl.security;
+
+import org.springframework.security.acls.model.AclDataAccessException;
+
+/**
+ * Thrown if an ACL lookup is rejected by the admission control of {@link SimpleAclService} and no recently cached ACL
+ * can be served instead.
+ *
+ * @author Petr Giecek
+ */
+public class AclOverloadedException extends AclDataAccessException {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates {@link AclOverloadedException} with the specified message.
+     *
+     * @param msg the detail message
+     */
+    public AclOverloadedException(String msg) {
+        super(msg);
+    }
+
+}
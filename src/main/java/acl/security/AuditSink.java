@@ -0,0 +1,40 @@
+package acl.security;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import acl.security.AuthorizationAuditLog.Decision;
+
+/**
+ * Destination of the authorization decisions recorded by {@link AuthorizationAuditLog}. The sink is called by the
+ * single consumer thread of the log only, event by event, and flushed after every batch, so an implementation need
+ * not be thread safe and should buffer the events until flushed.
+ *
+ * @author Petr Giecek
+ */
+public interface AuditSink extends Closeable {
+
+    /**
+     * Writes a single decision.
+     *
+     * @param timeMillis time of the decision in milliseconds since the epoch
+     * @param decision the decision
+     * @param sids names of the security identities in the form of {type}:{identity}, the one granted the permission
+     *            or all checked
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @param permissions the granted permission or all checked, empty if not known
+     * @throws IOException if the decision cannot be written
+     */
+    void write(long timeMillis, Decision decision, List<String> sids, String objectType, Object objectId,
+            List<AccessPermission> permissions) throws IOException;
+
+    /**
+     * Flushes the decisions written so far.
+     *
+     * @throws IOException if the decisions cannot be flushed
+     */
+    void flush() throws IOException;
+
+}
@@ -0,0 +1,546 @@
+package acl.security;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.security.acls.model.Permission;
+import org.springframework.security.acls.model.Sid;
+
+/**
+ * <p>
+ * Audit trail of the authorization decisions, i.e. the grants and denials of {@link SimpleAcl#isGranted} and the
+ * lookups of {@link SimpleAclService} denied as there is no ACL, as made for
+ * {@link org.springframework.security.acls.AclPermissionEvaluator}. Recording a decision neither blocks nor allocates:
+ * the decision is written to a slot of a preallocated ring buffer claimed by a compare-and-set, the security
+ * identities, domain object and permissions are stored as references and resolved to names by the consumer. A
+ * background consumer thread drains the buffer in batches to an {@link AuditSink}.
+ * </p>
+ * <p>
+ * A grant records the security identity and permission granted, a denial all security identities and permissions
+ * checked. Every slot holds a fixed number of them, preallocated with the buffer; any beyond are left out and the
+ * decision is counted as truncated.
+ * </p>
+ * <p>
+ * When the consumer cannot keep up, the grants are sampled once the buffer is half full (see
+ * {@link #setOverloadSampleRate(int)}), and any decision is dropped while the buffer is full. Both are counted, so the
+ * trail is known to be incomplete. Denials are never sampled.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class AuthorizationAuditLog implements AutoCloseable {
+
+    /**
+     * Authorization decisions.
+     */
+    public enum Decision {
+
+        /** The permission is granted. */
+        GRANTED,
+
+        /** The permission is not granted by the ACL. */
+        DENIED,
+
+        /** There is no ACL for the domain object and security identities. */
+        NO_ACL
+    }
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(AuthorizationAuditLog.class.getName());
+
+    /** Default maximum number of security identities recorded per decision. */
+    public static final int DEFAULT_MAX_SIDS = 8;
+
+    /** Default maximum number of permissions recorded per decision. */
+    public static final int DEFAULT_MAX_PERMISSIONS = 4;
+
+    /** Slot index mask, the capacity is a power of two. */
+    private final int indexMask;
+
+    /** Times of the decisions. */
+    private final long[] times;
+
+    /** The decisions. */
+    private final Decision[] decisions;
+
+    /** Security identities per slot, either the names or {@link Sid} instances. */
+    private final Object[][] sids;
+
+    /** Numbers of the security identities per slot. */
+    private final int[] sidCounts;
+
+    /** Domain object types. */
+    private final String[] objectTypes;
+
+    /** Domain object IDs. */
+    private final Object[] objectIds;
+
+    /** Permission masks per slot. */
+    private final int[][] masks;
+
+    /** Numbers of the permission masks per slot, {@code 0} if not known. */
+    private final int[] maskCounts;
+
+    /** Sequence numbers of the events published to the slots. */
+    private final AtomicLongArray published;
+
+    /** Sequence number of the next event to record. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Sequence number of the next event to consume, written by the consumer only. */
+    private volatile long tail;
+
+    /** Number of events dropped as the buffer was full. */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /** Number of decisions recorded without some of the security identities or permissions checked. */
+    private final AtomicLong truncatedCount = new AtomicLong();
+
+    /** Number of grants left out by sampling. */
+    private final AtomicLong sampledOutCount = new AtomicLong();
+
+    /** Number of events written to the sink. */
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    /** Number of batches failed to be written to the sink. */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /** The sink. */
+    private final AuditSink sink;
+
+    /** Maximum number of events written per batch. */
+    private int batchSize = 1024;
+
+    /** Time the consumer waits for new events in milliseconds. */
+    private long flushIntervalMillis = 200L;
+
+    /** One of how many grants are recorded while the buffer is not half full. */
+    private volatile int grantSampleRate = 1;
+
+    /** One of how many grants are recorded while the buffer is at least half full. */
+    private volatile int overloadSampleRate = 16;
+
+    /** The consumer thread, {@code null} if not started. */
+    private volatile Thread consumer;
+
+    /** Whether the log is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates {@link AuthorizationAuditLog} recording up to {@value #DEFAULT_MAX_SIDS} security identities and
+     * {@value #DEFAULT_MAX_PERMISSIONS} permissions per decision.
+     *
+     * @param sink the sink the decisions are written to
+     * @param capacity the capacity of the buffer, rounded up to a power of two
+     */
+    public AuthorizationAuditLog(AuditSink sink, int capacity) {
+        this(sink, capacity, DEFAULT_MAX_SIDS, DEFAULT_MAX_PERMISSIONS);
+    }
+
+    /**
+     * Creates {@link AuthorizationAuditLog}.
+     *
+     * @param sink the sink the decisions are written to
+     * @param capacity the capacity of the buffer, rounded up to a power of two
+     * @param maxSids the maximum number of security identities recorded per decision
+     * @param maxPermissions the maximum number of permissions recorded per decision
+     */
+    public AuthorizationAuditLog(AuditSink sink, int capacity, int maxSids, int maxPermissions) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        if (maxSids < 1 || maxPermissions < 1) {
+            throw new IllegalArgumentException(String.format("Slot size out of range: %d SIDs, %d permissions",
+                    Integer.valueOf(maxSids), Integer.valueOf(maxPermissions)));
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.sink = sink;
+        this.indexMask = size - 1;
+        this.times = new long[size];
+        this.decisions = new Decision[size];
+        this.sids = new Object[size][maxSids];
+        this.sidCounts = new int[size];
+        this.objectTypes = new String[size];
+        this.objectIds = new Object[size];
+        this.masks = new int[size][maxPermissions];
+        this.maskCounts = new int[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.published.set(i, -1L);
+        }
+    }
+
+    /**
+     * Sets the maximum number of events written per batch.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the time the consumer waits for new events when the buffer is drained.
+     *
+     * @param flushIntervalMillis the time in milliseconds
+     */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Sets the sampling of grants while the buffer is less than half full.
+     *
+     * @param grantSampleRate one of how many grants is recorded, {@code 1} to record every grant
+     */
+    public void setGrantSampleRate(int grantSampleRate) {
+        this.grantSampleRate = grantSampleRate;
+    }
+
+    /**
+     * Sets the sampling of grants while the buffer is at least half full, i.e. the consumer cannot keep up.
+     *
+     * @param overloadSampleRate one of how many grants is recorded, {@code 1} to record every grant
+     */
+    public void setOverloadSampleRate(int overloadSampleRate) {
+        this.overloadSampleRate = overloadSampleRate;
+    }
+
+    /**
+     * Starts the consumer thread.
+     */
+    public synchronized void start() {
+        if (this.consumer != null || this.closed) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "authorization-audit");
+        thread.setDaemon(true);
+        this.consumer = thread;
+        thread.start();
+    }
+
+    /**
+     * Records a grant made by an ACL.
+     *
+     * @param sid name of the security identity granted the permission
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @param mask the granted permission mask
+     */
+    void recordGranted(String sid, String objectType, Object objectId, int mask) {
+        final long sequence = claim(Decision.GRANTED);
+        if (sequence < 0) {
+            return;
+        }
+        final int index = (int) sequence & this.indexMask;
+        this.sids[index][0] = sid;
+        this.sidCounts[index] = 1;
+        this.masks[index][0] = mask;
+        this.maskCounts[index] = 1;
+        publish(sequence, Decision.GRANTED, objectType, objectId);
+    }
+
+    /**
+     * Records a denial made by an ACL.
+     *
+     * @param sids names of the security identities checked
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @param permissions the permissions checked
+     */
+    void recordDenied(String[] sids, String objectType, Object objectId, List<Permission> permissions) {
+        final long sequence = claim(Decision.DENIED);
+        if (sequence < 0) {
+            return;
+        }
+        final int index = (int) sequence & this.indexMask;
+        final Object[] slotSids = this.sids[index];
+        final int sidCount = Math.min(sids.length, slotSids.length);
+        for (int i = 0; i < sidCount; i++) {
+            slotSids[i] = sids[i];
+        }
+        this.sidCounts[index] = sidCount;
+        final int[] slotMasks = this.masks[index];
+        final int maskCount = Math.min(permissions.size(), slotMasks.length);
+        for (int i = 0; i < maskCount; i++) {
+            slotMasks[i] = permissions.get(i).getMask();
+        }
+        this.maskCounts[index] = maskCount;
+        if (sidCount < sids.length || maskCount < permissions.size()) {
+            this.truncatedCount.incrementAndGet();
+        }
+        publish(sequence, Decision.DENIED, objectType, objectId);
+    }
+
+    /**
+     * Records a denial of a lookup finding no ACL. The permissions are not known.
+     *
+     * @param sids the security identities checked
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     */
+    void recordNoAcl(List<Sid> sids, String objectType, Object objectId) {
+        final long sequence = claim(Decision.NO_ACL);
+        if (sequence < 0) {
+            return;
+        }
+        final int index = (int) sequence & this.indexMask;
+        final Object[] slotSids = this.sids[index];
+        final int sidCount = Math.min(sids.size(), slotSids.length);
+        for (int i = 0; i < sidCount; i++) {
+            slotSids[i] = sids.get(i);
+        }
+        this.sidCounts[index] = sidCount;
+        this.maskCounts[index] = 0;
+        if (sidCount < sids.size()) {
+            this.truncatedCount.incrementAndGet();
+        }
+        publish(sequence, Decision.NO_ACL, objectType, objectId);
+    }
+
+    /**
+     * Claims a slot, unless the decision is sampled out or the buffer is full.
+     *
+     * @param decision the decision
+     * @return the sequence number of the claimed slot or {@code -1} if none claimed
+     */
+    private long claim(Decision decision) {
+        long sequence = this.head.get();
+        if (decision == Decision.GRANTED) {
+            final int sampleRate = sequence - this.tail > this.indexMask >> 1 ? this.overloadSampleRate
+                    : this.grantSampleRate;
+            if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+                this.sampledOutCount.incrementAndGet();
+                return -1L;
+            }
+        }
+
+        while (true) {
+            if (sequence - this.tail > this.indexMask) {
+                this.droppedCount.incrementAndGet();
+                return -1L;
+            }
+            if (this.head.compareAndSet(sequence, sequence + 1)) {
+                // the slot was consumed, the event recorded a capacity ago is written
+                return sequence;
+            }
+            sequence = this.head.get();
+        }
+    }
+
+    /**
+     * Writes the rest of the event to the claimed slot, whose security identities and permissions are written
+     * already, and publishes it.
+     *
+     * @param sequence the sequence number of the slot
+     * @param decision the decision
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     */
+    private void publish(long sequence, Decision decision, String objectType, Object objectId) {
+        final int index = (int) sequence & this.indexMask;
+        this.times[index] = System.currentTimeMillis();
+        this.decisions[index] = decision;
+        this.objectTypes[index] = objectType;
+        this.objectIds[index] = objectId;
+        this.published.lazySet(index, sequence);
+    }
+
+    /**
+     * Drains the events recorded so far to the sink, a batch at most, and flushes the sink. Called by the consumer
+     * thread, or directly if the consumer is not started.
+     *
+     * @return the number of drained events
+     */
+    public synchronized int drain() {
+        long next = this.tail;
+        int count = 0;
+        try {
+            while (count < this.batchSize) {
+                final int index = (int) next & this.indexMask;
+                if (this.published.get(index) != next) {
+                    break;
+                }
+                final long time = this.times[index];
+                final Decision decision = this.decisions[index];
+                final Object[] slotSids = this.sids[index];
+                final List<String> sidNames = new ArrayList<>(this.sidCounts[index]);
+                for (int i = 0; i < this.sidCounts[index]; i++) {
+                    sidNames.add(sidName(slotSids[i]));
+                    // release the reference
+                    slotSids[i] = null;
+                }
+                final int[] slotMasks = this.masks[index];
+                final List<AccessPermission> permissions = new ArrayList<>(this.maskCounts[index]);
+                for (int i = 0; i < this.maskCounts[index]; i++) {
+                    final AccessPermission permission = permission(slotMasks[i]);
+                    if (permission != null) {
+                        permissions.add(permission);
+                    }
+                }
+                final String objectType = this.objectTypes[index];
+                final Object objectId = this.objectIds[index];
+
+                // release the references, then the slot
+                this.objectIds[index] = null;
+                next++;
+                this.tail = next;
+                count++;
+
+                this.sink.write(time, decision, sidNames, objectType, objectId, permissions);
+                this.writtenCount.incrementAndGet();
+            }
+            if (count > 0) {
+                this.sink.flush();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // the events of the batch not flushed are lost, producers must not wait for the sink
+            this.failedCount.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Writing of the authorization audit events failed", e);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the name of the security identity.
+     *
+     * @param sid the security identity name or {@link Sid}
+     * @return the name in the form of {type}:{identity}
+     */
+    private static String sidName(Object sid) {
+        if (sid instanceof Sid) {
+            return SimpleAclService.mapToSecurityIdentity((Sid) sid).getName();
+        }
+        return (String) sid;
+    }
+
+    /**
+     * Returns the permission of the mask.
+     *
+     * @param mask the permission mask
+     * @return the permission or {@code null} if the mask is not known or is not a single access permission
+     */
+    private static AccessPermission permission(int mask) {
+        try {
+            return mask == 0 ? null : AccessPermission.fromMask(mask);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drains the buffer until closed.
+     */
+    private void consume() {
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(this.flushIntervalMillis);
+        while (!this.closed) {
+            if (drain() < this.batchSize) {
+                LockSupport.parkNanos(this, intervalNanos);
+            }
+        }
+    }
+
+    /**
+     * Stops the consumer, drains the remaining events and closes the sink.
+     *
+     * @throws IOException if the sink cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        final Thread thread = this.consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10L));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        while (drain() > 0) {
+            // until empty
+        }
+        this.sink.close();
+    }
+
+    /**
+     * Returns the number of recorded events, including those not written yet.
+     *
+     * @return the number of recorded events
+     */
+    public long getRecordedCount() {
+        return this.head.get();
+    }
+
+    /**
+     * Returns the number of events recorded but not written yet.
+     *
+     * @return the number of pending events
+     */
+    public long getPendingCount() {
+        return this.head.get() - this.tail;
+    }
+
+    /**
+     * Returns the number of events dropped as the buffer was full.
+     *
+     * @return the number of dropped events
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * Returns the number of decisions recorded without some of the security identities or permissions checked, as
+     * there were more than a slot holds.
+     *
+     * @return the number of truncated decisions
+     */
+    public long getTruncatedCount() {
+        return this.truncatedCount.get();
+    }
+
+    /**
+     * Returns the number of grants left out by sampling.
+     *
+     * @return the number of sampled out grants
+     */
+    public long getSampledOutCount() {
+        return this.sampledOutCount.get();
+    }
+
+    /**
+     * Returns the number of events written to the sink.
+     *
+     * @return the number of written events
+     */
+    public long getWrittenCount() {
+        return this.writtenCount.get();
+    }
+
+    /**
+     * Returns the number of failed writes of a batch to the sink.
+     *
+     * @return the number of failed batches
+     */
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+}
@@ -0,0 +1,398 @@
+package acl.security;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.core.convert.TypeDescriptor;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.EvaluationException;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.ParseException;
+import org.springframework.expression.ParserContext;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.security.access.expression.SecurityExpressionOperations;
+
+/**
+ * <p>
+ * Parser of authorization expressions (e.g. in {@code @PreAuthorize}) to be set on the security expression handler.
+ * Parsed expressions are cached by their text and every evaluation is timed, see {@link #getStats()}.
+ * </p>
+ * <p>
+ * The most common expressions, {@code hasRole('role')} and {@code hasPermission(#id, 'type', 'permission')}, are
+ * evaluated by calling the expression root directly instead of interpreting the SpEL syntax tree. Any other
+ * expression is evaluated by SpEL.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class AuthorizationExpressionParser implements ExpressionParser {
+
+    /**
+     * Evaluation statistics of a single expression.
+     */
+    public static final class Stats {
+
+        /** Whether the expression is evaluated without SpEL. */
+        private final boolean compiled;
+
+        /** Number of evaluations. */
+        private final AtomicLong count = new AtomicLong();
+
+        /** Total evaluation time in nanoseconds. */
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        /** Maximum evaluation time in nanoseconds. */
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * Creates {@link Stats} with the specified details.
+         *
+         * @param compiled whether the expression is evaluated without SpEL
+         */
+        Stats(boolean compiled) {
+            this.compiled = compiled;
+        }
+
+        /**
+         * Records an evaluation.
+         *
+         * @param nanos the evaluation time in nanoseconds
+         */
+        void record(long nanos) {
+            this.count.incrementAndGet();
+            this.totalNanos.addAndGet(nanos);
+            long max = this.maxNanos.get();
+            while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+                max = this.maxNanos.get();
+            }
+        }
+
+        /**
+         * Returns whether the expression is evaluated without SpEL.
+         *
+         * @return {@code true} if the expression is evaluated without SpEL
+         */
+        public boolean isCompiled() {
+            return this.compiled;
+        }
+
+        /**
+         * Returns the number of evaluations.
+         *
+         * @return the number of evaluations
+         */
+        public long getCount() {
+            return this.count.get();
+        }
+
+        /**
+         * Returns the total evaluation time, including the ACL lookups the expression triggers.
+         *
+         * @return the total evaluation time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return this.totalNanos.get();
+        }
+
+        /**
+         * Returns the maximum evaluation time.
+         *
+         * @return the maximum evaluation time in nanoseconds
+         */
+        public long getMaxNanos() {
+            return this.maxNanos.get();
+        }
+
+        /**
+         * Returns the mean evaluation time.
+         *
+         * @return the mean evaluation time in nanoseconds, {@code 0} if not evaluated yet
+         */
+        public long getMeanNanos() {
+            final long evaluations = this.count.get();
+            return evaluations == 0 ? 0L : this.totalNanos.get() / evaluations;
+        }
+    }
+
+    /**
+     * Evaluates an expression without SpEL.
+     */
+    private interface Evaluator {
+
+        /**
+         * Evaluates the expression.
+         *
+         * @param context the evaluation context
+         * @return the result
+         */
+        boolean evaluate(EvaluationContext context);
+    }
+
+    /** Pattern of {@code hasRole('role')}. */
+    private static final Pattern HAS_ROLE = Pattern.compile("\\s*hasRole\\('([^']*)'\\)\\s*");
+
+    /** Pattern of {@code hasPermission(#id, 'type', 'permission')}. */
+    private static final Pattern HAS_PERMISSION_BY_ID = Pattern.compile(
+            "\\s*hasPermission\\(\\s*#(\\w+)\\s*,\\s*'([^']*)'\\s*,\\s*'([^']*)'\\s*\\)\\s*");
+
+    /** SpEL parser. */
+    private final SpelExpressionParser spelParser = new SpelExpressionParser();
+
+    /** Parsed expressions by their text. */
+    private final ConcurrentMap<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    /** Evaluation statistics by expression text. */
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Expression parseExpression(String expressionString) throws ParseException {
+        Expression expression = this.expressions.get(expressionString);
+        if (expression == null) {
+            expression = new TimedExpression(this.spelParser.parseExpression(expressionString),
+                    createEvaluator(expressionString));
+            final Expression existing = this.expressions.putIfAbsent(expressionString, expression);
+            if (existing != null) {
+                expression = existing;
+            }
+        }
+        return expression;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Expression parseExpression(String expressionString, ParserContext context) throws ParseException {
+        if (context != null && context.isTemplate()) {
+            // not an authorization expression
+            return this.spelParser.parseExpression(expressionString, context);
+        }
+        return parseExpression(expressionString);
+    }
+
+    /**
+     * Returns the evaluation statistics of the parsed expressions.
+     *
+     * @return a map with the expression texts as keys and respective statistics as values
+     */
+    public Map<String, Stats> getStats() {
+        return Collections.unmodifiableMap(this.stats);
+    }
+
+    /**
+     * Creates the evaluator of a common expression.
+     *
+     * @param expressionString the expression text
+     * @return the evaluator or {@code null} if the expression must be evaluated by SpEL
+     */
+    private static Evaluator createEvaluator(String expressionString) {
+        final Matcher hasRole = HAS_ROLE.matcher(expressionString);
+        if (hasRole.matches()) {
+            final String role = hasRole.group(1);
+            return new Evaluator() {
+                @Override
+                public boolean evaluate(EvaluationContext context) {
+                    return root(context).hasRole(role);
+                }
+            };
+        }
+
+        final Matcher hasPermission = HAS_PERMISSION_BY_ID.matcher(expressionString);
+        if (hasPermission.matches()) {
+            final String variable = hasPermission.group(1);
+            final String targetType = hasPermission.group(2);
+            final String permission = hasPermission.group(3);
+            return new Evaluator() {
+                @Override
+                public boolean evaluate(EvaluationContext context) {
+                    return root(context).hasPermission(context.lookupVariable(variable), targetType, permission);
+                }
+            };
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the security expression root of the evaluation context.
+     *
+     * @param context the evaluation context
+     * @return the security expression root
+     */
+    private static SecurityExpressionOperations root(EvaluationContext context) {
+        return (SecurityExpressionOperations) context.getRootObject().getValue();
+    }
+
+    /**
+     * Expression recording its evaluation time. Evaluated by the evaluator if available, otherwise by SpEL.
+     */
+    private final class TimedExpression implements Expression {
+
+        /** The SpEL expression. */
+        private final Expression delegate;
+
+        /** The evaluator, {@code null} to evaluate by SpEL. */
+        private final Evaluator evaluator;
+
+        /** The evaluation statistics. */
+        private final Stats expressionStats;
+
+        /**
+         * Creates {@link TimedExpression} with the specified details.
+         *
+         * @param delegate the SpEL expression
+         * @param evaluator the evaluator or {@code null} to evaluate by SpEL
+         */
+        TimedExpression(Expression delegate, Evaluator evaluator) {
+            this.delegate = delegate;
+            this.evaluator = evaluator;
+            // expressions parsed concurrently share the statistics of the first one, whichever gets cached
+            final Stats created = new Stats(evaluator != null);
+            final Stats existing = AuthorizationExpressionParser.this.stats.putIfAbsent(
+                    delegate.getExpressionString(), created);
+            this.expressionStats = existing != null ? existing : created;
+        }
+
+        @Override
+        public Object getValue(EvaluationContext context) throws EvaluationException {
+            return getValue(context, Object.class);
+        }
+
+        @Override
+        public <T> T getValue(EvaluationContext context, Class<T> desiredResultType) throws EvaluationException {
+            final long start = System.nanoTime();
+            try {
+                if (this.evaluator != null && desiredResultType != null
+                        && desiredResultType.isAssignableFrom(Boolean.class)) {
+                    return desiredResultType.cast(Boolean.valueOf(this.evaluator.evaluate(context)));
+                }
+                return this.delegate.getValue(context, desiredResultType);
+            }
+            finally {
+                this.expressionStats.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public Object getValue() throws EvaluationException {
+            return this.delegate.getValue();
+        }
+
+        @Override
+        public Object getValue(Object rootObject) throws EvaluationException {
+            return this.delegate.getValue(rootObject);
+        }
+
+        @Override
+        public <T> T getValue(Class<T> desiredResultType) throws EvaluationException {
+            return this.delegate.getValue(desiredResultType);
+        }
+
+        @Override
+        public <T> T getValue(Object rootObject, Class<T> desiredResultType) throws EvaluationException {
+            return this.delegate.getValue(rootObject, desiredResultType);
+        }
+
+        @Override
+        public Object getValue(EvaluationContext context, Object rootObject) throws EvaluationException {
+            return this.delegate.getValue(context, rootObject);
+        }
+
+        @Override
+        public <T> T getValue(EvaluationContext context, Object rootObject, Class<T> desiredResultType)
+                throws EvaluationException {
+            return this.delegate.getValue(context, rootObject, desiredResultType);
+        }
+
+        @Override
+        public Class<?> getValueType() throws EvaluationException {
+            return this.delegate.getValueType();
+        }
+
+        @Override
+        public Class<?> getValueType(Object rootObject) throws EvaluationException {
+            return this.delegate.getValueType(rootObject);
+        }
+
+        @Override
+        public Class<?> getValueType(EvaluationContext context) throws EvaluationException {
+            return this.delegate.getValueType(context);
+        }
+
+        @Override
+        public Class<?> getValueType(EvaluationContext context, Object rootObject) throws EvaluationException {
+            return this.delegate.getValueType(context, rootObject);
+        }
+
+        @Override
+        public TypeDescriptor getValueTypeDescriptor() throws EvaluationException {
+            return this.delegate.getValueTypeDescriptor();
+        }
+
+        @Override
+        public TypeDescriptor getValueTypeDescriptor(Object rootObject) throws EvaluationException {
+            return this.delegate.getValueTypeDescriptor(rootObject);
+        }
+
+        @Override
+        public TypeDescriptor getValueTypeDescriptor(EvaluationContext context) throws EvaluationException {
+            return this.delegate.getValueTypeDescriptor(context);
+        }
+
+        @Override
+        public TypeDescriptor getValueTypeDescriptor(EvaluationContext context, Object rootObject)
+                throws EvaluationException {
+            return this.delegate.getValueTypeDescriptor(context, rootObject);
+        }
+
+        @Override
+        public boolean isWritable(EvaluationContext context) throws EvaluationException {
+            return this.delegate.isWritable(context);
+        }
+
+        @Override
+        public boolean isWritable(EvaluationContext context, Object rootObject) throws EvaluationException {
+            return this.delegate.isWritable(context, rootObject);
+        }
+
+        @Override
+        public boolean isWritable(Object rootObject) throws EvaluationException {
+            return this.delegate.isWritable(rootObject);
+        }
+
+        @Override
+        public void setValue(EvaluationContext context, Object value) throws EvaluationException {
+            this.delegate.setValue(context, value);
+        }
+
+        @Override
+        public void setValue(Object rootObject, Object value) throws EvaluationException {
+            this.delegate.setValue(rootObject, value);
+        }
+
+        @Override
+        public void setValue(EvaluationContext context, Object rootObject, Object value) throws EvaluationException {
+            this.delegate.setValue(context, rootObject, value);
+        }
+
+        @Override
+        public String getExpressionString() {
+            return this.delegate.getExpressionString();
+        }
+
+        @Override
+        public String toString() {
+            return this.delegate.toString();
+        }
+    }
+
+}
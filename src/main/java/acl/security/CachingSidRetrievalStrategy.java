@@ -0,0 +1,251 @@
+package acl.security;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.security.acls.domain.SidRetrievalStrategyImpl;
+import org.springframework.security.acls.model.Sid;
+import org.springframework.security.acls.model.SidRetrievalStrategy;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * <p>
+ * {@link SidRetrievalStrategy} resolving the SIDs of an {@link Authentication} once and returning them as
+ * {@link ResolvedSids} on every permission check. The SIDs are cached by the principal name and the set of authorities,
+ * so they are shared by all instances of the same authentication, e.g. the instances deserialized from the session on
+ * every request on App Engine. A check on the thread that did the last check for the same authentication instance is
+ * a plain reference comparison.
+ * </p>
+ * <p>
+ * The SIDs are resolved again if the authorities of the authentication change, or after {@link #invalidateAll()},
+ * e.g. when the role hierarchy changes.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class CachingSidRetrievalStrategy implements SidRetrievalStrategy {
+
+    /**
+     * Stable key of an authentication: the principal name and the set of authorities the SIDs are resolved from.
+     */
+    private static final class AuthenticationKey {
+
+        /** The principal name. */
+        private final String name;
+
+        /** The authorities. */
+        private final Set<String> authorities;
+
+        /**
+         * Creates {@link AuthenticationKey} of the authentication.
+         *
+         * @param authentication the authentication
+         */
+        private AuthenticationKey(Authentication authentication) {
+            this.name = authentication.getName();
+            this.authorities = new HashSet<>();
+            for (GrantedAuthority authority : authentication.getAuthorities()) {
+                this.authorities.add(authority.getAuthority());
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final AuthenticationKey that = (AuthenticationKey) o;
+
+            return (this.name != null ? this.name.equals(that.name) : that.name == null)
+                    && this.authorities.equals(that.authorities);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return 31 * (this.name != null ? this.name.hashCode() : 0) + this.authorities.hashCode();
+        }
+    }
+
+    /**
+     * SIDs resolved for an authentication key.
+     */
+    private static final class Entry {
+
+        /** Generation of the cache the entry was created in. */
+        private final long generation;
+
+        /** The resolved SIDs. */
+        private final ResolvedSids sids;
+
+        /** Whether the entry was invalidated, so the last checks of other threads do not use it either. */
+        private volatile boolean invalidated;
+
+        /**
+         * Creates {@link Entry}.
+         *
+         * @param generation generation of the cache
+         * @param sids the resolved SIDs
+         */
+        private Entry(long generation, ResolvedSids sids) {
+            this.generation = generation;
+            this.sids = sids;
+        }
+    }
+
+    /**
+     * Last check of a thread: the authentication instance, weakly referenced so the thread does not keep it alive.
+     */
+    private static final class LastCheck extends WeakReference<Authentication> {
+
+        /** The authorities collection of the authentication at the check. */
+        private final Collection<?> authorities;
+
+        /** The entry used by the check. */
+        private final Entry entry;
+
+        /**
+         * Creates {@link LastCheck}.
+         *
+         * @param authentication the authentication
+         * @param entry the entry used by the check
+         */
+        private LastCheck(Authentication authentication, Entry entry) {
+            super(authentication);
+            this.authorities = authentication.getAuthorities();
+            this.entry = entry;
+        }
+    }
+
+    /** Default maximum number of cached authentications. */
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Strategy resolving the SIDs on a cache miss. */
+    private final SidRetrievalStrategy delegate;
+
+    /** Resolved SIDs per authentication key. */
+    private final ConcurrentMap<AuthenticationKey, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Maximum number of cached authentications, the cache is cleared once exceeded. */
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /** Last check per thread. */
+    private final ThreadLocal<LastCheck> lastCheck = new ThreadLocal<>();
+
+    /** Generation of the cache, incremented by {@link #invalidateAll()}. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Number of SID resolutions. */
+    private final AtomicLong resolvedCount = new AtomicLong();
+
+    /**
+     * Creates {@link CachingSidRetrievalStrategy} resolving the SIDs by {@link SidRetrievalStrategyImpl}.
+     */
+    public CachingSidRetrievalStrategy() {
+        this(new SidRetrievalStrategyImpl());
+    }
+
+    /**
+     * Creates {@link CachingSidRetrievalStrategy} resolving the SIDs by the delegate, e.g. one applying a role
+     * hierarchy.
+     *
+     * @param delegate the strategy resolving the SIDs on a cache miss
+     */
+    public CachingSidRetrievalStrategy(SidRetrievalStrategy delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Sets the maximum number of cached authentications. The cache is cleared once exceeded.
+     *
+     * @param maxEntries the maximum number of cached authentications
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the SIDs of the authentication, resolved on the first call for the principal and authorities only.
+     *
+     * @param authentication the authentication
+     * @return the {@link ResolvedSids} of the authentication
+     */
+    @Override
+    public List<Sid> getSids(Authentication authentication) {
+        final LastCheck last = this.lastCheck.get();
+        if (last != null && last.get() == authentication && last.authorities == authentication.getAuthorities()
+                && isValid(last.entry)) {
+            return last.entry.sids;
+        }
+
+        final AuthenticationKey key = new AuthenticationKey(authentication);
+        Entry entry = this.entries.get(key);
+        if (entry == null || !isValid(entry)) {
+            entry = new Entry(this.generation.get(), new ResolvedSids(this.delegate.getSids(authentication)));
+            if (this.entries.size() >= this.maxEntries) {
+                this.entries.clear();
+            }
+            this.entries.put(key, entry);
+            this.resolvedCount.incrementAndGet();
+        }
+        this.lastCheck.set(new LastCheck(authentication, entry));
+        return entry.sids;
+    }
+
+    /**
+     * Returns whether the entry holds up-to-date SIDs.
+     *
+     * @param entry the entry
+     * @return {@code true} if the entry can be used
+     */
+    private boolean isValid(Entry entry) {
+        return entry.generation == this.generation.get() && !entry.invalidated;
+    }
+
+    /**
+     * Discards the SIDs of the authentication, so they are resolved again on the next check.
+     *
+     * @param authentication the authentication
+     */
+    public void invalidate(Authentication authentication) {
+        final Entry entry = this.entries.remove(new AuthenticationKey(authentication));
+        if (entry != null) {
+            entry.invalidated = true;
+        }
+    }
+
+    /**
+     * Discards the SIDs of all authentications, e.g. when the role hierarchy changes.
+     */
+    public void invalidateAll() {
+        // the last checks of all threads become invalid by the generation
+        this.generation.incrementAndGet();
+        this.entries.clear();
+    }
+
+    /**
+     * Returns the number of SID resolutions, i.e. cache misses.
+     *
+     * @return the number of SID resolutions
+     */
+    public long getResolvedCount() {
+        return this.resolvedCount.get();
+    }
+
+}
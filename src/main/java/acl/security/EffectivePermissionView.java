@@ -0,0 +1,322 @@
+package acl.security;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import acl.dao.AccessPolicyDao;
+import acl.dao.DatastoreCallable;
+import acl.dao.EffectivePermissionDao;
+import acl.model.AccessPolicy;
+import acl.model.AccessPolicy.SecurityIdentity;
+import acl.model.EffectivePermission;
+
+/**
+ * <p>
+ * Materialized view of the effective permissions per user and domain object, so checking the permissions of a user is
+ * a single keyed read instead of a query per security identity. The view is maintained incrementally: a grant to a
+ * user updates the user's row right away, a grant to a role is fanned out to the role members in background batches.
+ * Until a fan-out completes, checks of the members do not see the grant yet (see {@link #getLagMillis()}).
+ * </p>
+ * <p>
+ * Access policies stored before the view was enabled, or changes of role membership, require a {@link #rebuild(String)
+ * rebuild}.
+ * </p>
+ * <p>
+ * The view covers the user and the roles the {@link RoleMembership} lists for the user. The policies of any other
+ * security identity the permissions are checked for are read from the access policies.
+ * </p>
+ * <p>
+ * Rows keep the expiry of expiring grants, so expired permissions are ignored like expired policies are. Expired
+ * permissions are removed from a row when it is granted to next, or by a rebuild.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class EffectivePermissionView {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(EffectivePermissionView.class.getName());
+
+    /** Number of times a rebuild is attempted while the rows of the user change concurrently. */
+    private static final int MAX_REBUILD_ATTEMPTS = 5;
+
+    /** Effective permission DAO. */
+    private final EffectivePermissionDao effectivePermissionDao;
+
+    /** Access policy DAO. */
+    private final AccessPolicyDao accessPolicyDao;
+
+    /** Source of the role memberships. */
+    private final RoleMembership roleMembership;
+
+    /** Executor the fan-out batches run on, {@code null} to fan out synchronously. */
+    private ExecutorService executor;
+
+    /** Number of role members updated by a single fan-out batch. */
+    private int batchSize = 100;
+
+    /** Pending fan-out batches and the times they were enqueued in milliseconds. */
+    private final Map<Object, Long> pendingBatches = new ConcurrentHashMap<>();
+
+    /**
+     * Creates {@link EffectivePermissionView} with the specified details.
+     *
+     * @param effectivePermissionDao effective permission DAO
+     * @param accessPolicyDao access policy DAO
+     * @param roleMembership source of the role memberships
+     */
+    public EffectivePermissionView(EffectivePermissionDao effectivePermissionDao, AccessPolicyDao accessPolicyDao,
+            RoleMembership roleMembership) {
+        this.effectivePermissionDao = effectivePermissionDao;
+        this.accessPolicyDao = accessPolicyDao;
+        this.roleMembership = roleMembership;
+    }
+
+    /**
+     * Sets the executor the fan-out batches run on.
+     *
+     * @param executor the executor or {@code null} to fan out synchronously
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the number of role members updated by a single fan-out batch.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the unexpired effective permissions of the user on the domain object as access policies of the user,
+     * along with the access policies of the security identities the view does not cover.
+     *
+     * @param username the user name
+     * @param securityIdentities the security identities the permissions are checked for
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the access policies, empty list if the user has no permission on the domain object
+     */
+    public List<AccessPolicy> getAccessPolicies(String username, List<SecurityIdentity> securityIdentities,
+            String objectType, Long objectId) {
+        final SecurityIdentity securityIdentity = SecurityIdentity.valueOf(SecurityIdentity.Type.USER, username);
+        final Set<SecurityIdentity> covered = new HashSet<>();
+        covered.add(securityIdentity);
+        for (String role : this.roleMembership.getRoles(username)) {
+            covered.add(SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, role));
+        }
+        final List<SecurityIdentity> uncovered = new ArrayList<>();
+        for (SecurityIdentity candidate : securityIdentities) {
+            if (!covered.contains(candidate)) {
+                uncovered.add(candidate);
+            }
+        }
+
+        final EffectivePermission effectivePermission = this.effectivePermissionDao.get(securityIdentity,
+                objectType, objectId);
+        final List<AccessPolicy> accessPolicies = uncovered.isEmpty() ? new ArrayList<AccessPolicy>()
+                : new ArrayList<>(this.accessPolicyDao.getForDomainObject(uncovered, objectType, objectId));
+        if (effectivePermission == null) {
+            return accessPolicies;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (String permission : effectivePermission.getPermissions()) {
+            final AccessPolicy accessPolicy = new AccessPolicy(securityIdentity, objectType, objectId, permission);
+            accessPolicy.setExpiresAt(effectivePermission.getExpiresAt(permission));
+            if (!accessPolicy.isExpired(now)) {
+                accessPolicies.add(accessPolicy);
+            }
+        }
+        return accessPolicies;
+    }
+
+    /**
+     * Updates the view after the access policy was saved.
+     *
+     * @param accessPolicy the saved access policy
+     */
+    public void onGranted(final AccessPolicy accessPolicy) {
+        final SecurityIdentity securityIdentity = accessPolicy.getSecurityIdentity();
+        switch (securityIdentity.getType()) {
+            case USER:
+                grant(securityIdentity.getIdentity(), accessPolicy);
+                break;
+            case ROLE:
+                final List<String> members = this.roleMembership.getMembers(securityIdentity.getIdentity());
+                for (int from = 0; from < members.size(); from += this.batchSize) {
+                    fanOut(members.subList(from, Math.min(from + this.batchSize, members.size())), accessPolicy);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported type: " + securityIdentity.getType());
+        }
+    }
+
+    /**
+     * Grants the permission of the access policy to a batch of role members, in background if an executor is set.
+     *
+     * @param members the user names of the role members
+     * @param accessPolicy the access policy of the role
+     */
+    private void fanOut(final List<String> members, final AccessPolicy accessPolicy) {
+        final Object batch = new Object();
+        this.pendingBatches.put(batch, Long.valueOf(System.currentTimeMillis()));
+
+        if (this.executor == null) {
+            grant(batch, members, accessPolicy);
+            return;
+        }
+        this.executor.submit(new DatastoreCallable<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    grant(batch, members, accessPolicy);
+                    return null;
+                }
+                catch (RuntimeException e) {
+                    // the grant is missing in the view until the members are rebuilt
+                    LOGGER.log(Level.SEVERE, "Fan-out of " + accessPolicy.getSecurityIdentityName() + " failed", e);
+                    throw e;
+                }
+            }
+        }));
+    }
+
+    /**
+     * Grants the permission of the access policy to a batch of role members and completes the batch.
+     *
+     * @param batch the pending batch
+     * @param members the user names of the role members
+     * @param accessPolicy the access policy of the role
+     */
+    private void grant(Object batch, List<String> members, AccessPolicy accessPolicy) {
+        try {
+            for (String member : members) {
+                grant(member, accessPolicy);
+            }
+        }
+        finally {
+            this.pendingBatches.remove(batch);
+        }
+    }
+
+    /**
+     * Grants the permission of the access policy to the user.
+     *
+     * @param username the user name
+     * @param accessPolicy the access policy
+     */
+    private void grant(String username, AccessPolicy accessPolicy) {
+        this.effectivePermissionDao.grant(SecurityIdentity.valueOf(SecurityIdentity.Type.USER, username),
+                accessPolicy.getObjectType(), accessPolicy.getObjectId(), accessPolicy.getPermission(),
+                accessPolicy.getExpiresAt());
+    }
+
+    /**
+     * Rebuilds the rows of the user from the unexpired access policies of the user and of the user's roles. The rows
+     * are replaced in a transaction on the user's entity group, and the rebuild starts over if a grant changed them
+     * meanwhile, so the grant is not lost.
+     *
+     * @param username the user name
+     * @return the number of rows
+     */
+    public int rebuild(String username) {
+        final SecurityIdentity user = SecurityIdentity.valueOf(SecurityIdentity.Type.USER, username);
+
+        final List<SecurityIdentity> securityIdentities = new ArrayList<>();
+        securityIdentities.add(user);
+        for (String role : this.roleMembership.getRoles(username)) {
+            securityIdentities.add(SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, role));
+        }
+
+        for (int attempt = 1;; attempt++) {
+            // read before the policies, so a grant saved after the policies were read changes the rows
+            final List<EffectivePermission> stored = this.effectivePermissionDao.getAll(user);
+            final Map<String, EffectivePermission> rows = readRows(user, securityIdentities);
+            if (this.effectivePermissionDao.replace(user, stored, rows.values())) {
+                return rows.size();
+            }
+            if (attempt >= MAX_REBUILD_ATTEMPTS) {
+                throw new ConcurrentModificationException("Rows of " + username + " changed during rebuild");
+            }
+        }
+    }
+
+    /**
+     * Reads the rows of the user from the unexpired access policies of the security identities.
+     *
+     * @param user the security identity of the user
+     * @param securityIdentities the security identities of the user and of the user's roles
+     * @return the rows keyed by {objectType}:{objectId}
+     */
+    private Map<String, EffectivePermission> readRows(SecurityIdentity user,
+            List<SecurityIdentity> securityIdentities) {
+        final long now = System.currentTimeMillis();
+        final Map<String, EffectivePermission> rows = new HashMap<>();
+        for (SecurityIdentity securityIdentity : securityIdentities) {
+            for (AccessPolicy accessPolicy : this.accessPolicyDao.getForSecurityIdentity(securityIdentity)) {
+                if (accessPolicy.isExpired(now)) {
+                    continue;
+                }
+                final String rowId = accessPolicy.getObjectType() + ":" + accessPolicy.getObjectId();
+                EffectivePermission row = rows.get(rowId);
+                if (row == null) {
+                    row = new EffectivePermission(user, accessPolicy.getObjectType(), accessPolicy.getObjectId());
+                    rows.put(rowId, row);
+                }
+                row.addPermission(accessPolicy.getPermission(), accessPolicy.getExpiresAt());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Rebuilds the rows of all users.
+     *
+     * @return the number of rows
+     */
+    public int rebuildAll() {
+        int rowCount = 0;
+        for (String username : this.roleMembership.getUsers()) {
+            rowCount += rebuild(username);
+        }
+        return rowCount;
+    }
+
+    /**
+     * Returns the number of fan-out batches not completed yet.
+     *
+     * @return the number of pending fan-out batches
+     */
+    public int getPendingCount() {
+        return this.pendingBatches.size();
+    }
+
+    /**
+     * Returns the consistency lag of the view: how long the oldest pending fan-out batch has been waiting.
+     *
+     * @return the consistency lag in milliseconds, {@code 0} if the view is up-to-date
+     */
+    public long getLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (Long enqueuedAt : this.pendingBatches.values()) {
+            oldest = Math.min(oldest, enqueuedAt.longValue());
+        }
+        return oldest == Long.MAX_VALUE ? 0L : System.currentTimeMillis() - oldest;
+    }
+
+}
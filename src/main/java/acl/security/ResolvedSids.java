@@ -0,0 +1,98 @@
+package acl.security;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.springframework.security.acls.model.Sid;
+
+import acl.model.AccessPolicy.SecurityIdentity;
+
+/**
+ * Immutable, deduplicated list of the {@link Sid}s of an authentication, resolved once together with the respective
+ * {@link SecurityIdentity} instances, their names and datastore keys. {@link SimpleAclService} and {@link SimpleAcl}
+ * recognize the list and read the resolved forms instead of mapping every SID on every permission check.
+ *
+ * @author Petr Giecek
+ */
+public final class ResolvedSids extends AbstractList<Sid> implements RandomAccess {
+
+    /** The SIDs. */
+    private final Sid[] sids;
+
+    /** The respective security identities. */
+    private final List<SecurityIdentity> securityIdentities;
+
+    /** The respective security identity names. */
+    private final String[] names;
+
+    /** Hash code, computed once. */
+    private final int hashCode;
+
+    /**
+     * Creates {@link ResolvedSids} from the SIDs, dropping duplicates.
+     *
+     * @param sids the SIDs
+     */
+    public ResolvedSids(List<Sid> sids) {
+        this.sids = new LinkedHashSet<>(sids).toArray(new Sid[0]);
+        this.names = new String[this.sids.length];
+
+        final List<SecurityIdentity> resolved = new ArrayList<>(this.sids.length);
+        for (int i = 0; i < this.sids.length; i++) {
+            final SecurityIdentity securityIdentity = SimpleAclService.mapToSecurityIdentity(this.sids[i]);
+            // create the key now, the instance is shared by all lookups
+            securityIdentity.asKey();
+            resolved.add(securityIdentity);
+            this.names[i] = securityIdentity.getName();
+        }
+        this.securityIdentities = Collections.unmodifiableList(resolved);
+        this.hashCode = super.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Sid get(int index) {
+        return this.sids[index];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return this.sids.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+    /**
+     * Returns the security identities of the SIDs.
+     *
+     * @return the unmodifiable list of security identities in the order of the SIDs
+     */
+    public List<SecurityIdentity> getSecurityIdentities() {
+        return this.securityIdentities;
+    }
+
+    /**
+     * Returns the security identity names of the SIDs. The array is shared, callers must not modify it.
+     *
+     * @return the security identity names in the order of the SIDs
+     */
+    String[] getNames() {
+        return this.names;
+    }
+
+}
@@ -0,0 +1,36 @@
+package acl.security;
+
+import java.util.List;
+
+/**
+ * Source of the role memberships of users, used to fan out grants to roles into the materialized view of effective
+ * permissions (see {@link EffectivePermissionView}). Must agree with the authorities users are authenticated with.
+ *
+ * @author Petr Giecek
+ */
+public interface RoleMembership {
+
+    /**
+     * Returns all users.
+     *
+     * @return the user names
+     */
+    List<String> getUsers();
+
+    /**
+     * Returns the roles of the user.
+     *
+     * @param username the user name
+     * @return the role names, empty list if the user has none
+     */
+    List<String> getRoles(String username);
+
+    /**
+     * Returns the members of the role.
+     *
+     * @param role the role name
+     * @return the user names, empty list if the role has no member
+     */
+    List<String> getMembers(String role);
+
+}
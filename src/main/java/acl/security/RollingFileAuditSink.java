@@ -0,0 +1,146 @@
+package acl.security;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import acl.security.AuthorizationAuditLog.Decision;
+
+/**
+ * {@link AuditSink} writing the decisions as tab separated lines to a file rolled over by size: once the file exceeds
+ * the maximum size, it is renamed to {@code <file>.1}, the older files are shifted to {@code <file>.2} etc. and the
+ * oldest one is deleted. A line holds the time in milliseconds since the epoch, the decision, the security identities,
+ * the domain object type and ID and the permissions, the security identities and permissions separated by commas.
+ *
+ * @author Petr Giecek
+ */
+public class RollingFileAuditSink implements AuditSink {
+
+    /** The file. */
+    private final File file;
+
+    /** Maximum size of a file in bytes. */
+    private final long maxBytes;
+
+    /** Number of rolled over files kept. */
+    private final int maxBackups;
+
+    /** Writer of the current file, opened on the first write. */
+    private Writer writer;
+
+    /** Number of bytes in the current file. */
+    private long bytes;
+
+    /**
+     * Creates {@link RollingFileAuditSink}.
+     *
+     * @param file the file, appended to if exists
+     * @param maxBytes the maximum size of a file in bytes
+     * @param maxBackups the number of rolled over files kept
+     */
+    public RollingFileAuditSink(File file, long maxBytes, int maxBackups) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxBackups = maxBackups;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(long timeMillis, Decision decision, List<String> sids, String objectType, Object objectId,
+            List<AccessPermission> permissions) throws IOException {
+        if (this.writer == null) {
+            open();
+        }
+        else if (this.bytes >= this.maxBytes) {
+            rollOver();
+        }
+
+        final StringBuilder line = new StringBuilder();
+        line.append(timeMillis).append('\t').append(decision).append('\t');
+        for (int i = 0; i < sids.size(); i++) {
+            line.append(i == 0 ? "" : ",").append(sids.get(i));
+        }
+        line.append('\t').append(objectType).append('\t').append(objectId).append('\t');
+        if (permissions.isEmpty()) {
+            line.append('-');
+        }
+        for (int i = 0; i < permissions.size(); i++) {
+            line.append(i == 0 ? "" : ",").append(permissions.get(i).name());
+        }
+        line.append('\n');
+        this.writer.write(line.toString());
+        // the lines are ASCII but for the identities and IDs
+        this.bytes += line.length();
+    }
+
+    /**
+     * Opens the file for appending.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    private void open() throws IOException {
+        final File directory = this.file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true),
+                StandardCharsets.UTF_8));
+        this.bytes = this.file.length();
+    }
+
+    /**
+     * Closes the current file, shifts the rolled over files and opens a new file.
+     *
+     * @throws IOException if the files cannot be rolled over
+     */
+    private void rollOver() throws IOException {
+        close();
+        new File(this.file.getPath() + "." + this.maxBackups).delete();
+        for (int i = this.maxBackups - 1; i >= 1; i--) {
+            final File backup = new File(this.file.getPath() + "." + i);
+            if (backup.exists()) {
+                backup.renameTo(new File(this.file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (this.maxBackups > 0) {
+            this.file.renameTo(new File(this.file.getPath() + ".1"));
+        }
+        else {
+            this.file.delete();
+        }
+        open();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.writer != null) {
+            this.writer.flush();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.writer != null) {
+            try {
+                this.writer.close();
+            }
+            finally {
+                this.writer = null;
+            }
+        }
+    }
+
+}
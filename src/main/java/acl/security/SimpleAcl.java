@@ -1,53 +1,125 @@
 package acl.security;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import org.springframework.security.acls.domain.AccessControlEntryImpl;
 import org.springframework.security.acls.model.AccessControlEntry;
 import org.springframework.security.acls.model.Acl;
 import org.springframework.security.acls.model.ObjectIdentity;
 import org.springframework.security.acls.model.Permission;
 import org.springframework.security.acls.model.Sid;
 
+import acl.model.AccessPolicy;
+
 
 /**
- * Implementation of {@link Acl}.
- * 
+ * Immutable implementation of {@link Acl}. Only the compact form of the access policies (security identity names and
+ * permission masks) is kept, {@link AccessControlEntry} instances are created on demand by {@link #getEntries()}.
+ * Entries of expiring grants are checked against the clock whenever the ACL is evaluated, so an ACL held or cached
+ * past the expiry of a grant no longer grants it.
+ *
  * @author Petr Chudanic, Petr Giecek
  */
 public class SimpleAcl implements Acl {
 
-    /** Access control entries. */
-    private final List<AccessControlEntry> aces = new ArrayList<AccessControlEntry>();
+    /** Identity of the domain object this ACL belongs to. */
+    private final ObjectIdentity objectIdentity;
+
+    /** Access policy IDs, used as ACE IDs. */
+    private final Long[] ids;
+
+    /** Security identity names in the form of {type}:{identity}. */
+    private final String[] sids;
+
+    /** Granted permission masks. */
+    private final int[] masks;
+
+    /** Masks of the granted permissions and all permissions they imply (see {@link AccessPermission}). */
+    private final int[] impliedMasks;
+
+    /** Times the grants expire in milliseconds since the epoch, {@link Long#MAX_VALUE} if they never expire. */
+    private final long[] expiresAt;
+
+    /** Time the first grant expires in milliseconds since the epoch, {@link Long#MAX_VALUE} if none expires. */
+    private final long firstExpiresAt;
+
+    /** Access control entries, created on first request. */
+    private volatile List<AccessControlEntry> aces;
+
+    /** Audit log of the decisions of {@link #isGranted(List, List, boolean)}, {@code null} if not audited. */
+    private final AuthorizationAuditLog auditLog;
 
     /**
-     * Helper for inserting the ACE into this ACL. Since ACL should be immutable after retrieved, the method is not
-     * accessible from outside the package.
-     * 
-     * @param ace the ACE to insert
+     * Creates {@link SimpleAcl} from the access policies of a single domain object. Since ACL should be immutable
+     * after retrieved, the constructor is not accessible from outside the package.
+     *
+     * @param objectIdentity the identity of the domain object
+     * @param accessPolicies the access policies of the domain object, expired ones should be left out
+     * @param auditLog audit log of the decisions or {@code null} if not audited
      */
-    void insert(AccessControlEntry ace) {
-        this.aces.add(ace);
+    SimpleAcl(ObjectIdentity objectIdentity, List<AccessPolicy> accessPolicies, AuthorizationAuditLog auditLog) {
+        final int size = accessPolicies.size();
+
+        this.objectIdentity = objectIdentity;
+        this.auditLog = auditLog;
+        this.ids = new Long[size];
+        this.sids = new String[size];
+        this.masks = new int[size];
+        this.impliedMasks = new int[size];
+        this.expiresAt = new long[size];
+
+        long first = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            final AccessPolicy accessPolicy = accessPolicies.get(i);
+            final AccessPermission permission = AccessPermission.valueOf(accessPolicy.getPermission());
+            this.ids[i] = accessPolicy.getId();
+            this.sids[i] = accessPolicy.getSecurityIdentityName();
+            this.masks[i] = permission.getMask();
+            this.impliedMasks[i] = permission.getImpliedMask();
+            this.expiresAt[i] = accessPolicy.getExpiresAt() == null ? Long.MAX_VALUE
+                    : accessPolicy.getExpiresAt().longValue();
+            first = Math.min(first, this.expiresAt[i]);
+        }
+        this.firstExpiresAt = first;
     }
 
     /**
-     * Helper for deleting the ACE into this ACL. Since ACL should be immutable after retrieved, the method is not
-     * accessible from outside the package.
-     * 
-     * @param ace the ACE to insert
+     * Helper to determine whether this ACL contains an unexpired entry for the specified security identity and
+     * permission.
+     *
+     * @param sid the security identity name
+     * @param mask the permission mask
+     * @return {@code true} if this ACL contains such an entry, otherwise {@code false}
      */
-    void delete(AccessControlEntry ace) {
-        this.aces.remove(ace);
+    boolean contains(String sid, int mask) {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < this.sids.length; i++) {
+            if (this.masks[i] == mask && this.expiresAt[i] > now && this.sids[i].equals(sid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Helper to determine whether this ACL contains the specified ACE.
-     * 
-     * @param ace the ACE to check
-     * @return {@code true} if this ACL contains the specified ACE, otherwise {@code false}
+     * Helper to determine whether this ACL contains an unexpired entry for the specified security identity that grants
+     * the permission or a permission implying it.
+     *
+     * @param sid the security identity name
+     * @param mask the permission mask
+     * @param now the current time in milliseconds since the epoch
+     * @return {@code true} if this ACL contains such an entry, otherwise {@code false}
      */
-    boolean contains(AccessControlEntry ace) {
-        return this.aces.contains(ace);
+    private boolean grants(String sid, int mask, long now) {
+        for (int i = 0; i < this.sids.length; i++) {
+            if ((this.impliedMasks[i] & mask) == mask && this.expiresAt[i] > now && this.sids[i].equals(sid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -64,7 +136,16 @@ public class SimpleAcl implements Acl {
 
         final SimpleAcl simpleAcl = (SimpleAcl) o;
 
-        if (!this.aces.equals(simpleAcl.aces)) {
+        if (!Arrays.equals(this.ids, simpleAcl.ids)) {
+            return false;
+        }
+        if (!Arrays.equals(this.sids, simpleAcl.sids)) {
+            return false;
+        }
+        if (!Arrays.equals(this.masks, simpleAcl.masks)) {
+            return false;
+        }
+        if (!Arrays.equals(this.expiresAt, simpleAcl.expiresAt)) {
             return false;
         }
 
@@ -76,7 +157,11 @@ public class SimpleAcl implements Acl {
      */
     @Override
     public int hashCode() {
-        return this.aces.hashCode();
+        int result = Arrays.hashCode(this.ids);
+        result = 31 * result + Arrays.hashCode(this.sids);
+        result = 31 * result + Arrays.hashCode(this.masks);
+        result = 31 * result + Arrays.hashCode(this.expiresAt);
+        return result;
     }
 
     /**
@@ -84,22 +169,34 @@ public class SimpleAcl implements Acl {
      */
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder("SimpleAclImpl{");
-        sb.append("aces=").append(this.aces);
+        final StringBuilder sb = new StringBuilder("SimpleAcl{");
+        sb.append("objectIdentity=").append(this.objectIdentity);
+        sb.append(", sids=").append(Arrays.toString(this.sids));
+        sb.append(", masks=").append(Arrays.toString(this.masks));
         sb.append('}');
         return sb.toString();
     }
 
     @Override
     public ObjectIdentity getObjectIdentity() {
-        // not supported
-        throw new UnsupportedOperationException("The method is not implemented");
+        return this.objectIdentity;
     }
 
+    /**
+     * Returns the owner, i.e. the security identity granted {@link AccessPermission#OWNER}. Since the ACL holds only
+     * the entries of the security identities it was read for, the owner is known only if it is one of them.
+     *
+     * @return the owner or {@code null} if the owner is not among the loaded security identities
+     */
     @Override
     public Sid getOwner() {
-        // not supported
-        throw new UnsupportedOperationException("The method is not implemented");
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < this.sids.length; i++) {
+            if (this.masks[i] == AccessPermission.OWNER.getMask() && this.expiresAt[i] > now) {
+                return SimpleAclService.mapToSid(AccessPolicy.SecurityIdentity.valueOf(this.sids[i]));
+            }
+        }
+        return null;
     }
 
     @Override
@@ -116,18 +213,38 @@ public class SimpleAcl implements Acl {
 
     @Override
     public boolean isGranted(List<Permission> permission, List<Sid> sids, boolean administrativeMode) {
-        for (Permission p : permission) {
-            for (Sid sid : sids) {
-                // attempt to find exact match for this permission mask and SID
-                for (AccessControlEntry ace : this.aces) {
+        // read the clock once, so all permissions are checked at the same instant
+        final long now = System.currentTimeMillis();
+
+        // map the SIDs only once, not for every permission, unless resolved already
+        final String[] sidNames;
+        if (sids instanceof ResolvedSids) {
+            sidNames = ((ResolvedSids) sids).getNames();
+        }
+        else {
+            sidNames = new String[sids.size()];
+            for (int i = 0; i < sidNames.length; i++) {
+                sidNames[i] = SimpleAclService.mapToSecurityIdentity(sids.get(i)).getName();
+            }
+        }
 
-                    if ((ace.getPermission().getMask() == p.getMask()) && ace.getSid().equals(sid)) {
-                        // found a matching ACE
-                        return true;
+        for (Permission p : permission) {
+            for (String sidName : sidNames) {
+                // attempt to find a grant of this permission or of a permission implying it for the SID
+                if (grants(sidName, p.getMask(), now)) {
+                    // found a matching ACE
+                    if (this.auditLog != null) {
+                        this.auditLog.recordGranted(sidName, this.objectIdentity.getType(),
+                                this.objectIdentity.getIdentifier(), p.getMask());
                     }
+                    return true;
                 }
             }
         }
+        if (this.auditLog != null && sidNames.length > 0) {
+            this.auditLog.recordDenied(sidNames, this.objectIdentity.getType(), this.objectIdentity.getIdentifier(),
+                    permission);
+        }
         return false;
     }
 
@@ -137,9 +254,42 @@ public class SimpleAcl implements Acl {
         throw new UnsupportedOperationException("The method is not implemented");
     }
 
+    /**
+     * Returns the unexpired entries. The entries are created once unless some grant expires, then they are created on
+     * every call.
+     *
+     * @return the unmodifiable list of unexpired access control entries
+     */
     @Override
     public List<AccessControlEntry> getEntries() {
-        return this.aces;
+        if (this.firstExpiresAt != Long.MAX_VALUE) {
+            return createEntries(System.currentTimeMillis());
+        }
+        List<AccessControlEntry> entries = this.aces;
+        if (entries == null) {
+            entries = createEntries(Long.MIN_VALUE);
+            this.aces = entries;
+        }
+        return entries;
+    }
+
+    /**
+     * Creates the access control entries from the compact form.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return the unmodifiable list of access control entries unexpired at the time
+     */
+    private List<AccessControlEntry> createEntries(long now) {
+        final List<AccessControlEntry> entries = new ArrayList<AccessControlEntry>(this.sids.length);
+        for (int i = 0; i < this.sids.length; i++) {
+            if (this.expiresAt[i] <= now) {
+                continue;
+            }
+            final Sid sid = SimpleAclService.mapToSid(AccessPolicy.SecurityIdentity.valueOf(this.sids[i]));
+            final Permission permission = AccessPermission.fromMask(this.masks[i]);
+            entries.add(new AccessControlEntryImpl(this.ids[i], this, sid, permission, true, true, true));
+        }
+        return Collections.unmodifiableList(entries);
     }
 
 }
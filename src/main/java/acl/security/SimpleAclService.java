@@ -1,10 +1,31 @@
 package acl.security;
 
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import org.springframework.security.acls.domain.AccessControlEntryImpl;
 import org.springframework.security.acls.domain.GrantedAuthoritySid;
 import org.springframework.security.acls.domain.ObjectIdentityImpl;
 import org.springframework.security.acls.domain.PrincipalSid;
@@ -19,10 +40,18 @@ import org.springframework.security.acls.model.Permission;
 import org.springframework.security.acls.model.Sid;
 
 import acl.dao.AccessPolicyDao;
+import acl.dao.DatastoreCallable;
+import acl.dao.QueryAccounting;
 import acl.model.AccessPolicy;
 import acl.model.AccessPolicy.SecurityIdentity;
+import acl.util.AdaptiveLimiter;
 import acl.util.CollectionUtils;
 import acl.util.Function;
+import acl.util.SingleFlight;
+
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.util.ResultCache;
+import com.googlecode.objectify.util.ResultWrapper;
 
 /**
  * Implementation of {@link AclService} using Google Data Store as persistence mechanism
@@ -31,12 +60,67 @@ import acl.util.Function;
  */
 public class SimpleAclService implements AclService {
 
+    /** Number of stripes of the write sequence numbers, a power of two. */
+    private static final int WRITE_SEQUENCE_STRIPES = 256;
+
+    /**
+     * Behavior of a lookup rejected by the admission control when no recently cached ACL is available.
+     */
+    public enum OverloadPolicy {
+
+        /** The lookup fails with {@link NotFoundException}, i.e. the access is denied. */
+        DENY,
+
+        /** The lookup fails with {@link AclOverloadedException}, e.g. to be reported as service unavailable. */
+        FAIL
+    }
+
     /** Object identity generator. */
     private final ObjectIdentityGenerator objectIdentityGenerator;
 
     /** Access policy DAO. */
     private final AccessPolicyDao accessPolicyDao;
 
+    /** Executor used to read ACLs of several objects in parallel, {@code null} to read them sequentially. */
+    private ExecutorService executor;
+
+    /** Coalesces concurrent identical ACL lookups, {@code null} if every lookup queries the datastore. */
+    private SingleFlight<List<Object>, SimpleAcl> singleFlight;
+
+    /**
+     * Sequence numbers of the coalesced lookups started before the last write of a domain object, striped by the
+     * domain object. A lookup started before a write is not joined by the callers reading the object afterwards.
+     */
+    private final AtomicLongArray writeSequences = new AtomicLongArray(WRITE_SEQUENCE_STRIPES);
+
+    /** Materialized view of effective permissions, {@code null} to union the policies of all SIDs at read time. */
+    private EffectivePermissionView effectivePermissionView;
+
+    /** Limits the concurrent ACL lookups, {@code null} to admit every lookup. */
+    private AdaptiveLimiter admissionLimiter;
+
+    /** Maximum age of the cached policies served for a rejected lookup in milliseconds, {@code 0} to serve none. */
+    private long maxStaleMillis;
+
+    /** Behavior of a rejected lookup when no recently cached ACL is available. */
+    private OverloadPolicy overloadPolicy = OverloadPolicy.DENY;
+
+    /** Keys of the lookups being refreshed in background. */
+    private final Set<List<Object>> refreshing = Collections.newSetFromMap(
+            new ConcurrentHashMap<List<Object>, Boolean>());
+
+    /** Number of rejected lookups served from the cache. */
+    private final AtomicLong staleCount = new AtomicLong();
+
+    /** Number of rejected lookups failed according to the overload policy. */
+    private final AtomicLong degradedCount = new AtomicLong();
+
+    /** Accounting of the datastore calls, {@code null} if the calls are not accounted. */
+    private QueryAccounting queryAccounting;
+
+    /** Audit log of the authorization decisions, {@code null} if not audited. */
+    private AuthorizationAuditLog auditLog;
+
     /**
      * Creates {@link SimpleAclService} with the specified details.
      * 
@@ -48,6 +132,132 @@ public class SimpleAclService implements AclService {
         this.accessPolicyDao = accessPolicyDao;
     }
 
+    /**
+     * Sets the executor used by {@link #readAclsById(List, List)} to read ACLs of several objects in parallel. The
+     * executor bounds the number of concurrent lookups (see {@link acl.util.ExecutorFactory}). If not set, the ACLs
+     * are read sequentially.
+     * 
+     * @param executor the executor or {@code null} to read ACLs sequentially
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Enables coalescing of concurrent lookups for the same object and security identities: only the first caller
+     * queries the datastore, the others wait for its result. A waiting caller gives up after the specified time and
+     * queries the datastore itself. A lookup started before a policy of the object was saved by
+     * {@link #insertAce(Sid, Object, Permission, Long)} on this instance is not joined, so a caller always sees its own
+     * grants. A caller may still join a lookup started before a write on another instance, as it may read a cached
+     * policy anyway.
+     * 
+     * @param maxWaitMillis the maximum time to wait for the lookup in flight in milliseconds
+     */
+    public void setCoalescingMaxWait(long maxWaitMillis) {
+        this.singleFlight = new SingleFlight<>(maxWaitMillis);
+    }
+
+    /**
+     * Returns the coalescing statistics.
+     * 
+     * @return the coalescing statistics or {@code null} if coalescing is not enabled
+     */
+    public SingleFlight<?, ?> getSingleFlight() {
+        return this.singleFlight;
+    }
+
+    /**
+     * Sets the materialized view of effective permissions. Once set, the view is maintained by
+     * {@link #insertAce(Sid, Object, Permission)} and the ACL read for security identities including a principal is
+     * the principal's row of the view. The entries of such ACL are granted to the principal, even if the permission
+     * comes from one of the principal's roles.
+     * 
+     * @param effectivePermissionView the view or {@code null} to union the policies of all SIDs at read time
+     */
+    public void setEffectivePermissionView(EffectivePermissionView effectivePermissionView) {
+        this.effectivePermissionView = effectivePermissionView;
+    }
+
+    /**
+     * Enables admission control of the ACL lookups: a lookup is rejected while the limiter's limit of concurrent
+     * lookups is reached. A rejected lookup is served from the recently cached policies (see
+     * {@link #setMaxStaleMillis(long)}) and refreshed in background on the {@link #setExecutor(ExecutorService)
+     * executor}, or failed according to the {@link #setOverloadPolicy(OverloadPolicy) overload policy}. Only the
+     * blocking lookups are subject to the admission control.
+     * 
+     * @param admissionLimiter the limiter or {@code null} to admit every lookup
+     */
+    public void setAdmissionLimiter(AdaptiveLimiter admissionLimiter) {
+        this.admissionLimiter = admissionLimiter;
+    }
+
+    /**
+     * Returns the limiter of the concurrent ACL lookups.
+     * 
+     * @return the limiter or {@code null} if every lookup is admitted
+     */
+    public AdaptiveLimiter getAdmissionLimiter() {
+        return this.admissionLimiter;
+    }
+
+    /**
+     * Sets the maximum age of the cached policies served for a lookup rejected by the admission control. Requires the
+     * access policy DAO to have a cache.
+     * 
+     * @param maxStaleMillis the maximum age in milliseconds, {@code 0} to never serve cached policies
+     */
+    public void setMaxStaleMillis(long maxStaleMillis) {
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * Sets the behavior of a lookup rejected by the admission control when no recently cached ACL is available.
+     * Defaults to {@link OverloadPolicy#DENY}.
+     * 
+     * @param overloadPolicy the overload policy
+     */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * Returns the number of lookups rejected by the admission control and served from the cache.
+     * 
+     * @return the number of stale lookups
+     */
+    public long getStaleCount() {
+        return this.staleCount.get();
+    }
+
+    /**
+     * Returns the number of lookups rejected by the admission control and failed according to the overload policy.
+     * 
+     * @return the number of degraded lookups
+     */
+    public long getDegradedCount() {
+        return this.degradedCount.get();
+    }
+
+    /**
+     * Sets the accounting of the datastore calls. Once set, the datastore calls of a sample of the
+     * {@link #readAclsById(List, List)} calls are accounted and the calls querying once per object are logged.
+     * 
+     * @param queryAccounting the installed accounting or {@code null} if the calls are not accounted
+     */
+    public void setQueryAccounting(QueryAccounting queryAccounting) {
+        this.queryAccounting = queryAccounting;
+    }
+
+    /**
+     * Sets the audit log of the authorization decisions. Once set, the decisions of the ACLs read afterwards and the
+     * lookups denied as there is no ACL are recorded.
+     * 
+     * @param auditLog the started audit log or {@code null} if the decisions are not audited
+     */
+    public void setAuditLog(AuthorizationAuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
     /**
      * Inserts {@link AccessControlEntry} for given {@link Sid}, domain object and {@link Permission}
      * 
@@ -57,11 +267,27 @@ public class SimpleAclService implements AclService {
      * @throws AlreadyExistsException If same access control entry already exists
      */
     public void insertAce(Sid sid, Object domainObject, Permission permission) throws AlreadyExistsException {
+        insertAce(sid, domainObject, permission, null);
+    }
+
+    /**
+     * Inserts {@link AccessControlEntry} for given {@link Sid}, domain object and {@link Permission} that expires at
+     * the given time, e.g. a temporary access of a contractor. Expired entries are ignored by the ACLs and removed by
+     * {@link acl.dao.ExpiredAccessPolicySweeper}.
+     * 
+     * @param sid security identity
+     * @param domainObject domain object to create access control entry for
+     * @param permission permission
+     * @param expiresAt the time the entry expires in milliseconds since the epoch or {@code null} if it never expires
+     * @throws AlreadyExistsException If same unexpired access control entry already exists
+     */
+    public void insertAce(Sid sid, Object domainObject, Permission permission, Long expiresAt)
+            throws AlreadyExistsException {
 
         final ObjectIdentity objectIdentity = new ObjectIdentityImpl(domainObject);
 
         final String objectType = objectIdentity.getType();
-        final Long objectId = (Long) objectIdentity.getIdentifier();
+        final Long objectId = toObjectId(objectIdentity);
         final SecurityIdentity securityIdentity = mapToSecurityIdentity(sid);
 
         final List<AccessPolicy> accessPolicies = this.accessPolicyDao.getForDomainObject(
@@ -77,21 +303,73 @@ public class SimpleAclService implements AclService {
         final SimpleAcl acl = acls.get(objectIdentity);
 
         // make sure the ACE does not exist
-        if (acl != null) {
-            AccessControlEntry ace = new AccessControlEntryImpl(objectId, acl, sid, permission, true, true, true);
-
-            if (acl.contains(ace))
-            {
-                throw new AlreadyExistsException(String.format("ACE %1$s already exists", ace));
-            }
+        if (acl != null && acl.contains(securityIdentity.getName(), permission.getMask())) {
+            throw new AlreadyExistsException(String.format("ACE for %1$s, %2$s and %3$s already exists",
+                    objectIdentity, sid, permission));
         }
 
         final String permissionString = permission.toString();
 
         // create access policy for the given ACE
         final AccessPolicy accessPolicy = new AccessPolicy(securityIdentity, objectType, objectId, permissionString);
+        accessPolicy.setExpiresAt(expiresAt);
 
         this.accessPolicyDao.save(accessPolicy);
+        if (this.singleFlight != null) {
+            markWritten(objectType, objectId);
+        }
+
+        if (this.effectivePermissionView != null) {
+            this.effectivePermissionView.onGranted(accessPolicy);
+        }
+    }
+
+    /**
+     * Records that the policies of the domain object were written, so the coalesced lookups started so far are not
+     * joined by the callers reading the object from now on.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     */
+    private void markWritten(String objectType, Long objectId) {
+        final int stripe = writeSequenceStripe(objectType, objectId);
+        final long sequence = this.singleFlight.getSequence();
+        long written = this.writeSequences.get(stripe);
+        while (written < sequence && !this.writeSequences.compareAndSet(stripe, written, sequence)) {
+            written = this.writeSequences.get(stripe);
+        }
+    }
+
+    /**
+     * Returns the stripe of the write sequence numbers of the domain object.
+     *
+     * @param objectType the domain object type
+     * @param objectId the domain object ID
+     * @return the stripe
+     */
+    private static int writeSequenceStripe(String objectType, Long objectId) {
+        final int hash = 31 * objectType.hashCode() + objectId.hashCode();
+        return (hash ^ (hash >>> 16)) & (WRITE_SEQUENCE_STRIPES - 1);
+    }
+
+    /**
+     * Returns the ID of the domain object as stored in access policies. Any integral {@link Number} is accepted, so
+     * that e.g. {@code hasPermission(#id, 'acl.model.Project', 'VIEWER')} works for both {@code int} and {@code long}
+     * method parameters.
+     * 
+     * @param object the domain object identity
+     * @return the domain object ID
+     * @throws IllegalArgumentException if the object is not identified by a number
+     */
+    static Long toObjectId(ObjectIdentity object) {
+        final Serializable identifier = object.getIdentifier();
+        if (identifier instanceof Long) {
+            return (Long) identifier;
+        }
+        if (identifier instanceof Integer || identifier instanceof Short || identifier instanceof Byte) {
+            return Long.valueOf(((Number) identifier).longValue());
+        }
+        throw new IllegalArgumentException("Unsupported object identifier: " + identifier);
     }
 
     /**
@@ -117,12 +395,33 @@ public class SimpleAclService implements AclService {
     }
 
     /**
-     * Maps {@link Sid} instances to respective {@link SecurityIdentity} instances.
+     * Maps {@link SecurityIdentity} instance to respective {@link Sid} instance.
+     * 
+     * @param securityIdentity the {@link SecurityIdentity} instance to map
+     * @return the respective {@link Sid} instance
+     */
+    static Sid mapToSid(SecurityIdentity securityIdentity) {
+        switch (securityIdentity.getType()) {
+            case USER:
+                return new PrincipalSid(securityIdentity.getIdentity());
+            case ROLE:
+                return new GrantedAuthoritySid(securityIdentity.getIdentity());
+            default:
+                throw new IllegalArgumentException("Unsupported type: " + securityIdentity.getType());
+        }
+    }
+
+    /**
+     * Maps {@link Sid} instances to respective {@link SecurityIdentity} instances. The instances of
+     * {@link ResolvedSids} are mapped already.
      * 
      * @param sids the {@link Sid} instances to map
      * @return the respective {@link SecurityIdentity} instances
      */
     private static List<SecurityIdentity> mapToSecurityIdentities(List<Sid> sids) {
+        if (sids instanceof ResolvedSids) {
+            return ((ResolvedSids) sids).getSecurityIdentities();
+        }
         return CollectionUtils.transform(sids,
                 new Function<Sid, SecurityIdentity>() {
                     @Override
@@ -133,49 +432,43 @@ public class SimpleAclService implements AclService {
     }
 
     /**
-     * Sorts out the specified policies by a domain object.
+     * Sorts out the specified policies by a domain object. Expired policies, which may still be stored until swept, are
+     * left out.
      * 
      * @param accessPolicies the access policies to sort out
      * @return a map with domain objects as keys and respective ACLs as values
      */
     private Map<ObjectIdentity, SimpleAcl> sortOutByObject(List<AccessPolicy> accessPolicies) {
 
-        final Map<ObjectIdentity, SimpleAcl> acls = new HashMap<>();
+        final Map<ObjectIdentity, List<AccessPolicy>> policiesByObject = new HashMap<>();
+        final long now = System.currentTimeMillis();
 
         for (AccessPolicy accessPolicy : accessPolicies) {
 
+            if (accessPolicy.isExpired(now)) {
+                continue;
+            }
+
             // generate object identity
             final ObjectIdentity objectIdentity = this.objectIdentityGenerator.createObjectIdentity(
                     accessPolicy.getObjectId(), accessPolicy.getObjectType());
 
-            // retrieve respective SID instance
-            final SecurityIdentity securityIdentity = accessPolicy.getSecurityIdentity();
-            final Sid sid;
-            switch (securityIdentity.getType()) {
-                case USER:
-                    sid = new PrincipalSid(securityIdentity.getIdentity());
-                    break;
-                case ROLE:
-                    sid = new GrantedAuthoritySid(securityIdentity.getIdentity());
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unsupported type: " + securityIdentity.getType());
-            }
+            // retrieve policies for the given object
+            List<AccessPolicy> objectPolicies = policiesByObject.get(objectIdentity);
 
-            // construct permission
-            final Permission permission = AccessPermission.valueOf(accessPolicy.getPermission());
+            // if no such policies found, create new list
+            if (objectPolicies == null) {
+                objectPolicies = new ArrayList<>();
+                policiesByObject.put(objectIdentity, objectPolicies);
+            }
 
-            // retrieve ACL for the given object
-            SimpleAcl acl = acls.get(objectIdentity);
+            objectPolicies.add(accessPolicy);
+        }
 
-            // if no such an ACL found, create new one
-            if (acl == null) {
-                acl = new SimpleAcl();
-                acls.put(objectIdentity, acl);
-            }
+        final Map<ObjectIdentity, SimpleAcl> acls = new HashMap<>();
 
-            // insert ACE
-            acl.insert(new AccessControlEntryImpl(accessPolicy.getId(), acl, sid, permission, true, true, true));
+        for (Map.Entry<ObjectIdentity, List<AccessPolicy>> entry : policiesByObject.entrySet()) {
+            acls.put(entry.getKey(), new SimpleAcl(entry.getKey(), entry.getValue(), this.auditLog));
         }
 
         return acls;
@@ -187,35 +480,224 @@ public class SimpleAclService implements AclService {
         throw new UnsupportedOperationException("The method is not implemented");
     }
 
+    /**
+     * Reads the full ACL of the domain object, i.e. the entries of all security identities, e.g. to show who the object
+     * is shared with. It is a single strongly consistent get if the object ACL documents are maintained (see
+     * {@link AccessPolicyDao#setObjectAclsEnabled(boolean)}), otherwise an eventually consistent query.
+     * 
+     * @param object the domain object identity
+     * @return the full ACL of the domain object
+     * @throws NotFoundException if there is no unexpired access policy on the domain object
+     */
     @Override
     public Acl readAclById(ObjectIdentity object) throws NotFoundException {
-        return readAclById(object, null);
+        return toAcl(object, null, this.accessPolicyDao.getForObject(object.getType(), toObjectId(object)));
     }
 
     @Override
     public Acl readAclById(ObjectIdentity object, List<Sid> sids) throws NotFoundException {
+        return readAcl(object, sids, mapToSecurityIdentities(sids));
+    }
+
+    /**
+     * Reads the ACL of a single domain object, subject to the admission control if enabled.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities the ACL is read for
+     * @param securityIdentities the respective {@link SecurityIdentity} instances
+     * @return the ACL of the domain object
+     * @throws NotFoundException if no ACL information found for the domain object and security identities
+     */
+    private SimpleAcl readAcl(ObjectIdentity object, List<Sid> sids, List<SecurityIdentity> securityIdentities)
+            throws NotFoundException {
+
+        if (this.admissionLimiter == null) {
+            return readAclShared(object, sids, securityIdentities);
+        }
+
+        if (!this.admissionLimiter.tryAcquire()) {
+            return readAclOverloaded(object, sids, securityIdentities);
+        }
+        final long start = System.nanoTime();
+        try {
+            return readAclShared(object, sids, securityIdentities);
+        }
+        finally {
+            this.admissionLimiter.release(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Serves a lookup rejected by the admission control from the recently cached policies, or fails it according to
+     * the overload policy.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities the ACL is read for
+     * @param securityIdentities the respective {@link SecurityIdentity} instances
+     * @return the ACL of the domain object, possibly outdated
+     * @throws NotFoundException if no ACL information cached, or not cached recently enough and the overload policy
+     *          is {@link OverloadPolicy#DENY}
+     * @throws AclOverloadedException if not cached recently enough and the overload policy is
+     *          {@link OverloadPolicy#FAIL}
+     */
+    private SimpleAcl readAclOverloaded(ObjectIdentity object, List<Sid> sids,
+            List<SecurityIdentity> securityIdentities) throws NotFoundException {
+
+        final List<AccessPolicy> cachedPolicies = this.maxStaleMillis <= 0 ? null
+                : this.accessPolicyDao.getCachedForDomainObject(securityIdentities, object.getType(),
+                        toObjectId(object), this.maxStaleMillis);
+        if (cachedPolicies != null) {
+            this.staleCount.incrementAndGet();
+            refresh(object, securityIdentities);
+            return toAcl(object, sids, cachedPolicies);
+        }
+
+        this.degradedCount.incrementAndGet();
+        final String message = String.format("ACL lookup for object %1$s and security identities %2$s rejected, "
+                + "the datastore is overloaded", object, sids);
+        if (this.overloadPolicy == OverloadPolicy.FAIL) {
+            throw new AclOverloadedException(message);
+        }
+        auditNoAcl(object, sids);
+        throw new NotFoundException(message);
+    }
+
+    /**
+     * Refreshes the cached policies of a single domain object in background, unless already being refreshed. The
+     * refresh is subject to the admission control as well, it is skipped while the limit is reached.
+     * 
+     * @param object the domain object identity
+     * @param securityIdentities the security identities the policies are read for
+     */
+    private void refresh(final ObjectIdentity object, final List<SecurityIdentity> securityIdentities) {
+        final List<Object> key = Arrays.<Object>asList(object, securityIdentities);
+        if (this.executor == null || !this.refreshing.add(key)) {
+            return;
+        }
+
+        this.executor.submit(new DatastoreCallable<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                final AdaptiveLimiter limiter = SimpleAclService.this.admissionLimiter;
+                try {
+                    if (limiter.tryAcquire()) {
+                        final long start = System.nanoTime();
+                        try {
+                            SimpleAclService.this.accessPolicyDao.getForDomainObject(securityIdentities,
+                                    object.getType(), toObjectId(object));
+                        }
+                        finally {
+                            limiter.release(System.nanoTime() - start);
+                        }
+                    }
+                    return null;
+                }
+                finally {
+                    SimpleAclService.this.refreshing.remove(key);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Reads the ACL of a single domain object, sharing the lookup with concurrent callers if coalescing is enabled.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities the ACL is read for
+     * @param securityIdentities the respective {@link SecurityIdentity} instances
+     * @return the ACL of the domain object
+     * @throws NotFoundException if no ACL information found for the domain object and security identities
+     */
+    private SimpleAcl readAclShared(final ObjectIdentity object, final List<Sid> sids,
+            final List<SecurityIdentity> securityIdentities) throws NotFoundException {
+
+        if (this.singleFlight == null) {
+            return loadAcl(object, sids, securityIdentities);
+        }
+
+        // share the lookup with concurrent callers asking for the same object and security identities, unless the
+        // lookup in flight started before the object was written
+        final long written = this.writeSequences.get(writeSequenceStripe(object.getType(), toObjectId(object)));
+        return this.singleFlight.execute(Arrays.<Object>asList(object, securityIdentities), written,
+                new Callable<SimpleAcl>() {
+                    @Override
+                    public SimpleAcl call() {
+                        return loadAcl(object, sids, securityIdentities);
+                    }
+                });
+    }
+
+    /**
+     * Loads the ACL of a single domain object from the datastore, from the materialized view of effective permissions
+     * if enabled and the security identities include a principal.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities the ACL is read for
+     * @param securityIdentities the respective {@link SecurityIdentity} instances
+     * @return the ACL of the domain object
+     * @throws NotFoundException if no ACL information found for the domain object and security identities
+     */
+    private SimpleAcl loadAcl(ObjectIdentity object, List<Sid> sids, List<SecurityIdentity> securityIdentities)
+            throws NotFoundException {
 
         final String objectType = object.getType();
-        final Long objectId = (Long) object.getIdentifier();
-        final List<SecurityIdentity> securityIdentities = mapToSecurityIdentities(sids);
+        final Long objectId = toObjectId(object);
+
+        if (this.effectivePermissionView != null && sids != null) {
+            for (Sid sid : sids) {
+                if (sid instanceof PrincipalSid) {
+                    return toAcl(object, sids, this.effectivePermissionView.getAccessPolicies(
+                            ((PrincipalSid) sid).getPrincipal(), securityIdentities, objectType, objectId));
+                }
+            }
+        }
 
         final List<AccessPolicy> accessPolicies = this.accessPolicyDao.getForDomainObject(
                 securityIdentities, objectType, objectId);
 
-        if (accessPolicies.isEmpty()) {
+        return toAcl(object, sids, accessPolicies);
+    }
+
+    /**
+     * Creates the ACL of a single domain object from its access policies.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities the ACL is read for
+     * @param accessPolicies the access policies of the domain object
+     * @return the ACL of the domain object
+     * @throws NotFoundException if there are no unexpired access policies
+     */
+    private SimpleAcl toAcl(ObjectIdentity object, List<Sid> sids, List<AccessPolicy> accessPolicies)
+            throws NotFoundException {
+
+        final Map<ObjectIdentity, SimpleAcl> acls = sortOutByObject(accessPolicies);
+
+        if (acls.isEmpty()) {
+            auditNoAcl(object, sids);
             throw new NotFoundException(
                     String.format("Unable to find ACL information for object %1$s and security identities %2$s",
                             object, sids));
         }
 
-        final Map<ObjectIdentity, SimpleAcl> acls = sortOutByObject(accessPolicies);
-
         // since we only asked for policies for the given object, no more than one ACL should be available
         if (acls.size() != 1) {
             throw new IllegalStateException(String.format("Only ACL expected, found: %d", Integer.valueOf(acls.size())));
         }
 
-        return acls.get(object);
+        // the object may be identified by another numeric type than the policies
+        return acls.values().iterator().next();
+    }
+
+    /**
+     * Records the denial of a lookup for security identities finding no ACL, if audited.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities the ACL is read for or {@code null} if read for all
+     */
+    private void auditNoAcl(ObjectIdentity object, List<Sid> sids) {
+        if (this.auditLog != null && sids != null && !sids.isEmpty()) {
+            this.auditLog.recordNoAcl(sids, object.getType(), object.getIdentifier());
+        }
     }
 
     @Override
@@ -225,36 +707,384 @@ public class SimpleAclService implements AclService {
 
     @Override
     public Map<ObjectIdentity, Acl> readAclsById(List<ObjectIdentity> objects, List<Sid> sids) throws NotFoundException {
-        final Map<ObjectIdentity, Acl> resultAcls = new HashMap<>();
+        if (this.queryAccounting == null) {
+            return readAcls(objects, sids);
+        }
+
+        try (QueryAccounting.Scope scope = this.queryAccounting.sample("readAclsById")) {
+            scope.setResultSize(objects.size());
+            return readAcls(objects, sids);
+        }
+    }
+
+    /**
+     * Reads the ACLs of the specified domain objects, in parallel if {@link #executor} is set.
+     * 
+     * @param objects the domain object identities
+     * @param sids the security identities the ACLs are read for
+     * @return a map with domain objects as keys and respective ACLs as values
+     * @throws NotFoundException if no ACL information found for any of the domain objects
+     */
+    private Map<ObjectIdentity, Acl> readAcls(List<ObjectIdentity> objects, List<Sid> sids) throws NotFoundException {
+        final List<SecurityIdentity> securityIdentities = mapToSecurityIdentities(sids);
+
+        if (this.executor == null || objects.size() < 2) {
+            final Map<ObjectIdentity, Acl> resultAcls = new HashMap<>();
+            for (ObjectIdentity object : objects) {
+                resultAcls.put(object, readAcl(object, sids, securityIdentities));
+            }
+            return resultAcls;
+        }
+
+        return readAclsInParallel(objects, sids, securityIdentities);
+    }
+
+    /**
+     * Reads the ACLs of the specified domain objects in parallel using {@link #executor}. The lookups are collected
+     * in the order they complete, so the first failure cancels all lookups still pending, whichever object failed.
+     * 
+     * @param objects the domain object identities
+     * @param sids the security identities the ACLs are read for
+     * @param securityIdentities the respective {@link SecurityIdentity} instances
+     * @return a map with domain objects as keys and respective ACLs as values
+     * @throws NotFoundException if no ACL information found for any of the domain objects
+     */
+    private Map<ObjectIdentity, Acl> readAclsInParallel(List<ObjectIdentity> objects, final List<Sid> sids,
+            final List<SecurityIdentity> securityIdentities) throws NotFoundException {
+
+        final CompletionService<SimpleAcl> completionService = new ExecutorCompletionService<>(this.executor);
+        final Map<Future<SimpleAcl>, ObjectIdentity> futures = new HashMap<>();
+        try {
+            for (final ObjectIdentity object : objects) {
+                futures.put(completionService.submit(new DatastoreCallable<>(new Callable<SimpleAcl>() {
+                    @Override
+                    public SimpleAcl call() {
+                        return readAcl(object, sids, securityIdentities);
+                    }
+                })), object);
+            }
+
+            final Map<ObjectIdentity, Acl> resultAcls = new HashMap<>();
+            for (int i = 0; i < futures.size(); i++) {
+                final Future<SimpleAcl> future = completionService.take();
+                resultAcls.put(futures.get(future), future.get());
+            }
+            return resultAcls;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading ACLs", e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Unable to read ACLs", cause);
+        }
+        finally {
+            // no-op for the completed lookups, cancels the pending ones on failure
+            for (Future<SimpleAcl> future : futures.keySet()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #readAclById(ObjectIdentity, List)}. The datastore queries are started
+     * immediately, the returned result blocks only when {@link Result#now()} is called.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities the ACL is read for
+     * @return the pending ACL, {@link Result#now()} throws {@link NotFoundException} if no ACL information found
+     */
+    public Result<Acl> readAclByIdAsync(final ObjectIdentity object, final List<Sid> sids) {
+        final Result<List<AccessPolicy>> accessPolicies = startReading(object, mapToSecurityIdentities(sids));
+
+        return new ResultWrapper<List<AccessPolicy>, Acl>(accessPolicies) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Acl wrap(List<AccessPolicy> orig) {
+                return toAcl(object, sids, orig);
+            }
+        };
+    }
 
+    /**
+     * Non-blocking variant of {@link #readAclsById(List, List)}. The datastore queries for all objects are started
+     * immediately, use {@link #readAclsByIdStream(List, List, int)} for large object lists.
+     * 
+     * @param objects the domain object identities
+     * @param sids the security identities the ACLs are read for
+     * @return the pending map with domain objects as keys and respective ACLs as values, {@link Result#now()} throws
+     *          {@link NotFoundException} if no ACL information found for any of the domain objects
+     */
+    public Result<Map<ObjectIdentity, Acl>> readAclsByIdAsync(List<ObjectIdentity> objects, List<Sid> sids) {
+        final Map<ObjectIdentity, Result<Acl>> pendingAcls = new LinkedHashMap<>();
         for (ObjectIdentity object : objects) {
+            pendingAcls.put(object, readAclByIdAsync(object, sids));
+        }
+
+        return new ResultCache<Map<ObjectIdentity, Acl>>() {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Map<ObjectIdentity, Acl> nowUncached() {
+                final Map<ObjectIdentity, Acl> resultAcls = new HashMap<>();
+                for (Map.Entry<ObjectIdentity, Result<Acl>> entry : pendingAcls.entrySet()) {
+                    resultAcls.put(entry.getKey(), entry.getValue().now());
+                }
+                return resultAcls;
+            }
+        };
+    }
+
+    /**
+     * Non-blocking check whether any of the security identities is granted any of the permissions on the domain
+     * object.
+     * 
+     * @param object the domain object identity
+     * @param sids the security identities to check
+     * @param permissions the permissions to check
+     * @return the pending decision, {@code false} if no ACL information found
+     */
+    public Result<Boolean> isGrantedAsync(ObjectIdentity object, final List<Sid> sids,
+            final List<Permission> permissions) {
+        final Result<Acl> acl = readAclByIdAsync(object, sids);
 
-            final String objectType = object.getType();
-            final Long objectId = (Long) object.getIdentifier();
-            final List<SecurityIdentity> securityIdentities = mapToSecurityIdentities(sids);
+        return new ResultCache<Boolean>() {
 
-            final List<AccessPolicy> accessPolicies = this.accessPolicyDao.getForDomainObject(
-                    securityIdentities, objectType, objectId);
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
 
-            if (accessPolicies.isEmpty()) {
-                throw new NotFoundException(
-                        String.format("Unable to find ACL information for object %1$s and security identities %2$s",
-                                object, sids));
+            @Override
+            protected Boolean nowUncached() {
+                try {
+                    return Boolean.valueOf(acl.now().isGranted(permissions, sids, false));
+                }
+                catch (NotFoundException e) {
+                    return Boolean.FALSE;
+                }
             }
+        };
+    }
 
-            final Map<ObjectIdentity, SimpleAcl> acls = sortOutByObject(accessPolicies);
+    /**
+     * Filters the domain objects any of the security identities is granted any of the permissions on, using the
+     * visibility index instead of reading the ACL of each object.
+     * 
+     * @param objects the domain object identities, identified by {@link Long} IDs
+     * @param sids the security identities to check
+     * @param permissions the permissions to check
+     * @return the granted domain object identities in the order of the objects
+     */
+    public List<ObjectIdentity> filterGranted(List<ObjectIdentity> objects, List<Sid> sids,
+            List<Permission> permissions) {
+        final List<SecurityIdentity> securityIdentities = mapToSecurityIdentities(sids);
+        final List<String> permissionStrings = mapToPermissionStrings(permissions);
 
-            // since we only asked for policies for the given object, no more than one ACL should be available
-            if (acls.size() != 1) {
-                throw new IllegalStateException(String.format("Only ACL expected, found: %d",
-                        Integer.valueOf(acls.size())));
+        // group the candidates by type
+        final Map<String, List<Long>> candidateIdsByType = new LinkedHashMap<>();
+        for (ObjectIdentity object : objects) {
+            List<Long> candidateIds = candidateIdsByType.get(object.getType());
+            if (candidateIds == null) {
+                candidateIds = new ArrayList<>();
+                candidateIdsByType.put(object.getType(), candidateIds);
             }
+            candidateIds.add(toObjectId(object));
+        }
 
-            resultAcls.put(object, acls.get(object));
+        final Set<ObjectIdentity> granted = new HashSet<>();
+        for (Map.Entry<String, List<Long>> candidateIds : candidateIdsByType.entrySet()) {
+            for (Long objectId : this.accessPolicyDao.getVisibleObjectIds(securityIdentities,
+                    candidateIds.getKey(), permissionStrings, candidateIds.getValue())) {
+                granted.add(this.objectIdentityGenerator.createObjectIdentity(objectId, candidateIds.getKey()));
+            }
+        }
 
+        final List<ObjectIdentity> filtered = new ArrayList<>(granted.size());
+        for (ObjectIdentity object : objects) {
+            if (granted.contains(this.objectIdentityGenerator.createObjectIdentity(toObjectId(object),
+                    object.getType()))) {
+                filtered.add(object);
+            }
         }
+        return filtered;
+    }
+
+    /**
+     * Lists all domain objects of the type any of the security identities is granted any of the permissions on,
+     * using the visibility index.
+     * 
+     * @param objectType the domain object type
+     * @param sids the security identities to check
+     * @param permissions the permissions to check
+     * @return the granted domain object identities in ascending order of their IDs
+     */
+    public List<ObjectIdentity> findGranted(final String objectType, List<Sid> sids, List<Permission> permissions) {
+        return CollectionUtils.transform(findGrantedIds(objectType, sids, permissions),
+                new Function<Long, ObjectIdentity>() {
+                    @Override
+                    public ObjectIdentity apply(Long objectId) {
+                        return SimpleAclService.this.objectIdentityGenerator.createObjectIdentity(objectId,
+                                objectType);
+                    }
+                });
+    }
+
+    /**
+     * Lists the IDs of all domain objects of the type any of the security identities is granted any of the
+     * permissions on, using the visibility index. Grants expired but not swept yet are left out. No domain object is
+     * loaded, so the result can drive a search among the visible objects only.
+     * 
+     * @param objectType the domain object type
+     * @param sids the security identities to check
+     * @param permissions the permissions to check
+     * @return the granted domain object IDs in ascending order
+     */
+    public List<Long> findGrantedIds(String objectType, List<Sid> sids, List<Permission> permissions) {
+        return this.accessPolicyDao.getVisibleObjectIds(mapToSecurityIdentities(sids), objectType,
+                mapToPermissionStrings(permissions));
+    }
 
-        return resultAcls;
+    /**
+     * Maps {@link Permission} instances to the stored permissions satisfying them, i.e. the permissions themselves and
+     * the permissions implying them.
+     * 
+     * @param permissions the {@link Permission} instances to map
+     * @return the respective permissions as stored
+     */
+    private static List<String> mapToPermissionStrings(List<Permission> permissions) {
+        final Set<String> permissionStrings = new LinkedHashSet<>();
+        for (Permission permission : permissions) {
+            for (AccessPermission accessPermission : AccessPermission.implying(permission)) {
+                permissionStrings.add(accessPermission.name());
+            }
+        }
+        return new ArrayList<>(permissionStrings);
+    }
+
+    /**
+     * Streams the ACLs of the specified domain objects in the order of the objects. At most {@code window} objects
+     * are being read at once, the next lookups are started only as the caller consumes the results, so the memory and
+     * datastore load stay bounded for large object lists while the caller can overlap ACL checks with its own work.
+     * 
+     * @param objects the domain object identities
+     * @param sids the security identities the ACLs are read for
+     * @param window the maximum number of objects being read at once
+     * @return the iterator of domain objects and respective ACLs, the ACL is {@code null} if no ACL information found
+     *          for the object
+     */
+    public Iterator<Map.Entry<ObjectIdentity, Acl>> readAclsByIdStream(List<ObjectIdentity> objects,
+            List<Sid> sids, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive: " + window);
+        }
+        return new AclIterator(objects.iterator(), sids, mapToSecurityIdentities(sids), window);
+    }
+
+    /**
+     * Starts reading the access policies of a single domain object.
+     * 
+     * @param object the domain object identity
+     * @param securityIdentities the security identities the policies are read for
+     * @return the pending access policies
+     */
+    private Result<List<AccessPolicy>> startReading(ObjectIdentity object, List<SecurityIdentity> securityIdentities) {
+        return this.accessPolicyDao.getForDomainObjectAsync(securityIdentities, object.getType(),
+                toObjectId(object));
+    }
+
+    /**
+     * Iterator reading ACLs ahead within a bounded window.
+     */
+    private class AclIterator implements Iterator<Map.Entry<ObjectIdentity, Acl>> {
+
+        /** The objects not read yet. */
+        private final Iterator<ObjectIdentity> objects;
+
+        /** The security identities the ACLs are read for. */
+        private final List<Sid> sids;
+
+        /** The respective {@link SecurityIdentity} instances. */
+        private final List<SecurityIdentity> securityIdentities;
+
+        /** The maximum number of objects being read at once. */
+        private final int window;
+
+        /** The objects being read and their pending access policies, in the order of the objects. */
+        private final Deque<Map.Entry<ObjectIdentity, Result<List<AccessPolicy>>>> pending = new ArrayDeque<>();
+
+        /**
+         * Creates {@link AclIterator} with the specified details.
+         * 
+         * @param objects the objects to read
+         * @param sids the security identities the ACLs are read for
+         * @param securityIdentities the respective {@link SecurityIdentity} instances
+         * @param window the maximum number of objects being read at once
+         */
+        AclIterator(Iterator<ObjectIdentity> objects, List<Sid> sids, List<SecurityIdentity> securityIdentities,
+                int window) {
+            this.objects = objects;
+            this.sids = sids;
+            this.securityIdentities = securityIdentities;
+            this.window = window;
+            fill();
+        }
+
+        /**
+         * Starts reading the next objects until the window is full.
+         */
+        private void fill() {
+            while (this.pending.size() < this.window && this.objects.hasNext()) {
+                final ObjectIdentity object = this.objects.next();
+                this.pending.add(new AbstractMap.SimpleImmutableEntry<>(object,
+                        startReading(object, this.securityIdentities)));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.pending.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<ObjectIdentity, Acl> next() {
+            final Map.Entry<ObjectIdentity, Result<List<AccessPolicy>>> head = this.pending.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+
+            final ObjectIdentity object = head.getKey();
+            final List<AccessPolicy> accessPolicies = head.getValue().now();
+
+            // keep the window full while the caller processes the ACL
+            fill();
+
+            Acl acl = null;
+            if (!accessPolicies.isEmpty()) {
+                try {
+                    acl = toAcl(object, this.sids, accessPolicies);
+                }
+                catch (NotFoundException e) {
+                    // expired policies only
+                }
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(object, acl);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("The method is not supported");
+        }
     }
 
 }
@@ -0,0 +1,59 @@
+package acl.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link RoleMembership} with a fixed set of users, typically mirroring an in-memory user service.
+ *
+ * @author Petr Giecek
+ */
+public class StaticRoleMembership implements RoleMembership {
+
+    /** Role names by user name. */
+    private final Map<String, List<String>> rolesByUser;
+
+    /**
+     * Creates {@link StaticRoleMembership} with the specified details.
+     *
+     * @param rolesByUser role names by user name
+     */
+    public StaticRoleMembership(Map<String, List<String>> rolesByUser) {
+        this.rolesByUser = new LinkedHashMap<>(rolesByUser);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getUsers() {
+        return new ArrayList<>(this.rolesByUser.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getRoles(String username) {
+        final List<String> roles = this.rolesByUser.get(username);
+        return roles != null ? roles : Collections.<String>emptyList();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getMembers(String role) {
+        final List<String> members = new ArrayList<>();
+        for (Map.Entry<String, List<String>> roles : this.rolesByUser.entrySet()) {
+            if (roles.getValue().contains(role)) {
+                members.add(roles.getKey());
+            }
+        }
+        return members;
+    }
+
+}
@@ -1,9 +1,15 @@
 package acl.service;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
-import org.springframework.security.access.prepost.PostAuthorize;
+import org.springframework.security.access.method.P;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.acls.domain.PrincipalSid;
+import org.springframework.security.acls.model.Permission;
+import org.springframework.security.acls.model.SidRetrievalStrategy;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -12,6 +18,8 @@ import org.springframework.stereotype.Service;
 import acl.dao.ProjectDao;
 import acl.model.Project;
 import acl.model.User;
+import acl.security.AccessPermission;
+import acl.security.SimpleAclService;
 
 /**
  * Project service
@@ -26,8 +34,17 @@ public class ProjectsService {
     @Autowired
     private ProjectDao dao;
 
+    /** ACL service */
+    @Autowired
+    private SimpleAclService aclService;
+
+    /** Strategy resolving the security identities of the current user */
+    @Autowired
+    private SidRetrievalStrategy sidRetrievalStrategy;
+
     /**
-     * Create new project and sets current user as its owner
+     * Create new project and sets current user as its owner. The ownership is also granted as OWNER permission right
+     * after the project is saved, so that owner checks need not load the project.
      * 
      * @param description the project description
      * @return the project ID
@@ -47,20 +64,48 @@ public class ProjectsService {
             }
         }
         this.dao.saveProject(project);
+        if (project.getUser() != null) {
+            this.aclService.insertAce(new PrincipalSid(project.getUser().getLogin()), project, AccessPermission.OWNER);
+        }
         return project.getId();
     }
 
     /**
-     * Returns the project based on its ID
+     * Returns the project based on its ID. Access is checked by the ID before the project is loaded, an OWNER grant
+     * implies VIEWER.
      * 
      * @param id the project's ID
      * @return the project
      */
     // Only VIEWERs or project owning user should be able to see Project
-    @PostAuthorize("hasPermission(returnObject, 'VIEWER') or (returnObject.user.login == authentication.name)")
-    public Project getById(long id) {
+    @PreAuthorize("hasPermission(#id, 'acl.model.Project', 'VIEWER')")
+    public Project getById(@P("id") long id) {
 
         return this.dao.getProjectById(id);
     }
 
+    /**
+     * Searches the projects the current user can view by the words of their descriptions. Visibility is pushed down:
+     * the IDs of the projects the user is granted VIEWER on, or a permission implying it, are looked up first and only
+     * those are matched against the keywords, so the search does not depend on the number of projects the user cannot
+     * see. The lookup leaves out the grants expired by then, swept or not, so the returned projects need no further
+     * permission check.
+     * 
+     * @param keywords the words all of which the description must contain, case insensitive; blank matches all
+     * @param offset the number of matching projects to skip
+     * @param limit the maximum number of projects returned
+     * @return the matching projects in ascending order of their IDs
+     */
+    @PreAuthorize("isAuthenticated()")
+    public List<Project> search(String keywords, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative: " + offset + ", " + limit);
+        }
+        final Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        final List<Permission> permissions = Collections.<Permission> singletonList(AccessPermission.VIEWER);
+        final List<Long> visibleIds = this.aclService.findGrantedIds(Project.class.getName(),
+                this.sidRetrievalStrategy.getSids(auth), permissions);
+        return this.dao.searchProjects(keywords, visibleIds, offset, limit);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package acl.util;
+
+/**
+ * <p>
+ * Limits the number of concurrent requests to a backend, adapting the limit to the observed latency instead of using a
+ * fixed number. While the latency stays close to the lowest latency observed recently, the backend is considered
+ * healthy and the limit grows by one per completed request. Once the latency exceeds the lowest one by the tolerance,
+ * requests are queueing in the backend and the limit is cut multiplicatively.
+ * </p>
+ * <p>
+ * The lowest latency is re-learned from time to time, so the limit recovers after a lasting change of the backend.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class AdaptiveLimiter {
+
+    /** Number of samples after which the lowest latency is re-learned. */
+    private static final int RESET_EVERY = 1000;
+
+    /** Factor the limit is cut by when the latency exceeds the tolerance. */
+    private static final double BACKOFF = 0.9;
+
+    /** The minimum limit. */
+    private final int minLimit;
+
+    /** The maximum limit. */
+    private final int maxLimit;
+
+    /** Ratio of the latency to the lowest latency still considered healthy. */
+    private final double tolerance;
+
+    /** The current limit, guarded by {@code this}. */
+    private double limit;
+
+    /** Number of requests in flight, guarded by {@code this}. */
+    private int inFlight;
+
+    /** The lowest latency observed since the last reset in nanoseconds, guarded by {@code this}. */
+    private long minLatencyNanos = Long.MAX_VALUE;
+
+    /** Number of samples since the last reset, guarded by {@code this}. */
+    private int sampleCount;
+
+    /** Number of rejected requests, guarded by {@code this}. */
+    private long rejectedCount;
+
+    /**
+     * Creates {@link AdaptiveLimiter} with the specified details. The limit starts at the maximum.
+     *
+     * @param minLimit the minimum limit
+     * @param maxLimit the maximum limit
+     * @param tolerance ratio of the latency to the lowest latency still considered healthy, e.g. 2.0
+     */
+    public AdaptiveLimiter(int minLimit, int maxLimit, double tolerance) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + ", " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Admits a request if the limit allows. An admitted request must be {@link #release(long) released}.
+     *
+     * @return {@code true} if the request is admitted, {@code false} if it must be rejected
+     */
+    public synchronized boolean tryAcquire() {
+        if (this.inFlight >= (int) this.limit) {
+            this.rejectedCount++;
+            return false;
+        }
+        this.inFlight++;
+        return true;
+    }
+
+    /**
+     * Releases an admitted request and adapts the limit to its latency.
+     *
+     * @param latencyNanos the latency of the request in nanoseconds
+     */
+    public synchronized void release(long latencyNanos) {
+        this.inFlight--;
+
+        if (++this.sampleCount >= RESET_EVERY) {
+            this.sampleCount = 0;
+            this.minLatencyNanos = latencyNanos;
+        }
+        this.minLatencyNanos = Math.min(this.minLatencyNanos, latencyNanos);
+
+        if (latencyNanos > this.minLatencyNanos * this.tolerance) {
+            this.limit = Math.max(this.minLimit, this.limit * BACKOFF);
+        }
+        else {
+            this.limit = Math.min(this.maxLimit, this.limit + 1.0);
+        }
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the maximum number of requests currently admitted at once
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * Returns the number of requests in flight.
+     *
+     * @return the number of admitted requests not released yet
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * Returns the number of rejected requests.
+     *
+     * @return the number of rejected requests
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejectedCount;
+    }
+
+}
@@ -1,7 +1,10 @@
 package acl.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Static utility methods pertaining to collections.
@@ -26,5 +29,46 @@ public final class CollectionUtils {
         return transformed;
     }
 
- 
+    /**
+     * Returns an iterable that iterates the elements of each of {@code inputs} in turn. The input iterables are not
+     * iterated until needed.
+     * 
+     * @param inputs the iterables to be combined
+     * @return the combined iterable
+     */
+    public static <E> Iterable<E> concat(final List<? extends Iterable<? extends E>> inputs) {
+        return new Iterable<E>() {
+            @Override
+            public Iterator<E> iterator() {
+                final Iterator<? extends Iterable<? extends E>> iterables = inputs.iterator();
+                return new Iterator<E>() {
+
+                    /** Iterator of the current input iterable. */
+                    private Iterator<? extends E> current = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!this.current.hasNext() && iterables.hasNext()) {
+                            this.current = iterables.next().iterator();
+                        }
+                        return this.current.hasNext();
+                    }
+
+                    @Override
+                    public E next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return this.current.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
 }
@@ -0,0 +1,70 @@
+package acl.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Static factory methods for executors.
+ *
+ * @author Petr Giecek
+ */
+public final class ExecutorFactory {
+
+    /**
+     * Returns a bounded executor running at most {@code parallelism} tasks at once. Virtual threads are used if the
+     * runtime supports them, otherwise a fixed pool of daemon platform threads is created.
+     *
+     * @param parallelism the maximum number of tasks running at once
+     * @param name the name prefix of the created threads
+     * @return the bounded executor
+     */
+    public static ExecutorService newBoundedExecutor(int parallelism, String name) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        ThreadFactory threadFactory = virtualThreadFactory();
+        if (threadFactory == null) {
+            threadFactory = daemonThreadFactory(name);
+        }
+        return Executors.newFixedThreadPool(parallelism, threadFactory);
+    }
+
+    /**
+     * Returns a factory of virtual threads.
+     *
+     * @return the factory of virtual threads or {@code null} if not supported by the runtime
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            // resolved reflectively since the code is compiled for runtimes without virtual threads
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a factory of named daemon threads.
+     *
+     * @param name the name prefix of the created threads
+     * @return the factory of named daemon threads
+     */
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
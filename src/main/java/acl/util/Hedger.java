@@ -0,0 +1,358 @@
+package acl.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Issues hedged requests to cut the latency tail: a task not completed within the hedge delay is submitted once more
+ * and whichever attempt completes first wins, the other one is cancelled. The hedge delay follows a percentile of the
+ * recently observed latencies, so only the slowest requests are hedged.
+ * </p>
+ * <p>
+ * The extra load is capped by a budget: the number of hedges never exceeds the configured ratio of the requests.
+ * </p>
+ *
+ * @author Petr Giecek
+ */
+public class Hedger {
+
+    /** Number of latency samples the hedge delay is computed from. */
+    private static final int WINDOW = 512;
+
+    /** Number of new samples after which the hedge delay is recomputed. */
+    private static final int RECOMPUTE_EVERY = 64;
+
+    /**
+     * Outcome of a single attempt.
+     *
+     * @param <V> the result type
+     */
+    private static final class Attempt<V> {
+
+        /** Index of the task. */
+        final int index;
+
+        /** Whether the attempt is a hedge. */
+        final boolean hedge;
+
+        /** Result of the attempt. */
+        V value;
+
+        /** Failure of the attempt, {@code null} if succeeded. */
+        Exception failure;
+
+        /** Duration of the attempt in nanoseconds. */
+        long nanos;
+
+        /**
+         * Creates {@link Attempt} with the specified details.
+         *
+         * @param index index of the task
+         * @param hedge whether the attempt is a hedge
+         */
+        Attempt(int index, boolean hedge) {
+            this.index = index;
+            this.hedge = hedge;
+        }
+    }
+
+    /**
+     * Hedged execution of a batch of tasks, the first attempts are started on creation.
+     *
+     * @param <V> the result type
+     */
+    public final class Batch<V> {
+
+        /** The tasks. */
+        private final List<Callable<V>> tasks;
+
+        /** Completion service the attempts run in. */
+        private final CompletionService<Attempt<V>> completionService;
+
+        /** Futures of all attempts. */
+        private final List<Future<Attempt<V>>> futures = new ArrayList<>();
+
+        /** Time the batch started in nanoseconds. */
+        private final long start = System.nanoTime();
+
+        /**
+         * Creates {@link Batch} and starts the first attempts.
+         *
+         * @param tasks the tasks
+         */
+        Batch(List<Callable<V>> tasks) {
+            this.tasks = tasks;
+            this.completionService = new ExecutorCompletionService<>(Hedger.this.executor);
+            for (int i = 0; i < tasks.size(); i++) {
+                submit(i, false);
+            }
+            Hedger.this.requestCount.addAndGet(tasks.size());
+        }
+
+        /**
+         * Submits an attempt.
+         *
+         * @param index index of the task
+         * @param hedge whether the attempt is a hedge
+         */
+        private void submit(final int index, final boolean hedge) {
+            final Callable<V> task = this.tasks.get(index);
+            this.futures.add(this.completionService.submit(new Callable<Attempt<V>>() {
+                @Override
+                public Attempt<V> call() {
+                    final Attempt<V> attempt = new Attempt<>(index, hedge);
+                    final long attemptStart = System.nanoTime();
+                    try {
+                        attempt.value = task.call();
+                    }
+                    catch (Exception e) {
+                        attempt.failure = e;
+                    }
+                    attempt.nanos = System.nanoTime() - attemptStart;
+                    return attempt;
+                }
+            }));
+        }
+
+        /**
+         * Waits for the results, hedging the tasks not completed within the hedge delay.
+         *
+         * @return the results in the order of the tasks
+         * @throws Exception the failure of a task if all its attempts failed
+         */
+        public List<V> get() throws Exception {
+            final int size = this.tasks.size();
+            final Object[] results = new Object[size];
+            final boolean[] done = new boolean[size];
+            final int[] pending = new int[size];
+            Arrays.fill(pending, 1);
+
+            final long hedgeAt = this.start + TimeUnit.MILLISECONDS.toNanos(getDelayMillis());
+            boolean hedged = false;
+            int remaining = size;
+
+            try {
+                while (remaining > 0) {
+                    final Future<Attempt<V>> completed;
+                    if (hedged) {
+                        completed = this.completionService.take();
+                    }
+                    else {
+                        completed = this.completionService.poll(hedgeAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (completed == null) {
+                            // hedge delay elapsed, hedge the tasks still running as far as the budget allows
+                            for (int i = 0; i < size; i++) {
+                                if (!done[i] && tryAcquireHedge()) {
+                                    submit(i, true);
+                                    pending[i]++;
+                                }
+                            }
+                            hedged = true;
+                            continue;
+                        }
+                    }
+
+                    final Attempt<V> attempt = completed.get();
+                    pending[attempt.index]--;
+                    if (done[attempt.index]) {
+                        // lost the race
+                        continue;
+                    }
+                    if (attempt.failure != null) {
+                        if (pending[attempt.index] > 0) {
+                            // the other attempt may still succeed
+                            continue;
+                        }
+                        throw attempt.failure;
+                    }
+
+                    results[attempt.index] = attempt.value;
+                    done[attempt.index] = true;
+                    remaining--;
+                    recordLatency(attempt.nanos);
+                    if (attempt.hedge) {
+                        Hedger.this.hedgeWinCount.incrementAndGet();
+                    }
+                }
+            }
+            finally {
+                // no-op for the completed attempts, cancels the losers and, on failure, all pending ones
+                for (Future<Attempt<V>> future : this.futures) {
+                    future.cancel(true);
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            final List<V> resultList = (List<V>) Arrays.asList(results);
+            return resultList;
+        }
+    }
+
+    /** Executor the attempts run on. */
+    private final ExecutorService executor;
+
+    /** Percentile of the latencies used as the hedge delay, between 0 and 1. */
+    private final double percentile;
+
+    /** The hedge delay until enough latencies are observed, in milliseconds. */
+    private final long initialDelayMillis;
+
+    /** Maximum ratio of hedges to requests. */
+    private final double budget;
+
+    /** Recent latencies in nanoseconds, guarded by itself. */
+    private final long[] latencies = new long[WINDOW];
+
+    /** Number of latencies recorded so far, guarded by {@link #latencies}. */
+    private long latencyCount;
+
+    /** The current hedge delay in milliseconds. */
+    private volatile long delayMillis;
+
+    /** Number of requests. */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /** Number of hedges issued. */
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    /** Number of hedges that completed first. */
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    /**
+     * Creates {@link Hedger} with the specified details.
+     *
+     * @param executor executor the attempts run on
+     * @param percentile percentile of the latencies used as the hedge delay, e.g. 0.95
+     * @param initialDelayMillis the hedge delay until enough latencies are observed, in milliseconds
+     * @param budget maximum ratio of hedges to requests, e.g. 0.05
+     */
+    public Hedger(ExecutorService executor, double percentile, long initialDelayMillis, double budget) {
+        this.executor = executor;
+        this.percentile = percentile;
+        this.initialDelayMillis = initialDelayMillis;
+        this.delayMillis = initialDelayMillis;
+        this.budget = budget;
+    }
+
+    /**
+     * Starts hedged execution of the tasks.
+     *
+     * @param tasks the tasks, must be safe to run twice
+     * @return the batch to get the results from
+     */
+    public <V> Batch<V> start(List<Callable<V>> tasks) {
+        return new Batch<>(tasks);
+    }
+
+    /**
+     * Acquires a hedge from the budget.
+     *
+     * @return {@code true} if the hedge may be issued
+     */
+    private boolean tryAcquireHedge() {
+        while (true) {
+            final long hedges = this.hedgeCount.get();
+            if (hedges + 1 > this.budget * this.requestCount.get()) {
+                return false;
+            }
+            if (this.hedgeCount.compareAndSet(hedges, hedges + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records the latency of a successful attempt and recomputes the hedge delay from time to time.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    private void recordLatency(long nanos) {
+        final long[] sorted;
+        synchronized (this.latencies) {
+            this.latencies[(int) (this.latencyCount % WINDOW)] = nanos;
+            this.latencyCount++;
+            if (this.latencyCount % RECOMPUTE_EVERY != 0) {
+                return;
+            }
+            sorted = Arrays.copyOf(this.latencies, (int) Math.min(this.latencyCount, WINDOW));
+        }
+        Arrays.sort(sorted);
+        final int index = Math.min(sorted.length - 1, (int) (this.percentile * sorted.length));
+        this.delayMillis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(sorted[index]));
+    }
+
+    /**
+     * Returns the current hedge delay.
+     *
+     * @return the hedge delay in milliseconds
+     */
+    public long getDelayMillis() {
+        return this.delayMillis;
+    }
+
+    /**
+     * Returns the hedge delay used until enough latencies are observed.
+     *
+     * @return the initial hedge delay in milliseconds
+     */
+    public long getInitialDelayMillis() {
+        return this.initialDelayMillis;
+    }
+
+    /**
+     * Returns the number of requests.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Returns the number of hedges issued.
+     *
+     * @return the number of hedges
+     */
+    public long getHedgeCount() {
+        return this.hedgeCount.get();
+    }
+
+    /**
+     * Returns the number of hedges that completed before the first attempt.
+     *
+     * @return the number of winning hedges
+     */
+    public long getHedgeWinCount() {
+        return this.hedgeWinCount.get();
+    }
+
+    /**
+     * Returns the ratio of hedged requests.
+     *
+     * @return the hedge rate, {@code 0} if there was no request yet
+     */
+    public double getHedgeRate() {
+        final long requests = this.requestCount.get();
+        return requests == 0 ? 0.0 : (double) this.hedgeCount.get() / requests;
+    }
+
+    /**
+     * Returns the ratio of hedges that completed before the first attempt.
+     *
+     * @return the win rate, {@code 0} if there was no hedge yet
+     */
+    public double getWinRate() {
+        final long hedges = this.hedgeCount.get();
+        return hedges == 0 ? 0.0 : (double) this.hedgeWinCount.get() / hedges;
+    }
+
+}
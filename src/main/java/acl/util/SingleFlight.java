@@ -0,0 +1,223 @@
+package acl.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller (the leader) runs the call, the callers arriving
+ * while it is in flight wait for its outcome instead of running their own. A waiting caller gives up after a bounded
+ * time and runs the call itself. Every call is numbered as it starts, so a caller that must see the effect of a
+ * write joins only a call started after the write (see {@link #execute(Object, long, Callable)}).
+ *
+ * @param <K> the key type
+ * @param <V> the result type
+ * @author Petr Giecek
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * A call in flight.
+     *
+     * @param <V> the result type
+     */
+    private static final class Flight<V> extends FutureTask<V> {
+
+        /** Sequence number of the call. */
+        private final long sequence;
+
+        /**
+         * Creates {@link Flight}.
+         *
+         * @param callable the call
+         * @param sequence sequence number of the call
+         */
+        Flight(Callable<V> callable, long sequence) {
+            super(callable);
+            this.sequence = sequence;
+        }
+    }
+
+    /** The calls in flight. */
+    private final ConcurrentMap<K, Flight<V>> calls = new ConcurrentHashMap<>();
+
+    /** Sequence number of the call started last. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** The maximum time to wait for the call in flight in milliseconds. */
+    private final long maxWaitMillis;
+
+    /** The number of calls run by a leader. */
+    private final AtomicLong leaderCount = new AtomicLong();
+
+    /** The number of calls served by the outcome of another caller. */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /** The number of callers that gave up waiting. */
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    /** The number of callers that did not join a call in flight as it started too early. */
+    private final AtomicLong bypassedCount = new AtomicLong();
+
+    /**
+     * Creates {@link SingleFlight} with the specified details.
+     *
+     * @param maxWaitMillis the maximum time to wait for the call in flight in milliseconds
+     */
+    public SingleFlight(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Runs the call unless a call for the same key is in flight, in which case its outcome is returned.
+     *
+     * @param key the call key
+     * @param callable the call
+     * @return the outcome of the call
+     */
+    public V execute(K key, Callable<V> callable) {
+        return execute(key, 0L, callable);
+    }
+
+    /**
+     * Runs the call unless a call for the same key started after the given sequence number is in flight, in which
+     * case its outcome is returned. A call in flight started earlier is not joined: the call is run by the caller,
+     * which becomes the leader later callers join.
+     *
+     * @param key the call key
+     * @param notAfter the sequence number the call joined must have started after, e.g. {@link #getSequence()} read
+     *            right after a write the outcome must reflect, {@code 0} to join any call
+     * @param callable the call
+     * @return the outcome of the call
+     */
+    public V execute(K key, long notAfter, Callable<V> callable) {
+        final Flight<V> task = new Flight<>(callable, this.sequence.incrementAndGet());
+
+        Flight<V> inFlight = this.calls.putIfAbsent(key, task);
+        while (inFlight != null && inFlight.sequence <= notAfter) {
+            if (this.calls.replace(key, inFlight, task)) {
+                this.bypassedCount.incrementAndGet();
+                inFlight = null;
+            }
+            else {
+                inFlight = this.calls.putIfAbsent(key, task);
+            }
+        }
+
+        if (inFlight == null) {
+            this.leaderCount.incrementAndGet();
+            try {
+                task.run();
+            }
+            finally {
+                this.calls.remove(key, task);
+            }
+            return getOutcome(task, -1L);
+        }
+
+        try {
+            final V outcome = getOutcome(inFlight, this.maxWaitMillis);
+            this.coalescedCount.incrementAndGet();
+            return outcome;
+        }
+        catch (TimeoutRuntimeException e) {
+            this.timeoutCount.incrementAndGet();
+
+            final FutureTask<V> fallback = new FutureTask<>(callable);
+            fallback.run();
+            return getOutcome(fallback, -1L);
+        }
+    }
+
+    /**
+     * Returns the sequence number of the call started last. The calls started afterwards have greater numbers.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return this.sequence.get();
+    }
+
+    /**
+     * Returns the outcome of the task, rethrowing the exception the task failed with.
+     *
+     * @param task the task
+     * @param timeoutMillis the maximum time to wait in milliseconds or a negative value to wait for a completed task
+     * @return the outcome of the task
+     * @throws TimeoutRuntimeException if the task did not complete in time
+     */
+    private V getOutcome(FutureTask<V> task, long timeoutMillis) {
+        try {
+            return timeoutMillis < 0 ? task.get() : task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            throw new TimeoutRuntimeException();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for call in flight", e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Call failed", cause);
+        }
+    }
+
+    /**
+     * Returns the number of calls run by a leader.
+     *
+     * @return the number of calls run by a leader
+     */
+    public long getLeaderCount() {
+        return this.leaderCount.get();
+    }
+
+    /**
+     * Returns the number of calls served by the outcome of another caller.
+     *
+     * @return the number of calls served by the outcome of another caller
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of callers that gave up waiting for the call in flight and ran the call themselves.
+     *
+     * @return the number of callers that gave up waiting
+     */
+    public long getTimeoutCount() {
+        return this.timeoutCount.get();
+    }
+
+    /**
+     * Returns the number of callers that did not join a call in flight as it started before the sequence number they
+     * required, and ran the call themselves.
+     *
+     * @return the number of callers that did not join an earlier call
+     */
+    public long getBypassedCount() {
+        return this.bypassedCount.get();
+    }
+
+    /**
+     * Signals that waiting for the call in flight timed out.
+     */
+    private static class TimeoutRuntimeException extends RuntimeException {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 1L;
+    }
+
+}
@@ -0,0 +1,40 @@
+package acl.web;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+import acl.dao.ExpiredAccessPolicySweeper;
+
+/**
+ * Runs a sweep of the {@link ExpiredAccessPolicySweeper} of the application context, requested by the cron job of
+ * {@code WEB-INF/cron.xml}. Background threads are not available to App Engine frontend instances, so the sweeps are
+ * driven by cron requests instead of a scheduler. The URL is restricted to administrators in {@code web.xml}, cron
+ * requests pass the restriction.
+ *
+ * @author Petr Giecek
+ */
+public class ExpiredAccessPolicySweepServlet extends HttpServlet {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final ExpiredAccessPolicySweeper sweeper = WebApplicationContextUtils
+                .getRequiredWebApplicationContext(getServletContext()).getBean(ExpiredAccessPolicySweeper.class);
+        final int sweptCount = sweeper.sweep();
+
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().println("Swept " + sweptCount + " expired access policies");
+    }
+
+}
@@ -0,0 +1,86 @@
+package acltest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import acl.util.Hedger;
+
+/**
+ * Tests for {@link Hedger}
+ *
+ * @author Petr Giecek
+ */
+public class HedgerTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Returns a task whose first attempt takes {@code firstMillis}, any other attempt completes right away.
+     */
+    private static Callable<String> task(final String value, final long firstMillis) {
+        final AtomicInteger attempts = new AtomicInteger();
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (attempts.incrementAndGet() == 1) {
+                    Thread.sleep(firstMillis);
+                }
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void testSlowTaskHedged() throws Exception {
+        final Hedger hedger = new Hedger(this.executor, 0.95, 50L, 1.0);
+
+        final List<Callable<String>> tasks = new ArrayList<>();
+        tasks.add(task("fast", 0L));
+        tasks.add(task("slow", 5000L));
+
+        final long start = System.currentTimeMillis();
+        assertEquals(Arrays.asList("fast", "slow"), hedger.start(tasks).get());
+
+        // the hedge of the slow task won the race
+        assertEquals(true, System.currentTimeMillis() - start < 5000L);
+        assertEquals(2L, hedger.getRequestCount());
+        assertEquals(1L, hedger.getHedgeCount());
+        assertEquals(1L, hedger.getHedgeWinCount());
+        assertEquals(0.5, hedger.getHedgeRate(), 0.0);
+        assertEquals(1.0, hedger.getWinRate(), 0.0);
+    }
+
+    @Test
+    public void testHedgesBounded() throws Exception {
+        final Hedger hedger = new Hedger(this.executor, 0.95, 10L, 0.0);
+
+        final List<Callable<String>> tasks = new ArrayList<>();
+        tasks.add(task("slow", 100L));
+
+        // no budget for hedging, the slow attempt is awaited
+        assertEquals(Arrays.asList("slow"), hedger.start(tasks).get());
+        assertEquals(0L, hedger.getHedgeCount());
+    }
+
+}
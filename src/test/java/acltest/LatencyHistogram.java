@@ -0,0 +1,133 @@
+package acltest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram with log-linear buckets in the manner of HdrHistogram: values below
+ * {@link #SUB_BUCKET_COUNT} microseconds are recorded exactly, larger values with a relative error below 1/32.
+ *
+ * @author Petr Giecek
+ */
+class LatencyHistogram {
+
+    /** Number of linear buckets of the lowest magnitude, the other magnitudes have half as many. */
+    private static final int SUB_BUCKET_COUNT = 64;
+
+    /** Number of bits of {@link #SUB_BUCKET_COUNT}. */
+    private static final int SUB_BUCKET_BITS = 6;
+
+    /** Number of buckets covering all non-negative {@code long} values. */
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * (SUB_BUCKET_COUNT / 2);
+
+    /** Counts per bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /** Total number of recorded values. */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /** Sum of the recorded values in microseconds. */
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    /** Maximum recorded value in microseconds. */
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        final long micros = Math.max(0L, nanos / 1000L);
+        this.counts.incrementAndGet(indexOf(micros));
+        this.totalCount.incrementAndGet();
+        this.totalMicros.addAndGet(micros);
+        long max = this.maxMicros.get();
+        while (micros > max && !this.maxMicros.compareAndSet(max, micros)) {
+            max = this.maxMicros.get();
+        }
+    }
+
+    /**
+     * Returns the bucket index of a value.
+     *
+     * @param value the value
+     * @return the bucket index
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // keep the highest SUB_BUCKET_BITS bits of the value
+        final int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT / 2;
+        return SUB_BUCKET_COUNT + (shift - 1) * (SUB_BUCKET_COUNT / 2) + subBucket;
+    }
+
+    /**
+     * Returns the highest value falling into the bucket.
+     *
+     * @param index the bucket index
+     * @return the highest value of the bucket
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKET_COUNT) / (SUB_BUCKET_COUNT / 2) + 1;
+        final long subBucket = (index - SUB_BUCKET_COUNT) % (SUB_BUCKET_COUNT / 2) + SUB_BUCKET_COUNT / 2;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Returns the value at the percentile, i.e. the highest value of the bucket the percentile falls into, never
+     * exceeding the maximum recorded value.
+     *
+     * @param percentile the percentile, e.g. 99.9
+     * @return the value in microseconds, {@code 0} if nothing recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        final long count = this.totalCount.get();
+        if (count == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += this.counts.get(i);
+            if (cumulative >= rank) {
+                return Math.min(highestValueOf(i), this.maxMicros.get());
+            }
+        }
+        return this.maxMicros.get();
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values
+     */
+    long getCount() {
+        return this.totalCount.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean in microseconds, {@code 0} if nothing recorded
+     */
+    long getMean() {
+        final long count = this.totalCount.get();
+        return count == 0 ? 0L : this.totalMicros.get() / count;
+    }
+
+    /**
+     * Returns the maximum recorded value.
+     *
+     * @return the maximum in microseconds
+     */
+    long getMax() {
+        return this.maxMicros.get();
+    }
+
+}
@@ -1,23 +1,50 @@
 package acltest;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.acls.domain.GrantedAuthoritySid;
+import org.springframework.security.acls.domain.ObjectIdentityImpl;
 import org.springframework.security.acls.domain.PrincipalSid;
+import org.springframework.security.acls.model.Acl;
+import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.security.acls.model.Permission;
 import org.springframework.security.acls.model.Sid;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.SerializationUtils;
 
+import acl.dao.AccessPolicyCache;
 import acl.dao.ProjectDao;
+import acl.dao.QueryAccounting;
 import acl.model.Project;
 import acl.security.AccessPermission;
+import acl.security.AuthorizationAuditLog;
+import acl.security.AuthorizationExpressionParser;
+import acl.security.CachingSidRetrievalStrategy;
+import acl.security.ResolvedSids;
+import acl.security.RollingFileAuditSink;
 import acl.security.SimpleAclService;
 import acl.service.ProjectsService;
 
@@ -52,6 +79,7 @@ public class ServiceAuthorizationTest {
     @Before
     public void setup() {
         localServiceTestHelper.setUp();
+        this.accessPolicyCache.clear();
 
         SecurityContextHolder.getContext().setAuthentication(null);
     }
@@ -62,6 +90,12 @@ public class ServiceAuthorizationTest {
     ProjectDao dao;
     @Autowired
     SimpleAclService aclService;
+    @Autowired
+    AccessPolicyCache accessPolicyCache;
+    @Autowired
+    AuthorizationExpressionParser expressionParser;
+    @Autowired
+    CachingSidRetrievalStrategy sidRetrievalStrategy;
 
     @Test(expected = AccessDeniedException.class)
     public void testAddReport() {
@@ -90,6 +124,26 @@ public class ServiceAuthorizationTest {
         fail("should throw AccessDeniedException");
     }
 
+    /**
+     * Test that owner can access without being VIEWER
+     */
+    @Test
+    public void testGetReportByIdOwner() {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        final long reportId = this.projectService.addProject("springacltutorial");
+
+        this.projectService.getById(reportId);
+
+        final Sid owner = new PrincipalSid("empl1");
+        assertEquals(owner, this.aclService.readAclById(new ObjectIdentityImpl(Project.class, reportId),
+                Arrays.asList(owner)).getOwner());
+
+        final AuthorizationExpressionParser.Stats stats = this.expressionParser.getStats()
+                .get("hasPermission(#id, 'acl.model.Project', 'VIEWER')");
+        assertTrue(stats.isCompiled());
+        assertTrue(stats.getCount() > 0);
+    }
+
     /**
      * Test that VIEWER can access
      */
@@ -106,4 +160,225 @@ public class ServiceAuthorizationTest {
 
         this.projectService.getById(reportEmpl1.getId());
     }
+
+    /**
+     * Test that a check of a cached ACL does not query and that a per-object query loop is flagged
+     */
+    @Test
+    public void testQueryAccounting() {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        final long reportId = this.projectService.addProject("springacltutorial");
+
+        final QueryAccounting accounting = new QueryAccounting();
+        accounting.install();
+        try {
+            try (QueryAccounting.Scope scope = accounting.begin("getById")) {
+                this.projectService.getById(reportId);
+                // a query per SID of empl1 after a single read of the version stamps
+                scope.assertMaxQueries(2);
+                scope.assertMaxGets(1);
+            }
+            try (QueryAccounting.Scope scope = accounting.begin("getById")) {
+                this.projectService.getById(reportId);
+                scope.assertMaxQueries(0);
+            }
+
+            final List<ObjectIdentity> objects = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                objects.add(new ObjectIdentityImpl(Project.class, this.projectService.addProject("report" + i)));
+            }
+            try (QueryAccounting.Scope scope = accounting.begin("readAclsById")) {
+                scope.setResultSize(objects.size());
+                this.aclService.readAclsById(objects, Arrays.<Sid>asList(new PrincipalSid("empl1")));
+                assertEquals(3L, scope.getQueries());
+                // the owner policies and the version stamps of empl1
+                assertEquals(6L, scope.getEntitiesRead());
+                assertTrue(scope.isFlagged());
+            }
+            assertEquals(1L, accounting.getFlaggedCount());
+        }
+        finally {
+            accounting.uninstall();
+        }
+    }
+
+    @Test
+    public void testSidsResolvedOnce() {
+        final Authentication authentication = new UsernamePasswordAuthenticationToken("empl1", "pass1",
+                AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_USER"));
+        // the SIDs of the same principal and authorities may be cached by the other tests
+        this.sidRetrievalStrategy.invalidate(authentication);
+        final long resolvedCount = this.sidRetrievalStrategy.getResolvedCount();
+
+        final List<Sid> sids = this.sidRetrievalStrategy.getSids(authentication);
+        assertTrue(sids instanceof ResolvedSids);
+        assertEquals(2, sids.size());
+        assertEquals("ROLE:ROLE_USER", ((ResolvedSids) sids).getSecurityIdentities().get(1).getName());
+        assertSame(sids, this.sidRetrievalStrategy.getSids(authentication));
+        // another instance of the authentication, e.g. deserialized from the session by the next request
+        assertSame(sids, this.sidRetrievalStrategy.getSids((Authentication) SerializationUtils.deserialize(
+                SerializationUtils.serialize(authentication))));
+        assertEquals(resolvedCount + 1, this.sidRetrievalStrategy.getResolvedCount());
+
+        // a new authentication with other authorities is resolved again
+        final Authentication reauthenticated = new UsernamePasswordAuthenticationToken("empl1", "pass1",
+                AuthorityUtils.createAuthorityList("ROLE_ADMIN"));
+        assertEquals("ROLE:ROLE_ADMIN", ((ResolvedSids) this.sidRetrievalStrategy.getSids(reauthenticated))
+                .getSecurityIdentities().get(1).getName());
+
+        this.sidRetrievalStrategy.invalidateAll();
+        assertNotSame(sids, this.sidRetrievalStrategy.getSids(authentication));
+        assertEquals(resolvedCount + 3, this.sidRetrievalStrategy.getResolvedCount());
+
+        // the checks of the service layer use the resolved SIDs
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        final long projectId = this.projectService.addProject("springacltutorial");
+        this.projectService.getById(projectId);
+        final long resolvedByChecks = this.sidRetrievalStrategy.getResolvedCount();
+        this.projectService.getById(projectId);
+        assertEquals(resolvedByChecks, this.sidRetrievalStrategy.getResolvedCount());
+    }
+
+    /**
+     * Test that grants and denials are audited and that events are dropped once the buffer is full
+     */
+    @Test
+    public void testDecisionsAudited() throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        final long projectId = this.projectService.addProject("springacltutorial");
+
+        final File file = new File("target/audit/authorization.log");
+        file.delete();
+        final AuthorizationAuditLog auditLog = new AuthorizationAuditLog(new RollingFileAuditSink(file, 1L << 20, 1),
+                4);
+        this.aclService.setAuditLog(auditLog);
+        try {
+            this.projectService.getById(projectId);
+            SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl2",
+                    "pass2"));
+            for (int i = 0; i < 7; i++) {
+                try {
+                    this.projectService.getById(projectId);
+                    fail("should throw AccessDeniedException");
+                }
+                catch (AccessDeniedException e) {
+                    // expected
+                }
+                if (i == 0) {
+                    assertEquals(2, auditLog.drain());
+                }
+            }
+        }
+        finally {
+            this.aclService.setAuditLog(null);
+            auditLog.close();
+        }
+
+        // the buffer of 4 events was full after the 4th denial since drained
+        assertEquals(2L, auditLog.getDroppedCount());
+        assertEquals(6L, auditLog.getWrittenCount());
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(6, lines.size());
+        assertTrue(lines.get(0).endsWith("\tGRANTED\tUSER:empl1\tacl.model.Project\t" + projectId + "\tVIEWER"));
+        assertTrue(lines.get(1).endsWith("\tNO_ACL\tUSER:empl2,ROLE:ROLE_LOOSER\tacl.model.Project\t" + projectId
+                + "\t-"));
+    }
+
+    /**
+     * Test that a denial is audited with all security identities and permissions checked
+     */
+    @Test
+    public void testDenialAuditedWithAllChecks() throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        final long projectId = this.projectService.addProject("springacltutorial");
+        final Sid user = new PrincipalSid("empl2");
+        final Sid role = new GrantedAuthoritySid("ROLE_LOOSER");
+        this.aclService.insertAce(user, this.dao.getProjectById(projectId), AccessPermission.VIEWER);
+
+        final File file = new File("target/audit/denial.log");
+        file.delete();
+        final AuthorizationAuditLog auditLog = new AuthorizationAuditLog(new RollingFileAuditSink(file, 1L << 20, 1),
+                4);
+        this.aclService.setAuditLog(auditLog);
+        try {
+            final List<Sid> sids = Arrays.asList(user, role);
+            final Acl acl = this.aclService.readAclById(new ObjectIdentityImpl(Project.class, projectId), sids);
+            assertFalse(acl.isGranted(Arrays.<Permission>asList(AccessPermission.EDITOR), sids, false));
+            assertFalse(acl.isGranted(Arrays.<Permission>asList(AccessPermission.EDITOR, AccessPermission.ADMIN),
+                    sids, false));
+        }
+        finally {
+            this.aclService.setAuditLog(null);
+            auditLog.close();
+        }
+
+        assertEquals(0L, auditLog.getTruncatedCount());
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith("\tDENIED\tUSER:empl2,ROLE:ROLE_LOOSER\tacl.model.Project\t" + projectId
+                + "\tEDITOR"));
+        assertTrue(lines.get(1).endsWith("\tDENIED\tUSER:empl2,ROLE:ROLE_LOOSER\tacl.model.Project\t" + projectId
+                + "\tEDITOR,ADMIN"));
+    }
+
+    /**
+     * Test that the search matches all keywords case insensitively among the visible projects only and pages them
+     */
+    @Test
+    public void testSearch() {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        final long alpha = this.projectService.addProject("Searchtest alpha, Kepler");
+        final long beta = this.projectService.addProject("searchtest beta kepler");
+        final long gamma = this.projectService.addProject("searchtest gamma");
+        assertEquals(3, this.projectService.search("SEARCHTEST", 0, 10).size());
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl2", "pass2"));
+        final Sid sid = new PrincipalSid(SecurityContextHolder.getContext().getAuthentication());
+        this.aclService.insertAce(sid, this.dao.getProjectById(alpha), AccessPermission.VIEWER);
+        this.aclService.insertAce(sid, this.dao.getProjectById(gamma), AccessPermission.VIEWER);
+
+        assertEquals(Arrays.asList(alpha, gamma), ids(this.projectService.search("searchtest", 0, 10)));
+        assertEquals(Arrays.asList(alpha), ids(this.projectService.search("kepler searchtest", 0, 10)));
+        assertEquals(Arrays.asList(gamma), ids(this.projectService.search("searchtest", 1, 1)));
+        assertTrue(this.projectService.search("beta", 0, 10).isEmpty());
+        assertTrue(this.projectService.search("searchtest unknownword", 0, 10).isEmpty());
+
+        // the owner still sees the project not shared
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        assertEquals(Arrays.asList(beta), ids(this.projectService.search("Beta", 0, 10)));
+    }
+
+    /**
+     * Test that a project shared until a time disappears from the search once the grant expires, with no sweep
+     */
+    @Test
+    public void testSearchExpiredGrant() throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1", "pass1"));
+        final long project = this.projectService.addProject("expiringsearch");
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl2", "pass2"));
+        final Sid sid = new PrincipalSid(SecurityContextHolder.getContext().getAuthentication());
+        final long expiresAt = System.currentTimeMillis() + 500L;
+        this.aclService.insertAce(sid, this.dao.getProjectById(project), AccessPermission.VIEWER,
+                Long.valueOf(expiresAt));
+        assertEquals(Arrays.asList(project), ids(this.projectService.search("expiringsearch", 0, 10)));
+
+        Thread.sleep(Math.max(0L, expiresAt + 10L - System.currentTimeMillis()));
+        assertTrue(this.projectService.search("expiringsearch", 0, 10).isEmpty());
+    }
+
+    /**
+     * Returns the IDs of the projects.
+     * 
+     * @param projects the projects
+     * @return the IDs
+     */
+    private static List<Long> ids(List<Project> projects) {
+        final List<Long> ids = new ArrayList<Long>();
+        for (Project project : projects) {
+            ids.add(project.getId());
+        }
+        return ids;
+    }
+
 }
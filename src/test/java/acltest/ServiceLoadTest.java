@@ -0,0 +1,360 @@
+package acltest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.acls.domain.GrantedAuthoritySid;
+import org.springframework.security.acls.domain.PrincipalSid;
+import org.springframework.security.acls.model.AlreadyExistsException;
+import org.springframework.security.acls.model.Sid;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import acl.dao.AccessPolicyCache;
+import acl.dao.DatastoreCallable;
+import acl.dao.ProjectDao;
+import acl.security.AccessPermission;
+import acl.security.SimpleAclService;
+import acl.service.ProjectsService;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * <p>
+ * Load test of the secured service layer: seeds projects, users, roles and grants, then drives mixed
+ * {@code addProject}/{@code getById}/{@code insertAce} traffic from several threads and reports the throughput and
+ * latency percentiles per operation. The report is printed and written as JSON, so runs can be compared.
+ * </p>
+ * <p>
+ * The test is skipped unless enabled by the {@code load.test} system property, e.g.
+ * {@code mvn test -Dtest=ServiceLoadTest -Dload.test=true}. The defaults keep the test short. A real load run is
+ * configured by system properties, e.g. {@code mvn test -Dtest=ServiceLoadTest -Dload.test=true -Dload.threads=16
+ * -Dload.operations=100000}:
+ * </p>
+ * <ul>
+ * <li>{@code load.test} - enables the test</li>
+ * <li>{@code load.threads} - number of threads driving the traffic</li>
+ * <li>{@code load.users}, {@code load.roles} - number of users and team roles, every user is in one team</li>
+ * <li>{@code load.projects}, {@code load.grants} - number of seeded projects and VIEWER grants</li>
+ * <li>{@code load.operations} - total number of operations</li>
+ * <li>{@code load.weight.add}, {@code load.weight.get}, {@code load.weight.grant} - weights of the operations</li>
+ * <li>{@code load.output} - file the JSON report is written to</li>
+ * </ul>
+ *
+ * @author Petr Giecek
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"file:src/main/webapp/WEB-INF/applicationContext.xml",
+        "file:src/main/webapp/WEB-INF/applicationContext-security.xml"
+         })
+public class ServiceLoadTest {
+
+    /**
+     * Operations of the traffic.
+     */
+    private enum Operation {
+
+        /** {@link ProjectsService#addProject(String)}. */
+        ADD_PROJECT,
+
+        /** {@link ProjectsService#getById(long)}. */
+        GET_BY_ID,
+
+        /** {@link SimpleAclService#insertAce(Sid, Object, org.springframework.security.acls.model.Permission)}. */
+        INSERT_ACE
+    }
+
+    /**
+     * Measured results of an operation.
+     */
+    private static final class OperationStats {
+
+        /** Latencies of all calls. */
+        final LatencyHistogram latencies = new LatencyHistogram();
+
+        /** Number of calls rejected as expected, i.e. denied access or duplicate grants. */
+        final AtomicLong rejected = new AtomicLong();
+
+        /** Number of calls failed unexpectedly. */
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    /** Helper class for testing against local app engine services. */
+    private static LocalServiceTestHelper localServiceTestHelper;
+
+    /**
+     * Class wide set up.
+     *
+     * @throws Exception if any error occurs
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("load.test"));
+        localServiceTestHelper = new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    }
+
+    @Before
+    public void setup() {
+        localServiceTestHelper.setUp();
+        this.accessPolicyCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+        localServiceTestHelper.tearDown();
+    }
+
+    @Autowired
+    ProjectsService projectService;
+    @Autowired
+    ProjectDao dao;
+    @Autowired
+    SimpleAclService aclService;
+    @Autowired
+    AccessPolicyCache accessPolicyCache;
+
+    private final int threads = Integer.getInteger("load.threads", 4).intValue();
+    private final int users = Integer.getInteger("load.users", 20).intValue();
+    private final int roles = Integer.getInteger("load.roles", 4).intValue();
+    private final int projects = Integer.getInteger("load.projects", 50).intValue();
+    private final int grants = Integer.getInteger("load.grants", 100).intValue();
+    private final int operations = Integer.getInteger("load.operations", 1000).intValue();
+    private final int addWeight = Integer.getInteger("load.weight.add", 1).intValue();
+    private final int getWeight = Integer.getInteger("load.weight.get", 8).intValue();
+    private final int grantWeight = Integer.getInteger("load.weight.grant", 1).intValue();
+    private final String output = System.getProperty("load.output", "target/load-test.json");
+
+    /** IDs of the projects created so far. */
+    private final List<Long> projectIds = new CopyOnWriteArrayList<>();
+
+    /**
+     * Returns the name of the user.
+     */
+    private static String user(int user) {
+        return "user" + user;
+    }
+
+    /**
+     * Returns the team role of the user.
+     */
+    private String team(int user) {
+        return "ROLE_TEAM" + (user % this.roles);
+    }
+
+    /**
+     * Authenticates the current thread as the user, member of ROLE_USER and the user's team.
+     */
+    private void authenticate(int user) {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(user(user),
+                "pass", AuthorityUtils.createAuthorityList("ROLE_USER", team(user))));
+    }
+
+    /**
+     * Returns a random project created so far.
+     */
+    private Long randomProject(Random random) {
+        return this.projectIds.get(random.nextInt(this.projectIds.size()));
+    }
+
+    /**
+     * Grants VIEWER on a random project to a random user or team.
+     */
+    private void grantRandom(Random random) {
+        final int user = random.nextInt(this.users);
+        final Sid sid = random.nextBoolean() ? new PrincipalSid(user(user)) : new GrantedAuthoritySid(team(user));
+        this.aclService.insertAce(sid, this.dao.getProjectById(randomProject(random)), AccessPermission.VIEWER);
+    }
+
+    /**
+     * Seeds the projects, owned by random users, and the grants.
+     */
+    private void seed(Random random) {
+        for (int i = 0; i < this.projects; i++) {
+            authenticate(random.nextInt(this.users));
+            this.projectIds.add(Long.valueOf(this.projectService.addProject("project" + i)));
+        }
+        for (int i = 0; i < this.grants; i++) {
+            try {
+                grantRandom(random);
+            }
+            catch (AlreadyExistsException e) {
+                // picked twice
+            }
+        }
+        SecurityContextHolder.clearContext();
+    }
+
+    /**
+     * Picks a random operation according to the weights.
+     */
+    private Operation randomOperation(Random random) {
+        final int pick = random.nextInt(this.addWeight + this.getWeight + this.grantWeight);
+        if (pick < this.addWeight) {
+            return Operation.ADD_PROJECT;
+        }
+        return pick < this.addWeight + this.getWeight ? Operation.GET_BY_ID : Operation.INSERT_ACE;
+    }
+
+    /**
+     * Performs a single operation as a random user.
+     */
+    private void perform(Operation operation, Random random) {
+        authenticate(random.nextInt(this.users));
+        switch (operation) {
+            case ADD_PROJECT:
+                this.projectIds.add(Long.valueOf(this.projectService.addProject("project")));
+                break;
+            case GET_BY_ID:
+                this.projectService.getById(randomProject(random).longValue());
+                break;
+            case INSERT_ACE:
+                grantRandom(random);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported operation: " + operation);
+        }
+    }
+
+    /**
+     * Drives the traffic of a single thread.
+     */
+    private Callable<Void> worker(final int operationCount, final long seed,
+            final Map<Operation, OperationStats> stats) {
+        return new DatastoreCallable<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                final Random random = new Random(seed);
+                try {
+                    for (int i = 0; i < operationCount; i++) {
+                        final Operation operation = randomOperation(random);
+                        final OperationStats operationStats = stats.get(operation);
+                        final long start = System.nanoTime();
+                        try {
+                            perform(operation, random);
+                        }
+                        catch (AccessDeniedException | AlreadyExistsException e) {
+                            operationStats.rejected.incrementAndGet();
+                        }
+                        catch (RuntimeException e) {
+                            operationStats.errors.incrementAndGet();
+                        }
+                        operationStats.latencies.record(System.nanoTime() - start);
+                    }
+                    return null;
+                }
+                finally {
+                    SecurityContextHolder.clearContext();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testMixedTraffic() throws Exception {
+        seed(new Random(42L));
+
+        final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        final long elapsedNanos;
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < this.threads; i++) {
+                // spread the remainder over the first threads
+                final int operationCount = this.operations / this.threads
+                        + (i < this.operations % this.threads ? 1 : 0);
+                futures.add(executor.submit(worker(operationCount, i, stats)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            elapsedNanos = System.nanoTime() - start;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        report(stats, elapsedNanos);
+
+        long total = 0;
+        for (OperationStats operationStats : stats.values()) {
+            total += operationStats.latencies.getCount();
+            assertEquals(0L, operationStats.errors.get());
+        }
+        assertEquals(this.operations, total);
+    }
+
+    /**
+     * Prints the report and writes it as JSON to {@link #output}.
+     */
+    private void report(Map<Operation, OperationStats> stats, long elapsedNanos) throws IOException {
+        final double elapsedSeconds = elapsedNanos / 1e9;
+        final StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\"threads\":%d,\"users\":%d,\"roles\":%d,\"projects\":%d,"
+                + "\"grants\":%d,\"operations\":%d,\"elapsedMillis\":%d,\"throughput\":%.1f,\"latencyUnit\":\"us\","
+                + "\"results\":{", this.threads, this.users, this.roles, this.projects, this.grants, this.operations,
+                elapsedNanos / 1000000L, this.operations / elapsedSeconds));
+
+        String separator = "";
+        for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            final OperationStats operationStats = entry.getValue();
+            final LatencyHistogram latencies = operationStats.latencies;
+            json.append(String.format(Locale.ROOT, "%s\"%s\":{\"count\":%d,\"rejected\":%d,\"errors\":%d,"
+                    + "\"throughput\":%.1f,\"mean\":%d,\"p50\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}", separator,
+                    entry.getKey(), latencies.getCount(), operationStats.rejected.get(),
+                    operationStats.errors.get(), latencies.getCount() / elapsedSeconds, latencies.getMean(),
+                    latencies.getValueAtPercentile(50.0), latencies.getValueAtPercentile(99.0),
+                    latencies.getValueAtPercentile(99.9), latencies.getMax()));
+            separator = ",";
+        }
+        json.append("}}");
+
+        System.out.println(json);
+
+        final File file = new File(this.output);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+            writer.write('\n');
+        }
+    }
+
+}
@@ -0,0 +1,791 @@
+package acltest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.acls.domain.GrantedAuthoritySid;
+import org.springframework.security.acls.domain.ObjectIdentityImpl;
+import org.springframework.security.acls.domain.ObjectIdentityRetrievalStrategyImpl;
+import org.springframework.security.acls.domain.PrincipalSid;
+import org.springframework.security.acls.model.AccessControlEntry;
+import org.springframework.security.acls.model.Acl;
+import org.springframework.security.acls.model.AlreadyExistsException;
+import org.springframework.security.acls.model.NotFoundException;
+import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.security.acls.model.Permission;
+import org.springframework.security.acls.model.Sid;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import acl.dao.AccessPolicyCache;
+import acl.dao.AccessPolicyCacheWarmer;
+import acl.dao.AccessPolicyDao;
+import acl.dao.AccessPolicyTransfer;
+import acl.dao.DatastoreCallable;
+import acl.dao.EffectivePermissionDao;
+import acl.dao.ExpiredAccessPolicySweeper;
+import acl.dao.ObjectAclReconciler;
+import acl.dao.SecurityIdentitySharding;
+import acl.model.AccessPolicy;
+import acl.model.AccessPolicy.SecurityIdentity;
+import acl.model.Project;
+import acl.security.AccessPermission;
+import acl.security.AclOverloadedException;
+import acl.security.EffectivePermissionView;
+import acl.security.SimpleAclService;
+import acl.security.StaticRoleMembership;
+import acl.util.AdaptiveLimiter;
+import acl.util.ExecutorFactory;
+import acl.util.Hedger;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Result;
+
+/**
+ * Tests for {@link SimpleAclService}
+ *
+ * @author Petr Giecek
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"file:src/main/webapp/WEB-INF/applicationContext.xml",
+        "file:src/main/webapp/WEB-INF/applicationContext-security.xml"
+         })
+public class SimpleAclServiceTest {
+
+    /** Helper class for testing against local app engine services. */
+    private static LocalServiceTestHelper localServiceTestHelper;
+
+    /**
+     * Class wide set up.
+     *
+     * @throws Exception if any error occurs
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        localServiceTestHelper = new LocalServiceTestHelper(
+                new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    }
+
+    @Before
+    public void setup() {
+        localServiceTestHelper.setUp();
+
+        // the datastore is fresh for every test, so must be the cache
+        this.accessPolicyCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        localServiceTestHelper.tearDown();
+    }
+
+    @Autowired
+    SimpleAclService aclService;
+    @Autowired
+    AccessPolicyCache accessPolicyCache;
+    @Autowired
+    AccessPolicyDao accessPolicyDao;
+    @Autowired
+    AccessPolicyCacheWarmer accessPolicyCacheWarmer;
+
+    /**
+     * Creates a project with the given ID.
+     */
+    private static Project project(long id) {
+        final Project project = new Project();
+        project.setId(id);
+        return project;
+    }
+
+    @Test
+    public void testReadAclById() {
+        final Sid user = new PrincipalSid("empl1");
+        final Sid role = new GrantedAuthoritySid("ROLE_USER");
+
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+        this.aclService.insertAce(role, project(1L), AccessPermission.VIEWER);
+
+        final ObjectIdentity object = new ObjectIdentityImpl(Project.class, 1L);
+        final Acl acl = this.aclService.readAclById(object, Arrays.asList(user, role));
+
+        assertEquals(object, acl.getObjectIdentity());
+        assertTrue(acl.isGranted(Arrays.<Permission>asList(AccessPermission.VIEWER), Arrays.asList(user), false));
+        assertFalse(acl.isGranted(Arrays.<Permission>asList(AccessPermission.VIEWER),
+                Arrays.<Sid>asList(new PrincipalSid("empl2")), false));
+
+        final List<AccessControlEntry> entries = acl.getEntries();
+        assertEquals(2, entries.size());
+        for (AccessControlEntry ace : entries) {
+            assertEquals(AccessPermission.VIEWER, ace.getPermission());
+            assertTrue(ace.getSid().equals(user) || ace.getSid().equals(role));
+        }
+
+        // e.g. an int method parameter in hasPermission(#id, ...)
+        assertTrue(this.aclService.readAclById(new ObjectIdentityImpl(Project.class, Integer.valueOf(1)),
+                Arrays.asList(user)).isGranted(Arrays.<Permission>asList(AccessPermission.VIEWER),
+                Arrays.asList(user), false));
+    }
+
+    @Test
+    public void testPermissionHierarchy() {
+        final List<Sid> user = Arrays.<Sid>asList(new PrincipalSid("empl1"));
+        this.aclService.insertAce(user.get(0), project(1L), AccessPermission.EDITOR);
+
+        final Acl acl = this.aclService.readAclById(new ObjectIdentityImpl(Project.class, 1L), user);
+        assertTrue(acl.isGranted(Arrays.<Permission>asList(AccessPermission.VIEWER), user, false));
+        assertTrue(acl.isGranted(Arrays.<Permission>asList(AccessPermission.EDITOR), user, false));
+        assertFalse(acl.isGranted(Arrays.<Permission>asList(AccessPermission.ADMIN), user, false));
+        assertEquals(AccessPermission.EDITOR, acl.getEntries().get(0).getPermission());
+
+        assertTrue(AccessPermission.OWNER.implies(AccessPermission.VIEWER));
+        assertEquals(AccessPermission.ADMIN, AccessPermission.fromMask(AccessPermission.ADMIN.getMask()));
+
+        // the visibility index honours the hierarchy as well
+        assertEquals(1, this.aclService.filterGranted(Arrays.<ObjectIdentity>asList(
+                new ObjectIdentityImpl(Project.class, 1L)), user,
+                Arrays.<Permission>asList(AccessPermission.VIEWER)).size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testEntriesImmutable() {
+        final Sid user = new PrincipalSid("empl1");
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+
+        final Acl acl = this.aclService.readAclById(new ObjectIdentityImpl(Project.class, 1L), Arrays.asList(user));
+        acl.getEntries().clear();
+    }
+
+    @Test(expected = AlreadyExistsException.class)
+    public void testInsertAceAlreadyExists() {
+        final Sid user = new PrincipalSid("empl1");
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testReadAclByIdNotFound() {
+        this.aclService.readAclById(new ObjectIdentityImpl(Project.class, 1L),
+                Arrays.<Sid>asList(new PrincipalSid("empl1")));
+    }
+
+    @Test
+    public void testReadAclsByIdInParallel() {
+        final Sid user = new PrincipalSid("empl1");
+        final List<ObjectIdentity> objects = new ArrayList<>();
+        for (long id = 1; id <= 10; id++) {
+            this.aclService.insertAce(user, project(id), AccessPermission.VIEWER);
+            objects.add(new ObjectIdentityImpl(Project.class, id));
+        }
+
+        final ExecutorService executor = ExecutorFactory.newBoundedExecutor(4, "acl-test");
+        this.aclService.setExecutor(executor);
+        try {
+            final Map<ObjectIdentity, Acl> acls = this.aclService.readAclsById(objects, Arrays.asList(user));
+
+            assertEquals(objects.size(), acls.size());
+            for (ObjectIdentity object : objects) {
+                assertEquals(object, acls.get(object).getObjectIdentity());
+            }
+        }
+        finally {
+            this.aclService.setExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testReadAclsByIdInParallelNotFound() {
+        final Sid user = new PrincipalSid("empl1");
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+
+        final ExecutorService executor = ExecutorFactory.newBoundedExecutor(4, "acl-test");
+        this.aclService.setExecutor(executor);
+        try {
+            this.aclService.readAclsById(Arrays.<ObjectIdentity>asList(new ObjectIdentityImpl(Project.class, 1L),
+                    new ObjectIdentityImpl(Project.class, 2L)), Arrays.asList(user));
+        }
+        finally {
+            this.aclService.setExecutor(null);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncReads() {
+        final Sid user = new PrincipalSid("empl1");
+        final List<Sid> sids = Arrays.asList(user);
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+
+        final ObjectIdentity granted = new ObjectIdentityImpl(Project.class, 1L);
+        final ObjectIdentity denied = new ObjectIdentityImpl(Project.class, 2L);
+        final List<Permission> viewer = Arrays.<Permission>asList(AccessPermission.VIEWER);
+
+        final Result<Acl> acl = this.aclService.readAclByIdAsync(granted, sids);
+        final Result<Boolean> grantedResult = this.aclService.isGrantedAsync(granted, sids, viewer);
+        final Result<Boolean> deniedResult = this.aclService.isGrantedAsync(denied, sids, viewer);
+
+        assertEquals(granted, acl.now().getObjectIdentity());
+        assertTrue(grantedResult.now().booleanValue());
+        assertFalse(deniedResult.now().booleanValue());
+    }
+
+    @Test
+    public void testReadAclsByIdStream() {
+        final Sid user = new PrincipalSid("empl1");
+        final List<ObjectIdentity> objects = new ArrayList<>();
+        for (long id = 1; id <= 10; id++) {
+            // grant only odd projects
+            if (id % 2 == 1) {
+                this.aclService.insertAce(user, project(id), AccessPermission.VIEWER);
+            }
+            objects.add(new ObjectIdentityImpl(Project.class, id));
+        }
+
+        final Iterator<Map.Entry<ObjectIdentity, Acl>> stream = this.aclService.readAclsByIdStream(objects,
+                Arrays.asList(user), 3);
+
+        for (int i = 0; i < objects.size(); i++) {
+            final Map.Entry<ObjectIdentity, Acl> entry = stream.next();
+            assertEquals(objects.get(i), entry.getKey());
+            assertEquals(i % 2 == 0, entry.getValue() != null);
+        }
+        assertFalse(stream.hasNext());
+    }
+
+    @Test
+    public void testCacheWarmUp() {
+        final Sid role = new GrantedAuthoritySid("ROLE_USER");
+        for (long id = 1; id <= 5; id++) {
+            this.aclService.insertAce(role, project(id), AccessPermission.VIEWER);
+        }
+
+        assertEquals(5, this.accessPolicyCacheWarmer.warmUp());
+        assertEquals(5, this.accessPolicyCacheWarmer.getLastLoadedCount());
+        assertEquals(5, this.accessPolicyCache.size());
+
+        // cached, including objects without any policy
+        final SecurityIdentity securityIdentity = SecurityIdentity.valueOf("ROLE:ROLE_USER");
+        assertEquals(1, this.accessPolicyCache.get(securityIdentity, Project.class.getName(), 1L)
+                .getAccessPolicies().size());
+        assertTrue(this.accessPolicyCache.get(securityIdentity, Project.class.getName(), 6L)
+                .getAccessPolicies().isEmpty());
+
+        // a new grant is visible despite the cache
+        this.aclService.insertAce(role, project(6L), AccessPermission.VIEWER);
+        assertEquals(1, this.accessPolicyDao.getForDomainObject(Arrays.asList(securityIdentity),
+                Project.class.getName(), 6L).size());
+    }
+
+    @Test
+    public void testCacheRevalidatedAfterWriteOnAnotherInstance() {
+        final SecurityIdentity user = SecurityIdentity.valueOf(SecurityIdentity.Type.USER, "empl1");
+        final SecurityIdentity role = SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, "ROLE_USER");
+        final List<SecurityIdentity> securityIdentities = Arrays.asList(user, role);
+        final String objectType = Project.class.getName();
+
+        this.aclService.insertAce(new PrincipalSid("empl1"), project(1L), AccessPermission.VIEWER);
+        assertEquals(1, this.accessPolicyDao.getForDomainObject(securityIdentities, objectType, 1L).size());
+
+        // another instance has its own cache
+        final AccessPolicyDao otherInstanceDao = new AccessPolicyDao();
+        otherInstanceDao.setCache(new AccessPolicyCache(100, 60000L));
+        otherInstanceDao.save(new AccessPolicy(role, objectType, 1L, AccessPermission.VIEWER.name()));
+
+        assertEquals(2, this.accessPolicyDao.getForDomainObject(securityIdentities, objectType, 1L).size());
+        assertEquals(1L, this.accessPolicyCache.get(role, objectType, 1L).getVersion());
+    }
+
+    @Test
+    public void testCachedUnderStampReadBeforeQuery() {
+        final SecurityIdentity role = SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, "ROLE_USER");
+        final List<SecurityIdentity> securityIdentities = Arrays.asList(role);
+        final String objectType = Project.class.getName();
+
+        // the stamp of a security identity not read yet is read before the query
+        assertTrue(this.accessPolicyDao.getForDomainObject(securityIdentities, objectType, 1L).isEmpty());
+        assertEquals(0L, this.accessPolicyCache.get(role, objectType, 1L).getVersion());
+
+        // queried along with the read of the stamp, cached as the stamp has not changed
+        assertTrue(this.accessPolicyDao.getForDomainObject(securityIdentities, objectType, 2L).isEmpty());
+        assertEquals(0L, this.accessPolicyCache.get(role, objectType, 2L).getVersion());
+
+        // the stamp changed on another instance, so the query may be older than the stamp read along with it
+        final AccessPolicyDao otherInstanceDao = new AccessPolicyDao();
+        otherInstanceDao.save(new AccessPolicy(role, objectType, 3L, AccessPermission.VIEWER.name()));
+        assertEquals(1, this.accessPolicyDao.getForDomainObject(securityIdentities, objectType, 3L).size());
+        assertNull(this.accessPolicyCache.get(role, objectType, 3L));
+        assertEquals(1, this.accessPolicyDao.getForDomainObject(securityIdentities, objectType, 3L).size());
+        assertEquals(1L, this.accessPolicyCache.get(role, objectType, 3L).getVersion());
+    }
+
+    @Test
+    public void testFilterAndFindGranted() {
+        final Sid user = new PrincipalSid("empl1");
+        final Sid role = new GrantedAuthoritySid("ROLE_USER");
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+        this.aclService.insertAce(user, project(3L), AccessPermission.VIEWER);
+        this.aclService.insertAce(role, project(5L), AccessPermission.VIEWER);
+        // another index chunk
+        this.aclService.insertAce(role, project(70000L), AccessPermission.VIEWER);
+
+        final List<ObjectIdentity> candidates = new ArrayList<>();
+        for (long id : new long[] {70000L, 1L, 2L, 3L, 4L, 5L, 6L}) {
+            candidates.add(new ObjectIdentityImpl(project(id)));
+        }
+        final List<Permission> permissions = Arrays.<Permission>asList(AccessPermission.VIEWER);
+
+        assertEquals(Arrays.asList(candidates.get(1), candidates.get(3)),
+                this.aclService.filterGranted(candidates, Arrays.asList(user), permissions));
+        assertEquals(Arrays.asList(candidates.get(0), candidates.get(1), candidates.get(3), candidates.get(5)),
+                this.aclService.filterGranted(candidates, Arrays.asList(user, role), permissions));
+
+        assertEquals(Arrays.asList(candidates.get(1), candidates.get(3), candidates.get(5), candidates.get(0)),
+                this.aclService.findGranted(Project.class.getName(), Arrays.asList(user, role), permissions));
+    }
+
+    @Test
+    public void testEffectivePermissionView() throws Exception {
+        final Map<String, List<String>> rolesByUser = new HashMap<>();
+        rolesByUser.put("empl1", Arrays.asList("ROLE_USER"));
+        rolesByUser.put("empl3", Arrays.asList("ROLE_USER"));
+
+        // policies stored before the view was enabled
+        this.aclService.insertAce(new PrincipalSid("empl1"), project(1L), AccessPermission.VIEWER);
+
+        final EffectivePermissionView view = new EffectivePermissionView(new EffectivePermissionDao(),
+                this.accessPolicyDao, new StaticRoleMembership(rolesByUser));
+        final ExecutorService executor = ExecutorFactory.newBoundedExecutor(2, "fan-out");
+        view.setExecutor(executor);
+        view.setBatchSize(1);
+        assertEquals(1, view.rebuildAll());
+
+        final SimpleAclService viewAclService = new SimpleAclService(new ObjectIdentityRetrievalStrategyImpl(),
+                this.accessPolicyDao);
+        viewAclService.setEffectivePermissionView(view);
+        final List<Permission> permissions = Arrays.<Permission>asList(AccessPermission.VIEWER);
+        final List<Sid> empl3 = Arrays.<Sid>asList(new PrincipalSid("empl3"));
+
+        try {
+            // a role grant reaches the members in background
+            viewAclService.insertAce(new GrantedAuthoritySid("ROLE_USER"), project(2L), AccessPermission.VIEWER);
+            while (view.getPendingCount() > 0) {
+                Thread.sleep(1L);
+            }
+            assertEquals(0L, view.getLagMillis());
+
+            final List<Sid> empl1 = Arrays.<Sid>asList(new PrincipalSid("empl1"));
+            assertTrue(viewAclService.readAclById(new ObjectIdentityImpl(project(1L)), empl1)
+                    .isGranted(permissions, empl1, false));
+            assertTrue(viewAclService.readAclById(new ObjectIdentityImpl(project(2L)), empl3)
+                    .isGranted(permissions, empl3, false));
+
+            // a role the view does not cover is read from the policies
+            viewAclService.insertAce(new GrantedAuthoritySid("ROLE_ADMIN"), project(3L), AccessPermission.VIEWER);
+            final List<Sid> admin = Arrays.<Sid>asList(new PrincipalSid("empl1"),
+                    new GrantedAuthoritySid("ROLE_ADMIN"));
+            assertTrue(viewAclService.readAclById(new ObjectIdentityImpl(project(3L)), admin)
+                    .isGranted(permissions, admin, false));
+
+            // an expired grant is ignored and removed by a rebuild
+            viewAclService.insertAce(new PrincipalSid("empl3"), project(4L), AccessPermission.VIEWER,
+                    Long.valueOf(System.currentTimeMillis() - 1L));
+            try {
+                viewAclService.readAclById(new ObjectIdentityImpl(project(4L)), empl3);
+                fail("Expired grant found");
+            }
+            catch (NotFoundException e) {
+                // expected
+            }
+            view.rebuild("empl3");
+            assertNull(new EffectivePermissionDao().get(SecurityIdentity.valueOf(SecurityIdentity.Type.USER,
+                    "empl3"), Project.class.getName(), Long.valueOf(4L)));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testShardedSecurityIdentity() {
+        final SecurityIdentity role = SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, "ROLE_USER");
+        final String objectType = Project.class.getName();
+
+        final AccessPolicyDao shardedDao = new AccessPolicyDao();
+        shardedDao.setCache(new AccessPolicyCache(100, 60000L));
+        shardedDao.setSharding(new SecurityIdentitySharding(Collections.singletonMap(role.getName(), 4)));
+        for (long id = 1; id <= 8; id++) {
+            shardedDao.save(new AccessPolicy(role, objectType, id, AccessPermission.VIEWER.name()));
+        }
+
+        // the policies are spread across the shards, each shard stamped for its own writes only
+        final Set<SecurityIdentity> parents = new HashSet<>();
+        int count = 0;
+        for (AccessPolicy accessPolicy : shardedDao.getForSecurityIdentity(role)) {
+            assertEquals(role.getName(), accessPolicy.getSecurityIdentityName());
+            parents.add(accessPolicy.getSecurityIdentity());
+            count++;
+        }
+        assertEquals(8, count);
+        assertTrue(parents.size() > 1);
+
+        long versionSum = 0;
+        for (Long version : shardedDao.getVersions(shardedDao.getParents(role)).values()) {
+            versionSum += version.longValue();
+        }
+        assertEquals(8L, versionSum);
+
+        for (long id = 1; id <= 8; id++) {
+            assertEquals(1, shardedDao.getForDomainObject(Arrays.asList(role), objectType, id).size());
+        }
+        assertEquals(8, shardedDao.getCache().size());
+
+        assertEquals(8, shardedDao.getVisibleObjectIds(Arrays.asList(role), objectType,
+                Arrays.asList(AccessPermission.VIEWER.name())).size());
+    }
+
+    @Test
+    public void testShardsCachedSeparately() {
+        final SecurityIdentity role = SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, "ROLE_SHARDED");
+        final String objectType = Project.class.getName();
+        final SecurityIdentitySharding sharding = new SecurityIdentitySharding(
+                Collections.singletonMap(role.getName(), 2));
+
+        // two domain objects mapping to different shards
+        final long idA = 1L;
+        long idB = idA + 1;
+        while (sharding.getParent(role, objectType, idA).equals(sharding.getParent(role, objectType, idB))) {
+            idB++;
+        }
+        final SecurityIdentity shardA = sharding.getParent(role, objectType, idA);
+        final SecurityIdentity shardB = sharding.getParent(role, objectType, idB);
+
+        final AccessPolicyDao shardedDao = new AccessPolicyDao();
+        final AccessPolicyCache cache = new AccessPolicyCache(100, 60000L);
+        shardedDao.setCache(cache);
+        shardedDao.setSharding(sharding);
+        shardedDao.save(new AccessPolicy(role, objectType, idA, AccessPermission.VIEWER.name()));
+        shardedDao.save(new AccessPolicy(role, objectType, idB, AccessPermission.EDITOR.name()));
+
+        // both shards have the same stamp, still they are not interchangeable
+        final Map<SecurityIdentity, Long> versions = shardedDao.getVersions(Arrays.asList(shardA, shardB));
+        assertEquals(Long.valueOf(1L), versions.get(shardA));
+        assertEquals(Long.valueOf(1L), versions.get(shardB));
+
+        assertEquals(1, shardedDao.getForDomainObject(Arrays.asList(role), objectType, idA).size());
+        assertEquals(Long.valueOf(1L), cache.getKnownVersion(shardA));
+        assertNull(cache.getKnownVersion(shardB));
+
+        for (int i = 0; i < 2; i++) {
+            final List<AccessPolicy> policies = shardedDao.getForDomainObject(Arrays.asList(role), objectType, idB);
+            assertEquals(1, policies.size());
+            assertEquals(AccessPermission.EDITOR.name(), policies.get(0).getPermission());
+        }
+        assertEquals(1, cache.get(shardA, objectType, idA).getAccessPolicies().size());
+        assertEquals(1, cache.get(shardB, objectType, idB).getAccessPolicies().size());
+        assertNull(cache.get(shardA, objectType, idB));
+        assertNull(cache.get(shardB, objectType, idA));
+
+        // a shard marked complete says nothing about the other one
+        cache.markComplete(shardA, System.currentTimeMillis(), 1L);
+        assertTrue(cache.get(shardA, objectType, 100L).getAccessPolicies().isEmpty());
+        assertNull(cache.get(shardB, objectType, 100L));
+    }
+
+    @Test
+    public void testHedgedReads() {
+        final SecurityIdentity user = SecurityIdentity.valueOf(SecurityIdentity.Type.USER, "empl1");
+        final SecurityIdentity role = SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, "ROLE_USER");
+        final String objectType = Project.class.getName();
+
+        final ExecutorService executor = ExecutorFactory.newBoundedExecutor(4, "hedge");
+        try {
+            final AccessPolicyDao hedgedDao = new AccessPolicyDao();
+            hedgedDao.setHedger(new Hedger(executor, 0.95, 1000L, 0.5));
+            hedgedDao.save(new AccessPolicy(user, objectType, 1L, AccessPermission.VIEWER.name()));
+            hedgedDao.save(new AccessPolicy(role, objectType, 1L, AccessPermission.EDITOR.name()));
+
+            assertEquals(2, hedgedDao.getForDomainObject(Arrays.asList(user, role), objectType, 1L).size());
+            assertEquals(0, hedgedDao.getForDomainObject(Arrays.asList(user, role), objectType, 2L).size());
+            assertEquals(4L, hedgedDao.getHedger().getRequestCount());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testOverloadedLookups() throws Exception {
+        final Sid user = new PrincipalSid("empl1");
+        final List<Sid> sids = Arrays.asList(user);
+        final AtomicBoolean slow = new AtomicBoolean();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // injects latency into the lookups while slow
+        final AccessPolicyDao slowDao = new AccessPolicyDao() {
+            @Override
+            public List<AccessPolicy> getForDomainObject(List<SecurityIdentity> securityIdentities,
+                    String objectType, Long objectId) {
+                if (slow.get()) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getForDomainObject(securityIdentities, objectType, objectId);
+            }
+        };
+        slowDao.setCache(new AccessPolicyCache(100, 0L));
+
+        final SimpleAclService overloadedService = new SimpleAclService(new ObjectIdentityRetrievalStrategyImpl(),
+                slowDao);
+        overloadedService.setAdmissionLimiter(new AdaptiveLimiter(1, 1, 2.0));
+        overloadedService.setMaxStaleMillis(60000L);
+        overloadedService.insertAce(user, project(1L), AccessPermission.VIEWER);
+        overloadedService.insertAce(user, project(2L), AccessPermission.VIEWER);
+
+        final ObjectIdentity cached = new ObjectIdentityImpl(Project.class, 1L);
+        final ObjectIdentity uncached = new ObjectIdentityImpl(Project.class, 2L);
+        overloadedService.readAclById(cached, sids);
+
+        final ExecutorService executor = ExecutorFactory.newBoundedExecutor(1, "slow");
+        try {
+            slow.set(true);
+            final Future<Acl> slowLookup = executor.submit(new DatastoreCallable<>(new Callable<Acl>() {
+                @Override
+                public Acl call() {
+                    return overloadedService.readAclById(uncached, sids);
+                }
+            }));
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            // the only slot is taken, the recently cached ACL is served
+            assertTrue(overloadedService.readAclById(cached, sids).isGranted(
+                    Arrays.<Permission>asList(AccessPermission.VIEWER), sids, false));
+            assertEquals(1L, overloadedService.getStaleCount());
+
+            // nothing cached, denied by default
+            try {
+                overloadedService.readAclById(uncached, sids);
+                fail();
+            }
+            catch (NotFoundException e) {
+                // expected
+            }
+
+            overloadedService.setOverloadPolicy(SimpleAclService.OverloadPolicy.FAIL);
+            try {
+                overloadedService.readAclById(uncached, sids);
+                fail();
+            }
+            catch (AclOverloadedException e) {
+                // expected
+            }
+            assertEquals(2L, overloadedService.getDegradedCount());
+
+            release.countDown();
+            assertEquals(uncached, slowLookup.get(10, TimeUnit.SECONDS).getObjectIdentity());
+        }
+        finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExportImport() throws Exception {
+        final SecurityIdentity user = SecurityIdentity.valueOf(SecurityIdentity.Type.USER, "empl1");
+        final SecurityIdentity role = SecurityIdentity.valueOf(SecurityIdentity.Type.ROLE, "ROLE_USER");
+        final String objectType = Project.class.getName();
+        for (long id = 1; id <= 25; id++) {
+            this.accessPolicyDao.save(new AccessPolicy(id % 2 == 0 ? user : role, objectType, id,
+                    AccessPermission.VIEWER.name()));
+        }
+
+        final AccessPolicyTransfer transfer = new AccessPolicyTransfer(this.accessPolicyDao);
+        transfer.setPageSize(10);
+        transfer.setBatchSize(4);
+
+        assertEquals(12L, transfer.exportSecurityIdentity(user, new StringWriter()));
+        final StringWriter export = new StringWriter();
+        assertEquals(25L, transfer.exportAll(export));
+
+        // restore into an empty datastore, the first run fails on a malformed line after 14 policies
+        localServiceTestHelper.tearDown();
+        localServiceTestHelper.setUp();
+        this.accessPolicyCache.clear();
+
+        final String[] lines = export.toString().split("\n");
+        final StringBuilder truncated = new StringBuilder();
+        for (int i = 0; i <= 14; i++) {
+            truncated.append(lines[i]).append('\n');
+        }
+        truncated.append("malformed\n");
+
+        final File checkpoint = File.createTempFile("acl-import", ".checkpoint");
+        assertTrue(checkpoint.delete());
+        final ExecutorService executor = ExecutorFactory.newBoundedExecutor(4, "import");
+        transfer.setExecutor(executor);
+        try {
+            try {
+                transfer.importPolicies(new BufferedReader(new StringReader(truncated.toString())), checkpoint);
+                fail();
+            }
+            catch (IOException e) {
+                // expected
+            }
+
+            // the batches of the first identity are skipped, the rest is imported
+            assertEquals(12L, transfer.importPolicies(new BufferedReader(new StringReader(export.toString())),
+                    checkpoint));
+        }
+        finally {
+            executor.shutdown();
+            checkpoint.delete();
+        }
+
+        assertEquals(25L, transfer.exportAll(new StringWriter()));
+        assertEquals(12, this.accessPolicyDao.getVisibleObjectIds(Arrays.asList(user), objectType,
+                Arrays.asList(AccessPermission.VIEWER.name())).size());
+        assertEquals(1, this.accessPolicyDao.getForDomainObject(Arrays.asList(user, role), objectType, 2L).size());
+    }
+
+    @Test
+    public void testExpiringGrants() throws Exception {
+        final Sid user = new PrincipalSid("empl1");
+        final List<Sid> sids = Arrays.asList(user);
+        final List<Permission> viewer = Arrays.<Permission>asList(AccessPermission.VIEWER);
+        final long now = System.currentTimeMillis();
+
+        this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER, Long.valueOf(now - 1000L));
+        this.aclService.insertAce(user, project(2L), AccessPermission.VIEWER, Long.valueOf(now + 500L));
+        this.aclService.insertAce(user, project(3L), AccessPermission.VIEWER, Long.valueOf(now + 3600000L));
+        this.aclService.insertAce(user, project(4L), AccessPermission.VIEWER);
+        // an expired grant of an object granted until later
+        final AccessPolicy expired = new AccessPolicy(SecurityIdentity.valueOf(SecurityIdentity.Type.USER, "empl1"),
+                Project.class.getName(), 3L, AccessPermission.VIEWER.name());
+        expired.setExpiresAt(Long.valueOf(now - 1000L));
+        this.accessPolicyDao.save(expired);
+
+        try {
+            this.aclService.readAclById(new ObjectIdentityImpl(Project.class, 1L), sids);
+            fail();
+        }
+        catch (NotFoundException e) {
+            // expected
+        }
+
+        final Acl acl = this.aclService.readAclById(new ObjectIdentityImpl(Project.class, 2L), sids);
+        assertTrue(acl.isGranted(viewer, sids, false));
+        assertTrue(this.aclService.readAclById(new ObjectIdentityImpl(Project.class, 3L), sids)
+                .isGranted(viewer, sids, false));
+
+        Thread.sleep(Math.max(0L, now + 600L - System.currentTimeMillis()));
+
+        // neither the ACL held past the expiry nor the cached policies grant anymore
+        assertFalse(acl.isGranted(viewer, sids, false));
+        assertTrue(acl.getEntries().isEmpty());
+        try {
+            this.aclService.readAclById(new ObjectIdentityImpl(Project.class, 2L), sids);
+            fail();
+        }
+        catch (NotFoundException e) {
+            // expected
+        }
+
+        // the visibility index leaves out the expired grants before they are swept
+        final List<ObjectIdentity> candidates = new ArrayList<>();
+        for (long id = 1L; id <= 4L; id++) {
+            candidates.add(new ObjectIdentityImpl(project(id)));
+        }
+        assertEquals(candidates.subList(2, 4), this.aclService.filterGranted(candidates, sids, viewer));
+        assertEquals(candidates.subList(2, 4), this.aclService.findGranted(Project.class.getName(), sids, viewer));
+
+        final ExpiredAccessPolicySweeper sweeper = new ExpiredAccessPolicySweeper(this.accessPolicyDao);
+        sweeper.setBatchSize(1);
+        assertEquals(3, sweeper.sweep());
+        assertEquals(0, sweeper.sweep());
+        assertEquals(3L, sweeper.getTotalSweptCount());
+
+        final SecurityIdentity securityIdentity = SecurityIdentity.valueOf(SecurityIdentity.Type.USER, "empl1");
+        final String objectType = Project.class.getName();
+        assertTrue(this.accessPolicyDao.getForDomainObject(securityIdentity, objectType, 2L).isEmpty());
+        assertEquals(Arrays.asList(3L, 4L), this.accessPolicyDao.getVisibleObjectIds(Arrays.asList(securityIdentity),
+                objectType, Arrays.asList(AccessPermission.VIEWER.name())));
+    }
+
+    @Test
+    public void testObjectAcl() {
+        final Sid user = new PrincipalSid("empl1");
+        final Sid role = new GrantedAuthoritySid("ROLE_USER");
+        final ObjectIdentity object = new ObjectIdentityImpl(Project.class, 1L);
+        final String objectType = Project.class.getName();
+
+        this.accessPolicyDao.setObjectAclsEnabled(true);
+        try {
+            this.aclService.insertAce(user, project(1L), AccessPermission.VIEWER);
+            this.aclService.insertAce(role, project(1L), AccessPermission.EDITOR);
+            this.aclService.insertAce(role, project(2L), AccessPermission.VIEWER,
+                    Long.valueOf(System.currentTimeMillis() - 1000L));
+            assertEquals(2, this.aclService.readAclById(object).getEntries().size());
+
+            // a policy saved while the documents are not maintained makes the document diverge
+            this.accessPolicyDao.setObjectAclsEnabled(false);
+            this.accessPolicyDao.save(new AccessPolicy(SecurityIdentity.valueOf(SecurityIdentity.Type.USER, "empl2"),
+                    objectType, 1L, AccessPermission.VIEWER.name()));
+            this.accessPolicyDao.setObjectAclsEnabled(true);
+            assertEquals(2, this.accessPolicyDao.getForObject(objectType, 1L).size());
+
+            final ObjectAclReconciler reconciler = new ObjectAclReconciler(this.accessPolicyDao);
+            reconciler.setBatchSize(1);
+            assertEquals(1L, reconciler.reconcile(objectType));
+            assertEquals(2L, reconciler.getLastCheckedCount());
+            assertEquals(3, this.aclService.readAclById(object).getEntries().size());
+            assertEquals(0L, reconciler.reconcile(objectType));
+
+            // the sweep removes the expired policy from the document too
+            assertEquals(1, this.accessPolicyDao.getForObject(objectType, 2L).size());
+            assertEquals(1, new ExpiredAccessPolicySweeper(this.accessPolicyDao).sweep());
+            assertTrue(this.accessPolicyDao.getForObject(objectType, 2L).isEmpty());
+            assertEquals(0L, reconciler.reconcile(objectType));
+        }
+        finally {
+            this.accessPolicyDao.setObjectAclsEnabled(false);
+        }
+    }
+
+}
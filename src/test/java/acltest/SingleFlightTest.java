@@ -0,0 +1,150 @@
+package acltest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import acl.util.SingleFlight;
+
+/**
+ * Tests for {@link SingleFlight}
+ *
+ * @author Petr Giecek
+ */
+public class SingleFlightTest {
+
+    /** Number of concurrent callers. */
+    private static final int CALLERS = 8;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        this.executor = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Submits {@link #CALLERS} concurrent calls for the same key, the call blocks until all callers have arrived.
+     */
+    private List<Future<Integer>> submitCallers(final SingleFlight<String, Integer> singleFlight,
+            final AtomicInteger calls, final CountDownLatch release) {
+
+        final Callable<Integer> call = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                release.await();
+                return Integer.valueOf(calls.incrementAndGet());
+            }
+        };
+
+        final List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(this.executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return singleFlight.execute("key", call);
+                }
+            }));
+        }
+        return futures;
+    }
+
+    @Test
+    public void testConcurrentCallsCoalesced() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<>(10000L);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final List<Future<Integer>> futures = submitCallers(singleFlight, calls, release);
+
+        // wait until all callers except the leader are waiting
+        while (singleFlight.getLeaderCount() == 0) {
+            Thread.sleep(1L);
+        }
+        Thread.sleep(100L);
+        release.countDown();
+
+        for (Future<Integer> future : futures) {
+            assertEquals(Integer.valueOf(1), future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1L, singleFlight.getLeaderCount());
+        assertEquals(CALLERS - 1, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void testWaitingBounded() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<>(50L);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final List<Future<Integer>> futures = submitCallers(singleFlight, calls, release);
+
+        // let the followers time out before the leader completes
+        while (singleFlight.getTimeoutCount() < CALLERS - 1) {
+            Thread.sleep(1L);
+        }
+        release.countDown();
+
+        for (Future<Integer> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(CALLERS, calls.get());
+        assertEquals(0L, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    public void testCallStartedBeforeWriteNotJoined() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<>(10000L);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Future<Integer> leader = this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return singleFlight.execute("key", new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        release.await();
+                        return Integer.valueOf(calls.incrementAndGet());
+                    }
+                });
+            }
+        });
+        while (singleFlight.getLeaderCount() == 0) {
+            Thread.sleep(1L);
+        }
+
+        // a write completes while the call is in flight
+        final long written = singleFlight.getSequence();
+        assertEquals(Integer.valueOf(1), singleFlight.execute("key", written, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return Integer.valueOf(calls.incrementAndGet());
+            }
+        }));
+        assertEquals(1L, singleFlight.getBypassedCount());
+
+        release.countDown();
+        assertEquals(Integer.valueOf(2), leader.get(10, TimeUnit.SECONDS));
+        assertEquals(0L, singleFlight.getCoalescedCount());
+    }
+
+}
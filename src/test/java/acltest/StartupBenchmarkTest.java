@@ -0,0 +1,318 @@
+package acltest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import acl.config.AppConfig;
+import acl.dao.ObjectifyConfig;
+import acl.dao.ObjectifySession;
+import acl.service.ProjectsService;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * <p>
+ * Startup benchmark: measures the time from the start of a new JVM to the first authorized
+ * {@link ProjectsService#getById(long)}, the cold start a user hits when a request is routed to a new instance. Every
+ * measured start runs in a JVM of its own, against a datastore seeded by a previous JVM and persisted to a file. The
+ * variants are:
+ * </p>
+ * <ul>
+ * <li>{@code xml-eager} - XML configuration, all entities registered at startup, i.e. the original startup</li>
+ * <li>{@code xml} - XML configuration, entities registered in the background or on first use</li>
+ * <li>{@code java} - Java configuration with the ACL service created on first use (see {@link AppConfig})</li>
+ * <li>{@code java-jar}, {@code java-cds} - as {@code java} with the class directories packed to jars, without and
+ * with the classes loaded from a class data sharing archive dumped by a training run, only where the JVM supports
+ * dynamic archives (Java 13 and later)</li>
+ * </ul>
+ * <p>
+ * The XML variants define the beans in {@code applicationContext-security.xml} and create the ACL service at startup,
+ * the Java variants define the same beans in {@link acl.config.SecurityConfig} and create the ACL service on first use.
+ * </p>
+ * <p>
+ * The benchmark forks several JVMs, so it is skipped unless enabled by the {@code startup.benchmark} system property.
+ * The report is printed and written as JSON. A run is configured by system properties, e.g.
+ * {@code mvn test -Dtest=StartupBenchmarkTest -Dstartup.benchmark=true -Dstartup.runs=5}:
+ * </p>
+ * <ul>
+ * <li>{@code startup.benchmark} - enables the benchmark</li>
+ * <li>{@code startup.runs} - number of measured starts per variant, the fastest is reported</li>
+ * <li>{@code startup.java} - the java executable of the measured JVMs, defaults to the running one</li>
+ * <li>{@code startup.jvmArgs} - additional options of the measured JVMs separated by spaces, e.g.
+ * {@code --add-opens java.base/java.lang=ALL-UNNAMED} needed by Spring 4.0 on Java 17</li>
+ * <li>{@code startup.output} - file the JSON report is written to</li>
+ * </ul>
+ *
+ * @author Petr Giecek
+ */
+public class StartupBenchmarkTest {
+
+    /** Prefix of the result line written by a measured JVM. */
+    private static final String RESULT_PREFIX = "STARTUP-RESULT ";
+
+    private final int runs = Integer.getInteger("startup.runs", 1).intValue();
+    private final String java = System.getProperty("startup.java",
+            System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    private final String jvmArgs = System.getProperty("startup.jvmArgs", "");
+    private final String output = System.getProperty("startup.output", "target/startup-benchmark.json");
+
+    /** Working directory of the benchmark. */
+    private final File directory = new File("target/startup-benchmark");
+
+    /** Class path of the measured JVMs. */
+    private String classPath = System.getProperty("java.class.path");
+
+    /**
+     * Entry point of a forked JVM. Arguments: {@code seed|measure}, {@code xml|java}, the datastore file and, when
+     * measuring, the project ID; or {@code version} to print the Java specification version only.
+     */
+    public static void main(final String[] args) throws Exception {
+        final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        final long mainMillis = System.currentTimeMillis();
+        if ("version".equals(args[0])) {
+            System.out.println(RESULT_PREFIX + System.getProperty("java.specification.version"));
+            return;
+        }
+        final boolean seed = "seed".equals(args[0]);
+
+        final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                .setNoStorage(false).setBackingStoreLocation(args[2])
+                .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+        helper.setUp();
+        try {
+            final long contextStart = System.nanoTime();
+            final ConfigurableApplicationContext context = "java".equals(args[1])
+                    ? new AnnotationConfigApplicationContext(AppConfig.class)
+                    : new FileSystemXmlApplicationContext("file:src/main/webapp/WEB-INF/applicationContext.xml",
+                            "file:src/main/webapp/WEB-INF/applicationContext-security.xml");
+            final long contextNanos = System.nanoTime() - contextStart;
+
+            SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("empl1",
+                    "pass1", AuthorityUtils.createAuthorityList("ROLE_USER")));
+            try {
+                ObjectifySession.run(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        final long callStart = System.nanoTime();
+                        final ProjectsService projectsService = context.getBean(ProjectsService.class);
+                        if (seed) {
+                            System.out.println(RESULT_PREFIX + projectsService.addProject("startup"));
+                        }
+                        else {
+                            // the grant is in the datastore, projects are held in memory, so the project is not found
+                            projectsService.getById(Long.parseLong(args[3]));
+                            final long endMillis = System.currentTimeMillis();
+                            System.out.println(String.format(Locale.ROOT, "%s{\"jvmMillis\":%d,"
+                                    + "\"contextMillis\":%d,\"firstCallMillis\":%d,\"totalMillis\":%d}",
+                                    RESULT_PREFIX, mainMillis - jvmStartMillis, contextNanos / 1000000L,
+                                    (System.nanoTime() - callStart) / 1000000L, endMillis - jvmStartMillis));
+                        }
+                        return null;
+                    }
+                });
+            }
+            finally {
+                SecurityContextHolder.clearContext();
+                context.close();
+            }
+        }
+        finally {
+            if (seed) {
+                // persists the datastore file, the tear down of the helper would clear it
+                LocalDatastoreServiceTestConfig.getLocalDatastoreService().stop();
+            }
+        }
+        // the local services are not torn down
+        System.exit(0);
+    }
+
+    /**
+     * Runs the main method in a new JVM and returns its result line.
+     */
+    private String fork(String name, List<String> jvmOptions, String... args) throws IOException,
+            InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add(this.java);
+        if (!this.jvmArgs.trim().isEmpty()) {
+            command.addAll(Arrays.asList(this.jvmArgs.trim().split("\\s+")));
+        }
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(this.classPath);
+        command.add(StartupBenchmarkTest.class.getName());
+        command.addAll(Arrays.asList(args));
+
+        final File log = new File(this.directory, name + ".log");
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        assertEquals("Forked JVM failed, see " + log, 0, process.waitFor());
+
+        for (String line : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith(RESULT_PREFIX)) {
+                return line.substring(RESULT_PREFIX.length());
+            }
+        }
+        throw new AssertionError("No result of the forked JVM, see " + log);
+    }
+
+    /**
+     * Copies the seeded datastore file, so every measured JVM starts with the same data.
+     */
+    private String copy(String store) throws IOException {
+        final File copy = new File(this.directory, "datastore-run.bin");
+        Files.copy(new File(store).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy.getPath();
+    }
+
+    /**
+     * Returns the class path with the class directories replaced by jars.
+     */
+    private String jarClassPath() throws IOException {
+        final StringBuilder jarClassPath = new StringBuilder();
+        for (String entry : this.classPath.split(File.pathSeparator)) {
+            final File file = new File(entry);
+            String jarEntry = entry;
+            if (file.isDirectory()) {
+                final File jar = new File(this.directory, "classes-" + jarClassPath.length() + ".jar");
+                try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+                    addToJar(out, file, "");
+                }
+                jarEntry = jar.getAbsolutePath();
+            }
+            jarClassPath.append(jarClassPath.length() == 0 ? "" : File.pathSeparator).append(jarEntry);
+        }
+        return jarClassPath.toString();
+    }
+
+    /**
+     * Adds the files of the directory to the jar.
+     */
+    private static void addToJar(JarOutputStream out, File directory, String prefix) throws IOException {
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                out.putNextEntry(new JarEntry(prefix + file.getName() + "/"));
+                out.closeEntry();
+                addToJar(out, file, prefix + file.getName() + "/");
+            }
+            else {
+                out.putNextEntry(new JarEntry(prefix + file.getName()));
+                Files.copy(file.toPath(), out);
+                out.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the JVM supports dynamic class data sharing archives.
+     */
+    private static boolean supportsDynamicArchive(String specificationVersion) {
+        // 1.8 and earlier
+        return !specificationVersion.startsWith("1.") && Integer.parseInt(specificationVersion) >= 13;
+    }
+
+    /**
+     * Measures the variant and returns the result of the fastest start.
+     */
+    private String measure(String variant, List<String> jvmOptions, String config, String store, String projectId)
+            throws IOException, InterruptedException {
+        String fastest = null;
+        long fastestMillis = Long.MAX_VALUE;
+        for (int i = 0; i < this.runs; i++) {
+            final String result = fork(variant + "-" + i, jvmOptions, "measure", config, copy(store), projectId);
+            final String total = result.substring(result.indexOf("\"totalMillis\":") + 14, result.length() - 1);
+            if (Long.parseLong(total) < fastestMillis) {
+                fastestMillis = Long.parseLong(total);
+                fastest = result;
+            }
+        }
+        return fastest;
+    }
+
+    @Test
+    public void testTimeToFirstAuthorizedCall() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("startup.benchmark"));
+        this.directory.mkdirs();
+        final String store = new File(this.directory, "datastore.bin").getPath();
+        new File(store).delete();
+
+        final List<String> none = new ArrayList<>();
+        final String projectId = fork("seed", none, "seed", "xml", store);
+        assertNotNull(Long.valueOf(projectId));
+
+        final Map<String, String> results = new LinkedHashMap<>();
+        results.put("xml-eager", measure("xml-eager", Arrays.asList("-D" + ObjectifyConfig.EAGER_REGISTRATION_PROPERTY
+                + "=true"), "xml", store, projectId));
+        results.put("xml", measure("xml", none, "xml", store, projectId));
+        results.put("java", measure("java", none, "java", store, projectId));
+
+        // the measured JVM may differ from the running one
+        final String specificationVersion = fork("version", none, "version").trim();
+        if (supportsDynamicArchive(specificationVersion)) {
+            // archived classes are loaded from jars only
+            this.classPath = jarClassPath();
+            results.put("java-jar", measure("java-jar", none, "java", store, projectId));
+            final String archive = new File(this.directory, "startup.jsa").getPath();
+            fork("java-cds-training", Arrays.asList("-XX:ArchiveClassesAtExit=" + archive), "measure", "java",
+                    copy(store), projectId);
+            results.put("java-cds", measure("java-cds", Arrays.asList("-XX:SharedArchiveFile=" + archive), "java",
+                    store, projectId));
+        }
+
+        report(specificationVersion, results);
+    }
+
+    /**
+     * Prints the report and writes it as JSON to {@link #output}.
+     */
+    private void report(String specificationVersion, Map<String, String> results) throws IOException {
+        final StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\"javaVersion\":\"%s\",\"runs\":%d,\"results\":{",
+                specificationVersion, this.runs));
+        String separator = "";
+        for (Map.Entry<String, String> entry : results.entrySet()) {
+            json.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            separator = ",";
+        }
+        json.append("}}");
+
+        System.out.println(json);
+
+        final File file = new File(this.output);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+            writer.write('\n');
+        }
+    }
+
+}